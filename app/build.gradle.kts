@@ -52,6 +52,10 @@ android {
     lint {
         lintConfig = file("./lint.xml")
     }
+    testOptions {
+        // The engine's JVM tests log, so stub android.util.Log & friends rather than throwing
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
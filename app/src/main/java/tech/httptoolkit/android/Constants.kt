@@ -7,6 +7,12 @@ object IntentExtras {
     const val PROXY_CONFIG_EXTRA = "tech.httptoolkit.android.PROXY_CONFIG"
     const val UNINTERCEPTED_APPS_EXTRA = "tech.httptoolkit.android.UNINTERCEPTED_APPS"
     const val INTERCEPTED_PORTS_EXTRA = "tech.httptoolkit.android.INTERCEPTED_PORTS"
+    const val VPN_MTU_EXTRA = "tech.httptoolkit.android.VPN_MTU"
+    const val VPN_DEFER_SYN_ACK_EXTRA = "tech.httptoolkit.android.VPN_DEFER_SYN_ACK"
+    const val VPN_CONNECT_TIMEOUT_EXTRA = "tech.httptoolkit.android.VPN_CONNECT_TIMEOUT"
+    const val VPN_COALESCE_PORTS_EXTRA = "tech.httptoolkit.android.VPN_COALESCE_PORTS"
+    const val VPN_COALESCE_DELAYS_EXTRA = "tech.httptoolkit.android.VPN_COALESCE_DELAYS"
+    const val VPN_UDP_SOCKET_POOL_EXTRA = "tech.httptoolkit.android.VPN_UDP_SOCKET_POOL"
 }
 
 object Constants {
@@ -4,8 +4,13 @@ import android.os.ParcelFileDescriptor
 import android.util.Log
 import android.util.SparseArray
 import tech.httptoolkit.android.vpn.ClientPacketWriter
+import tech.httptoolkit.android.vpn.EngineConfig
+import tech.httptoolkit.android.vpn.FlowSnapshot
 import tech.httptoolkit.android.vpn.SessionHandler
 import tech.httptoolkit.android.vpn.SessionManager
+import tech.httptoolkit.android.vpn.buffer.BufferArena
+import tech.httptoolkit.android.vpn.buffer.BufferBudget
+import tech.httptoolkit.android.vpn.socket.IErrorHandler
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService
 import io.sentry.Sentry
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException
@@ -16,14 +21,12 @@ import java.net.ConnectException
 import java.net.InetSocketAddress
 import java.nio.ByteBuffer
 
-// Set on our VPN as the MTU, which should guarantee all packets fit this
-const val MAX_PACKET_LEN = 1500
-
 class ProxyVpnRunnable(
     vpnInterface: ParcelFileDescriptor,
     proxyHost: String,
     proxyPort: Int,
-    redirectPorts: IntArray
+    redirectPorts: IntArray,
+    private val config: EngineConfig
 ) : Runnable {
 
     @Volatile private var running = false
@@ -31,20 +34,31 @@ class ProxyVpnRunnable(
     // Packets from device apps downstream, heading upstream via this VPN
     private val vpnReadStream = FileInputStream(vpnInterface.fileDescriptor)
 
+    // Limits the total data buffered across all sessions & the VPN write queue
+    private val bufferBudget = BufferBudget()
+
     // Packets from upstream servers, received by this VPN
     private val vpnWriteStream = FileOutputStream(vpnInterface.fileDescriptor)
-    private val vpnPacketWriter = ClientPacketWriter(vpnWriteStream)
+    private val vpnPacketWriter = ClientPacketWriter(vpnWriteStream, bufferBudget, config)
     private val vpnPacketWriterThread = Thread(vpnPacketWriter)
 
-    // Background service & task for non-blocking socket
-    private val nioService = SocketNIODataService(vpnPacketWriter)
+    private val manager = SessionManager(config)
+
+    // Background service & task for non-blocking socket. This thread owns all session state: the
+    // VPN thread parses packets, and posts the rest of their handling to this service.
+    private val nioService = SocketNIODataService(
+        vpnPacketWriter,
+        manager,
+        bufferBudget,
+        config,
+        IErrorHandler { e -> reportPacketError(e) }
+    )
     private val dataServiceThread = Thread(nioService, "Socket NIO thread")
 
-    private val manager = SessionManager()
-    private val handler = SessionHandler(manager, nioService, vpnPacketWriter)
+    private val handler = SessionHandler(manager, nioService, vpnPacketWriter, bufferBudget, config)
 
-    // Allocate the buffer for a single packet.
-    private val packet = ByteBuffer.allocate(MAX_PACKET_LEN)
+    // Allocate the buffer for a single packet. The MTU set on our VPN guarantees all packets fit.
+    private val packet = ByteBuffer.allocate(config.mtu)
 
     // Our redirect rules, defining which traffic should be forwarded to what proxy address
     private val portRedirections = SparseArray<InetSocketAddress>().apply {
@@ -60,7 +74,7 @@ class ProxyVpnRunnable(
             return
         }
 
-        Log.i(TAG, "Vpn thread starting")
+        Log.i(TAG, "Vpn thread starting with $config")
 
         manager.setTcpPortRedirections(portRedirections)
         dataServiceThread.start()
@@ -80,23 +94,7 @@ class ProxyVpnRunnable(
                         packet.limit(length)
                         handler.handlePacket(packet)
                     } catch (e: Exception) {
-                        val errorMessage = (e.message ?: e.toString())
-                        Log.e(TAG, errorMessage)
-
-                        val isIgnorable =
-                            (e is ConnectException && errorMessage == "Permission denied") ||
-                            // Nothing we can do if the internet goes down:
-                            (e is ConnectException && errorMessage == "Network is unreachable") ||
-                            (e is ConnectException && errorMessage.contains("ENETUNREACH")) ||
-                            // Too many open files - can't make more sockets, not much we can do:
-                            (e is ConnectException && errorMessage == "Too many open files") ||
-                            (e is ConnectException && errorMessage.contains("EMFILE")) ||
-                            // IPv6 is not supported here yet:
-                            (e is PacketHeaderException && errorMessage.contains("IP version should be 4 but was 6"))
-
-                        if (!isIgnorable) {
-                            Sentry.captureException(e)
-                        }
+                        reportPacketError(e)
                     }
 
                     packet.clear()
@@ -113,6 +111,40 @@ class ProxyVpnRunnable(
         Log.i(TAG, "Vpn thread shutting down")
     }
 
+    // Called for failures handling packets, on both the VPN & NIO threads
+    private fun reportPacketError(e: Exception) {
+        val errorMessage = (e.message ?: e.toString())
+        Log.e(TAG, errorMessage)
+
+        val isIgnorable =
+            (e is ConnectException && errorMessage == "Permission denied") ||
+            // Nothing we can do if the internet goes down:
+            (e is ConnectException && errorMessage == "Network is unreachable") ||
+            (e is ConnectException && errorMessage.contains("ENETUNREACH")) ||
+            // Too many open files - can't make more sockets, not much we can do:
+            (e is ConnectException && errorMessage == "Too many open files") ||
+            (e is ConnectException && errorMessage.contains("EMFILE")) ||
+            // IPv6 is not supported here yet:
+            (e is PacketHeaderException && errorMessage.contains("IP version should be 4 but was 6"))
+
+        if (!isIgnorable) {
+            Sentry.captureException(e)
+        }
+    }
+
+    // A recent copy of the active flows. Cheap & non-blocking, so can be polled every frame.
+    fun getFlowSnapshot(): FlowSnapshot {
+        return nioService.getFlowSnapshot()
+    }
+
+    fun onTrimMemory(level: Int) {
+        bufferBudget.onTrimMemory(level)
+    }
+
+    fun onNetworkChanged() {
+        nioService.onNetworkChanged()
+    }
+
     fun stop() {
         if (running) {
             running = false
@@ -121,6 +153,24 @@ class ProxyVpnRunnable(
 
             vpnPacketWriter.shutdown()
             vpnPacketWriterThread.interrupt()
+
+            Log.i(TAG, manager.describeSessions())
+            Log.i(TAG, nioService.describeTasks())
+            Log.i(TAG, nioService.describeRetransmissions())
+            Log.i(TAG, nioService.describeZeroWindows())
+            Log.i(TAG, nioService.describeCoalescing())
+            Log.i(TAG, nioService.describeSocketBuffers())
+            Log.i(TAG, nioService.describeDatagramWrites())
+            Log.i(TAG, nioService.describeUdpSocketPool())
+            Log.i(TAG, nioService.describeUploadAcks())
+            Log.i(TAG, nioService.describeConnects())
+            Log.i(TAG, manager.describeConnectFailures())
+            Log.i(TAG, handler.describeStrayPackets())
+            Log.i(TAG, handler.describeReassembly())
+            Log.i(TAG, handler.describeKeepalives())
+            Log.i(TAG, handler.describeDatagramQueues())
+            Log.i(TAG, BufferArena.getInstance().describeOccupancy())
+            Log.i(TAG, bufferBudget.describe())
         } else {
             Log.w(TAG, "Vpn runnable stopped, but it's not running")
         }
@@ -4,6 +4,10 @@ import android.app.*
 import android.content.Intent
 import android.content.pm.PackageManager
 import android.graphics.BitmapFactory
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
 import android.net.ProxyInfo
 import android.net.VpnService
 import android.os.Build
@@ -13,6 +17,8 @@ import androidx.core.app.NotificationCompat
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import io.sentry.Sentry
 import tech.httptoolkit.android.main.MainActivity
+import tech.httptoolkit.android.vpn.EngineConfig
+import tech.httptoolkit.android.vpn.FlowSnapshot
 import tech.httptoolkit.android.vpn.socket.IProtectSocket
 import tech.httptoolkit.android.vpn.socket.SocketProtector
 import java.io.IOException
@@ -41,6 +47,10 @@ fun activeVpnConfig(): ProxyConfig? {
     return currentService?.proxyConfig
 }
 
+fun activeVpnFlows(): FlowSnapshot {
+    return currentService?.getFlowSnapshot() ?: FlowSnapshot.EMPTY
+}
+
 class ProxyVpnService : VpnService(), IProtectSocket {
 
     private lateinit var app: HttpToolkitApplication
@@ -52,6 +62,7 @@ class ProxyVpnService : VpnService(), IProtectSocket {
 
     private var vpnInterface: ParcelFileDescriptor? = null
     private var vpnRunnable: ProxyVpnRunnable? = null
+    private var networkCallback: ConnectivityManager.NetworkCallback? = null
 
     override fun onCreate() {
         super.onCreate()
@@ -63,6 +74,18 @@ class ProxyVpnService : VpnService(), IProtectSocket {
         currentService = null
     }
 
+    fun getFlowSnapshot(): FlowSnapshot? {
+        return vpnRunnable?.getFlowSnapshot()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        Log.i(TAG, "onTrimMemory called with level $level")
+
+        // Shrink our buffers under memory pressure, rather than being killed outright
+        vpnRunnable?.onTrimMemory(level)
+    }
+
     override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
         currentService = this
         Log.i(TAG, "onStartCommand called")
@@ -77,11 +100,30 @@ class ProxyVpnService : VpnService(), IProtectSocket {
             val proxyConfig = intent.getParcelableExtra<ProxyConfig>(IntentExtras.PROXY_CONFIG_EXTRA)!!
             val uninterceptedApps = intent.getStringArrayExtra(IntentExtras.UNINTERCEPTED_APPS_EXTRA)!!.toSet()
             val interceptedPorts = intent.getIntArrayExtra(IntentExtras.INTERCEPTED_PORTS_EXTRA)!!.toSet()
+            val engineConfig = EngineConfig.Builder()
+                .setMtu(intent.getIntExtra(IntentExtras.VPN_MTU_EXTRA, EngineConfig.DEFAULT_MTU))
+                .setDeferSynAck(intent.getBooleanExtra(IntentExtras.VPN_DEFER_SYN_ACK_EXTRA, false))
+                .setConnectTimeoutMs(intent.getIntExtra(
+                    IntentExtras.VPN_CONNECT_TIMEOUT_EXTRA,
+                    EngineConfig.DEFAULT_CONNECT_TIMEOUT_MS
+                ))
+                .setUdpSocketPoolSize(intent.getIntExtra(IntentExtras.VPN_UDP_SOCKET_POOL_EXTRA, 0))
+                .apply {
+                    // Pairs of ports & the delay (in ms) for coalescing small reads on each
+                    val coalescePorts = intent.getIntArrayExtra(IntentExtras.VPN_COALESCE_PORTS_EXTRA)
+                    val coalesceDelays = intent.getIntArrayExtra(IntentExtras.VPN_COALESCE_DELAYS_EXTRA)
+                    if (coalescePorts != null && coalesceDelays != null) {
+                        coalescePorts.zip(coalesceDelays).forEach { (port, delay) ->
+                            setDownloadCoalesceDelay(port, delay)
+                        }
+                    }
+                }
+                .build()
 
             val vpnStarted = if (isActive())
-                restartVpn(proxyConfig, uninterceptedApps, interceptedPorts)
+                restartVpn(proxyConfig, uninterceptedApps, interceptedPorts, engineConfig)
             else
-                startVpn(proxyConfig, uninterceptedApps, interceptedPorts)
+                startVpn(proxyConfig, uninterceptedApps, interceptedPorts, engineConfig)
 
             if (vpnStarted) {
                 // If the system briefly kills us for some reason (memory, the user, whatever) whilst
@@ -148,7 +190,8 @@ class ProxyVpnService : VpnService(), IProtectSocket {
     private fun startVpn(
         proxyConfig: ProxyConfig,
         uninterceptedApps: Set<String>,
-        interceptedPorts: Set<Int>
+        interceptedPorts: Set<Int>,
+        engineConfig: EngineConfig
     ): Boolean {
         this.proxyConfig = proxyConfig
         val packages = packageManager.getInstalledApplications(PackageManager.GET_META_DATA)
@@ -172,7 +215,7 @@ class ProxyVpnService : VpnService(), IProtectSocket {
                     setMetered(false)
                 }
             }
-            .setMtu(MAX_PACKET_LEN) // Limit the packet size to the buffer used by ProxyVpnRunnable
+            .setMtu(engineConfig.mtu) // Limit the packet size to the buffer used by ProxyVpnRunnable
             .setBlocking(true) // We use a blocking loop to read in ProxyVpnRunnable
             .apply {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
@@ -250,21 +293,61 @@ class ProxyVpnService : VpnService(), IProtectSocket {
             vpnInterface,
             proxyConfig.ip,
             proxyConfig.port,
-            interceptedPorts.toIntArray()
+            interceptedPorts.toIntArray(),
+            engineConfig
         )
         Thread(vpnRunnable, "Vpn thread").start()
+        watchNetworkChanges()
 
         app.vpnShouldBeRunning = true
         return true
     }
 
+    // The engine caches some state (like recent connection failures) that's only valid for the
+    // current network, so we tell it whenever the underlying network changes.
+    private fun watchNetworkChanges() {
+        val connectivityManager = getSystemService(CONNECTIVITY_SERVICE) as ConnectivityManager
+        val callback = object : ConnectivityManager.NetworkCallback() {
+            override fun onAvailable(network: Network) {
+                vpnRunnable?.onNetworkChanged()
+            }
+
+            override fun onLost(network: Network) {
+                vpnRunnable?.onNetworkChanged()
+            }
+        }
+
+        // Requests exclude VPNs (like ours) by default, so this only sees real networks
+        connectivityManager.registerNetworkCallback(
+            NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(),
+            callback
+        )
+        networkCallback = callback
+    }
+
+    private fun unwatchNetworkChanges() {
+        val callback = networkCallback ?: return
+        networkCallback = null
+
+        val connectivityManager = getSystemService(CONNECTIVITY_SERVICE) as ConnectivityManager
+        try {
+            connectivityManager.unregisterNetworkCallback(callback)
+        } catch (e: IllegalArgumentException) {
+            // Already unregistered, nothing to do
+        }
+    }
+
     private fun restartVpn(
         proxyConfig: ProxyConfig,
         uninterceptedApps: Set<String>,
-        interceptedPorts: Set<Int>
+        interceptedPorts: Set<Int>,
+        engineConfig: EngineConfig
     ): Boolean {
         Log.i(TAG, "VPN stopping for restart...")
 
+        unwatchNetworkChanges()
         if (vpnRunnable != null) {
             vpnRunnable!!.stop()
             vpnRunnable = null
@@ -278,12 +361,13 @@ class ProxyVpnService : VpnService(), IProtectSocket {
         }
 
         stopForeground(true)
-        return startVpn(proxyConfig, uninterceptedApps, interceptedPorts)
+        return startVpn(proxyConfig, uninterceptedApps, interceptedPorts, engineConfig)
     }
 
     private fun stopVpn() {
         Log.i(TAG, "VPN stopping...")
 
+        unwatchNetworkChanges()
         if (vpnRunnable != null) {
             vpnRunnable!!.stop()
             vpnRunnable = null
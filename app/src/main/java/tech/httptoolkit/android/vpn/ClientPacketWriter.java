@@ -30,6 +30,7 @@ import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import tech.httptoolkit.android.TagKt;
+import tech.httptoolkit.android.vpn.buffer.BufferBudget;
 
 /**
  * write packet data back to VPN client stream. This class is thread safe.
@@ -41,16 +42,29 @@ public class ClientPacketWriter implements Runnable {
 	private final String TAG = TagKt.getTAG(this);
 
 	private final FileOutputStream clientWriter;
+	private final BufferBudget budget;
+
+	// Our TCP segments are always sized to fit the MTU, so anything larger is a bug. UDP
+	// responses are passed on whole even if they're larger, up to the IPv4 maximum, since
+	// the kernel accepts them, and we can't split datagrams.
+	private final int maxTcpPacketSize;
+	private static final int MAX_PACKET_SIZE = 0xFFFF;
+	private static final int TCP_PROTOCOL = 6;
 
 	private volatile boolean shutdown = false;
 	private final BlockingDeque<byte[]> packetQueue = new LinkedBlockingDeque<>();
 
-	public ClientPacketWriter(FileOutputStream clientWriter) {
+	public ClientPacketWriter(FileOutputStream clientWriter, BufferBudget budget, EngineConfig config) {
 		this.clientWriter = clientWriter;
+		this.budget = budget;
+		this.maxTcpPacketSize = config.mtu;
 	}
 
 	public void write(byte[] data) {
-		if (data.length > 30000) throw new Error("Packet too large");
+		// Byte 9 of the IPv4 header is the protocol
+		int maxSize = data[9] == TCP_PROTOCOL ? maxTcpPacketSize : MAX_PACKET_SIZE;
+		if (data.length > maxSize) throw new PacketTooLargeException(data.length, maxSize);
+		budget.onPacketQueued(data.length);
 		packetQueue.addLast(data);
 	}
 
@@ -65,6 +79,7 @@ public class ClientPacketWriter implements Runnable {
 				byte[] data = this.packetQueue.take();
 				try {
 					this.clientWriter.write(data);
+					budget.onPacketDequeued(data.length);
 				} catch (IOException e) {
 					Log.e(TAG, "Error writing " + data.length + " bytes to the VPN");
 					e.printStackTrace();
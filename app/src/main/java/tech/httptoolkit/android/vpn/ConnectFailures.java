@@ -0,0 +1,97 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short-lived cache of destinations (IP & port) that recently failed to connect upstream.
+ * Apps often retry unreachable or refusing destinations in a tight loop, and each SYN would
+ * otherwise open a new socket, protect it (a binder call) and wait for another failed connect.
+ * With this, repeat SYNs within FAILURE_TTL_MS are reset immediately instead.
+ *
+ * Entries are compact (keyed by a packed long) and expire quickly, so a destination that comes
+ * back is retried soon. The cache should be cleared whenever the network changes, since the
+ * failures may have been specific to the old network. Only used on the NIO thread, except for
+ * the counters, which are read elsewhere for reporting.
+ */
+class ConnectFailures {
+
+	static final long FAILURE_TTL_MS = 3 * 1000;
+	static final int MAX_ENTRIES = 1024;
+
+	// Insertion ordered, with equal lifetimes, so the eldest always expires first. Values are
+	// each entry's expiry time. All times are SystemClock.elapsedRealtime() milliseconds.
+	private final LinkedHashMap<Long, Long> failures = new LinkedHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong failuresRecorded = new AtomicLong(0);
+	private final AtomicLong invalidations = new AtomicLong(0);
+
+	private static long getKey(int destIp, int destPort) {
+		return ((long) destIp << 32) | (destPort & 0xFFFF);
+	}
+
+	void add(int destIp, int destPort, long now) {
+		expire(now);
+
+		Long key = getKey(destIp, destPort);
+		failures.remove(key); // Re-added at the end, to keep the table in expiry order
+		failures.put(key, now + FAILURE_TTL_MS);
+		failuresRecorded.incrementAndGet();
+
+		if (failures.size() > MAX_ENTRIES) {
+			Iterator<Long> iterator = failures.keySet().iterator();
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * @return true if connecting to this destination failed within the last FAILURE_TTL_MS
+	 */
+	boolean contains(int destIp, int destPort, long now) {
+		if (!failures.isEmpty()) {
+			expire(now);
+
+			if (failures.containsKey(getKey(destIp, destPort))) {
+				hits.incrementAndGet();
+				return true;
+			}
+		}
+
+		misses.incrementAndGet();
+		return false;
+	}
+
+	void clear() {
+		if (failures.isEmpty()) return;
+		failures.clear();
+		invalidations.incrementAndGet();
+	}
+
+	private void expire(long now) {
+		Iterator<Long> iterator = failures.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next() > now) break;
+			iterator.remove();
+		}
+	}
+
+	int size() {
+		return failures.size();
+	}
+
+	@NonNull
+	String describe() {
+		long hitCount = hits.get();
+		long lookups = hitCount + misses.get();
+		return "Connect failure cache: " + hitCount + " hits in " + lookups + " lookups (" +
+			(lookups > 0 ? hitCount * 100 / lookups : 0) + "%), " +
+			failuresRecorded.get() + " failures recorded, " + invalidations.get() + " cleared " +
+			"by network changes";
+	}
+}
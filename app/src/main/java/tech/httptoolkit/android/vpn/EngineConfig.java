@@ -0,0 +1,230 @@
+package tech.httptoolkit.android.vpn;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+
+import static tech.httptoolkit.android.TagKt.formatTag;
+
+/**
+ * Immutable configuration for the VPN engine, fixed when the VPN starts.
+ *
+ * The MTU is set on the VPN interface itself, and everything that handles packets follows it:
+ * the buffer we read client packets into, the MSS we offer clients, the size of the segments
+ * we send them, and the largest packet the writer accepts. Since the tun link is local, a large
+ * MTU is safe, and cuts per-packet overhead on bulk transfers considerably.
+ */
+public final class EngineConfig {
+
+	private static final String TAG = formatTag(EngineConfig.class.getName());
+
+	public static final int DEFAULT_MTU = 1500;
+
+	// The smallest MTU every IPv4 host must accept (RFC 791)
+	public static final int MIN_MTU = 576;
+
+	// The largest possible IPv4 packet
+	public static final int MAX_MTU = 0xFFFF;
+
+	private static final int TCP_HEADER_LENGTH = 20;
+
+	// The MSS we fall back to for sessions that seem unable to handle large segments: the
+	// standard ethernet MSS, which every TCP stack is used to
+	public static final int FALLBACK_MAX_SEGMENT_SIZE = DEFAULT_MTU - IPPacketFactory.IP_HEADER_LENGTH - TCP_HEADER_LENGTH;
+
+	// Client uploads are streamed upstream without waiting for PSH. To coalesce back-to-back
+	// segments into fewer, larger gathered writes, we wait until this much is buffered...
+	public static final int DEFAULT_UPLOAD_FLUSH_BYTES = 16 * 1024;
+	// ...or until this long after the first unflushed segment arrived, whichever comes first.
+	public static final int DEFAULT_UPLOAD_FLUSH_DELAY_MS = 5;
+
+	// How long an upstream connection may take before we give up & reset the client's connection
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 30 * 1000;
+
+	// The longest we'll hold small upstream reads, waiting for more to coalesce them with
+	public static final int MAX_DOWNLOAD_COALESCE_DELAY_MS = 100;
+
+	// Upstream socket buffers start at the minimum, and grow towards the maximum for sessions
+	// whose throughput & latency need it (see SocketBufferTuner)
+	public static final int DEFAULT_MIN_SOCKET_BUFFER_SIZE = 16 * 1024;
+	public static final int DEFAULT_MAX_SOCKET_BUFFER_SIZE = 1024 * 1024;
+	private static final int MIN_SOCKET_BUFFER_SIZE = 4 * 1024;
+
+	// The most we read from an upstream socket at once. Reads are also limited by each
+	// session's receive buffer size, so only busy sessions make large reads.
+	public static final int DEFAULT_MAX_READ_SIZE = 256 * 1024;
+	private static final int MIN_READ_SIZE = 8 * 1024;
+
+	// How many datagrams each UDP session may queue to send upstream, before it drops more
+	public static final int DEFAULT_UDP_QUEUE_DEPTH = 64;
+
+	// The most shared sockets a UDP socket pool may open (see UdpSocketPool)
+	public static final int MAX_UDP_SOCKET_POOL_SIZE = 64;
+
+	// The MTU set on the VPN interface
+	public final int mtu;
+
+	// Thresholds for flushing buffered client data upstream, without PSH. A flush delay of 0
+	// writes data as soon as the socket is writable.
+	public final int uploadFlushBytes;
+	public final int uploadFlushDelayMs;
+
+	// If set, we only answer a client's SYN once the upstream connection has succeeded, and
+	// reset it if that fails, so the client sees the real outcome. Otherwise we answer at once,
+	// and the client may send data before we know if the destination is reachable at all.
+	public final boolean deferSynAck;
+
+	// How long upstream connections may take, in either mode. 0 means no timeout.
+	public final int connectTimeoutMs;
+
+	// For each destination port, how long small upstream reads may be held before they're sent
+	// to the client, so that servers trickling small writes produce fewer, fuller packets.
+	// Ports not listed here are sent immediately.
+	private final SparseIntArray downloadCoalesceDelays;
+
+	// Limits for each upstream TCP socket's send & receive buffers, in bytes
+	public final int minSocketBufferSize;
+	public final int maxSocketBufferSize;
+
+	// The largest single read from an upstream TCP socket, in bytes
+	public final int maxReadSize;
+
+	// The most client datagrams queued per UDP session whilst waiting for its socket to be
+	// writable. Further datagrams are dropped, as a congested network would.
+	public final int udpQueueDepth;
+
+	// If non-zero, UDP sessions share a pool of up to this many unconnected upstream sockets,
+	// instead of each opening a connected socket of its own.
+	public final int udpSocketPoolSize;
+
+	public EngineConfig(int mtu) {
+		this(new Builder().setMtu(mtu));
+	}
+
+	private EngineConfig(Builder builder) {
+		int mtu = builder.mtu;
+		if (mtu < MIN_MTU || mtu > MAX_MTU) {
+			Log.w(TAG, "Invalid MTU " + mtu + ", using " + DEFAULT_MTU);
+			mtu = DEFAULT_MTU;
+		}
+		this.mtu = mtu;
+		this.uploadFlushBytes = Math.max(1, builder.uploadFlushBytes);
+		this.uploadFlushDelayMs = Math.max(0, builder.uploadFlushDelayMs);
+		this.deferSynAck = builder.deferSynAck;
+		this.connectTimeoutMs = Math.max(0, builder.connectTimeoutMs);
+		this.downloadCoalesceDelays = builder.downloadCoalesceDelays.clone();
+		this.minSocketBufferSize = Math.max(MIN_SOCKET_BUFFER_SIZE, builder.minSocketBufferSize);
+		this.maxSocketBufferSize = Math.max(this.minSocketBufferSize, builder.maxSocketBufferSize);
+		this.maxReadSize = Math.max(MIN_READ_SIZE, builder.maxReadSize);
+		this.udpQueueDepth = Math.max(1, builder.udpQueueDepth);
+		this.udpSocketPoolSize = Math.max(0, Math.min(MAX_UDP_SOCKET_POOL_SIZE, builder.udpSocketPoolSize));
+	}
+
+	/**
+	 * @return how long small reads from upstream servers on this port may be held, in ms
+	 */
+	public int getDownloadCoalesceDelayMs(int port) {
+		return downloadCoalesceDelays.get(port, 0);
+	}
+
+	public static class Builder {
+		private int mtu = DEFAULT_MTU;
+		private int uploadFlushBytes = DEFAULT_UPLOAD_FLUSH_BYTES;
+		private int uploadFlushDelayMs = DEFAULT_UPLOAD_FLUSH_DELAY_MS;
+		private boolean deferSynAck = false;
+		private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+		private final SparseIntArray downloadCoalesceDelays = new SparseIntArray();
+		private int minSocketBufferSize = DEFAULT_MIN_SOCKET_BUFFER_SIZE;
+		private int maxSocketBufferSize = DEFAULT_MAX_SOCKET_BUFFER_SIZE;
+		private int maxReadSize = DEFAULT_MAX_READ_SIZE;
+		private int udpQueueDepth = DEFAULT_UDP_QUEUE_DEPTH;
+		private int udpSocketPoolSize = 0;
+
+		public Builder setMtu(int mtu) {
+			this.mtu = mtu;
+			return this;
+		}
+
+		public Builder setUploadFlush(int bytes, int delayMs) {
+			this.uploadFlushBytes = bytes;
+			this.uploadFlushDelayMs = delayMs;
+			return this;
+		}
+
+		public Builder setDeferSynAck(boolean deferSynAck) {
+			this.deferSynAck = deferSynAck;
+			return this;
+		}
+
+		public Builder setConnectTimeoutMs(int connectTimeoutMs) {
+			this.connectTimeoutMs = connectTimeoutMs;
+			return this;
+		}
+
+		/**
+		 * Hold small reads from upstream servers on this port for up to the given delay, until
+		 * there's a full segment to send. A delay of 0 disables this for the port.
+		 */
+		public Builder setDownloadCoalesceDelay(int port, int delayMs) {
+			delayMs = Math.min(MAX_DOWNLOAD_COALESCE_DELAY_MS, delayMs);
+			if (delayMs > 0) {
+				downloadCoalesceDelays.put(port, delayMs);
+			} else {
+				downloadCoalesceDelays.delete(port);
+			}
+			return this;
+		}
+
+		public Builder setSocketBufferLimits(int minSize, int maxSize) {
+			this.minSocketBufferSize = minSize;
+			this.maxSocketBufferSize = maxSize;
+			return this;
+		}
+
+		public Builder setMaxReadSize(int maxReadSize) {
+			this.maxReadSize = maxReadSize;
+			return this;
+		}
+
+		public Builder setUdpQueueDepth(int udpQueueDepth) {
+			this.udpQueueDepth = udpQueueDepth;
+			return this;
+		}
+
+		/**
+		 * Send UDP through a shared pool of up to this many sockets. 0 (the default) gives every
+		 * UDP session its own socket instead.
+		 */
+		public Builder setUdpSocketPoolSize(int udpSocketPoolSize) {
+			this.udpSocketPoolSize = udpSocketPoolSize;
+			return this;
+		}
+
+		public EngineConfig build() {
+			return new EngineConfig(this);
+		}
+	}
+
+	/**
+	 * The MSS we offer clients: the largest TCP payload that fits in a single packet
+	 * @return int
+	 */
+	public int getMaxSegmentSize() {
+		return mtu - IPPacketFactory.IP_HEADER_LENGTH - TCP_HEADER_LENGTH;
+	}
+
+	@Override
+	public String toString() {
+		return "EngineConfig{mtu=" + mtu +
+			", uploadFlushBytes=" + uploadFlushBytes +
+			", uploadFlushDelayMs=" + uploadFlushDelayMs +
+			", deferSynAck=" + deferSynAck +
+			", connectTimeoutMs=" + connectTimeoutMs +
+			", downloadCoalesceDelays=" + downloadCoalesceDelays +
+			", socketBufferSizes=" + minSocketBufferSize + "-" + maxSocketBufferSize +
+			", maxReadSize=" + maxReadSize +
+			", udpQueueDepth=" + udpQueueDepth +
+			", udpSocketPoolSize=" + udpSocketPoolSize + "}";
+	}
+}
@@ -0,0 +1,88 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.net.InetSocketAddress;
+
+import tech.httptoolkit.android.vpn.util.PacketUtil;
+
+/**
+ * An immutable description of a single session at one point in time, for display. Built on
+ * the NIO thread as part of a FlowSnapshot, and safe to read from any thread.
+ */
+public class FlowInfo {
+
+	public enum State {
+		CONNECTING,
+		ESTABLISHED,
+		CLOSING,
+		ABORTING
+	}
+
+	@NonNull public final SessionProtocol protocol;
+
+	public final int sourceIp;
+	public final int sourcePort;
+	public final int destIp;
+	public final int destPort;
+
+	@NonNull public final State state;
+
+	// Bytes received from the remote host & sent to the client, and vice versa
+	public final long bytesIn;
+	public final long bytesOut;
+
+	// Segments we've had to resend to the client
+	public final int retransmits;
+
+	// The upstream socket's buffer sizes, adapted to the flow's throughput (0 if not set)
+	public final int receiveBufferSize;
+	public final int sendBufferSize;
+
+	public final long ageMs;
+
+	// The address we actually connected to, if this flow was redirected (e.g. to the proxy)
+	@Nullable public final InetSocketAddress redirectTarget;
+
+	FlowInfo(
+		@NonNull SessionProtocol protocol,
+		int sourceIp,
+		int sourcePort,
+		int destIp,
+		int destPort,
+		@NonNull State state,
+		long bytesIn,
+		long bytesOut,
+		int retransmits,
+		int receiveBufferSize,
+		int sendBufferSize,
+		long ageMs,
+		@Nullable InetSocketAddress redirectTarget
+	) {
+		this.protocol = protocol;
+		this.sourceIp = sourceIp;
+		this.sourcePort = sourcePort;
+		this.destIp = destIp;
+		this.destPort = destPort;
+		this.state = state;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.retransmits = retransmits;
+		this.receiveBufferSize = receiveBufferSize;
+		this.sendBufferSize = sendBufferSize;
+		this.ageMs = ageMs;
+		this.redirectTarget = redirectTarget;
+	}
+
+	public String toString() {
+		return protocol.name() + " " +
+			PacketUtil.intToIPAddress(sourceIp) + ":" + sourcePort + "->" +
+			PacketUtil.intToIPAddress(destIp) + ":" + destPort +
+			(redirectTarget != null ? " (via " + redirectTarget + ")" : "") +
+			" " + state + ", " + bytesIn + " bytes in, " + bytesOut + " bytes out, " +
+			retransmits + " retransmits, " +
+			(receiveBufferSize > 0 ? receiveBufferSize / 1024 + "KB/" + sendBufferSize / 1024 + "KB buffers, " : "") +
+			ageMs + "ms old";
+	}
+}
@@ -0,0 +1,26 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of the session table, published periodically by the NIO thread whilst
+ * anybody is reading snapshots. Readers on other threads get the latest published snapshot
+ * with a single volatile read, so they never block or slow down packet handling.
+ */
+public class FlowSnapshot {
+
+	public static final FlowSnapshot EMPTY = new FlowSnapshot(0, Collections.<FlowInfo>emptyList());
+
+	// When this snapshot was taken, in SystemClock.elapsedRealtime() milliseconds
+	public final long timestamp;
+
+	@NonNull public final List<FlowInfo> flows;
+
+	FlowSnapshot(long timestamp, @NonNull List<FlowInfo> flows) {
+		this.timestamp = timestamp;
+		this.flows = Collections.unmodifiableList(flows);
+	}
+}
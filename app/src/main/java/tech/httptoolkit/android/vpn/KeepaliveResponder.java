@@ -0,0 +1,107 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+
+import static tech.httptoolkit.android.vpn.util.PacketUtil.getFlowKey;
+
+/**
+ * Answers TCP keepalive probes from the client on the VPN thread, without handing them to
+ * the NIO thread or touching the upstream socket at all.
+ *
+ * A keepalive probe is a bare ACK (perhaps with one garbage byte) one sequence number before
+ * the data we've received, which must be answered with an ACK (RFC 1122 4.2.3.6). Long-lived
+ * idle connections send these regularly. The first probe on a session is answered by the NIO
+ * thread as usual, which then publishes the ACK it sent here as a template, along with the
+ * sequence numbers it's valid for. Later probes that match exactly are answered by writing
+ * that same packet again.
+ *
+ * Templates are dropped as soon as the session sends anything else, so they only ever
+ * describe an idle session. Published & removed on the NIO thread, read on the VPN thread.
+ */
+public class KeepaliveResponder {
+
+	static final class Template {
+		final long recSequence;
+		final long sendNext;
+		final byte[] packet;
+
+		Template(long recSequence, long sendNext, byte[] packet) {
+			this.recSequence = recSequence;
+			this.sendNext = sendNext;
+			this.packet = packet;
+		}
+	}
+
+	// Sessions that have published a template. The session's template itself may since have
+	// been dropped, if it's sent anything else.
+	private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+
+	private final AtomicLong probesAnsweredLocally = new AtomicLong(0);
+	private final AtomicLong probesAnsweredByNio = new AtomicLong(0);
+
+	/**
+	 * @return true if this segment from the client looks like a keepalive probe for the session
+	 */
+	static boolean isProbe(TCPHeader tcp, int dataLength, long recSequence) {
+		return tcp.isACK() && !tcp.isSYN() && !tcp.isFIN() && !tcp.isRST() &&
+			dataLength <= 1 &&
+			(int) (tcp.getSequenceNumber() - (recSequence - 1)) == 0;
+	}
+
+	/**
+	 * Publish the ACK just sent in reply to a keepalive probe, so later probes can be answered
+	 * here. NIO thread only.
+	 */
+	void publish(@NonNull Session session, @NonNull byte[] ackPacket) {
+		probesAnsweredByNio.incrementAndGet();
+		session.setKeepaliveTemplate(
+			new Template(session.getRecSequence(), session.getSendNext(), ackPacket)
+		);
+		sessions.put(getFlowKey(session.getDestIp(), session.getDestPort(), session.getSourcePort()), session);
+	}
+
+	/**
+	 * Forget a closed session. NIO thread only.
+	 */
+	void remove(@NonNull Session session) {
+		if (sessions.isEmpty()) return;
+		sessions.remove(getFlowKey(session.getDestIp(), session.getDestPort(), session.getSourcePort()), session);
+	}
+
+	/**
+	 * Answer this packet from the client directly, if it's a keepalive probe for an idle session
+	 * with a published template. Runs on the VPN thread.
+	 * @return true if the packet was answered, and needs no further handling
+	 */
+	boolean tryAnswer(IPv4Header ip, TCPHeader tcp, int dataLength, ClientPacketWriter writer) {
+		if (sessions.isEmpty() || dataLength > 1 || !tcp.isACK()) return false;
+
+		Session session = sessions.get(
+			getFlowKey(ip.getDestinationIP(), tcp.getDestinationPort(), tcp.getSourcePort())
+		);
+		if (session == null || session.getSourceIp() != ip.getSourceIP()) return false;
+
+		Template template = session.getKeepaliveTemplate();
+		if (
+			template == null ||
+			!isProbe(tcp, dataLength, template.recSequence) ||
+			(int) (tcp.getAckNumber() - template.sendNext) != 0
+		) return false;
+
+		writer.write(template.packet);
+		probesAnsweredLocally.incrementAndGet();
+		return true;
+	}
+
+	@NonNull
+	public String describe() {
+		return "Keepalive probes: " + probesAnsweredLocally.get() + " answered on the VPN thread, " +
+			probesAnsweredByNio.get() + " by the NIO thread, " + sessions.size() + " sessions with templates";
+	}
+}
@@ -0,0 +1,84 @@
+package tech.httptoolkit.android.vpn;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static tech.httptoolkit.android.vpn.util.PacketUtil.getFlowKey;
+
+/**
+ * A TIME_WAIT-style table of recently closed TCP flows. Late packets for these flows (e.g.
+ * retransmitted FINs, or final ACKs that race the close) can then be answered or dropped
+ * cheaply, rather than treated as packets for unknown sessions.
+ *
+ * Entries are compact (keyed by a packed long, not a string) and time-bounded: they expire
+ * after LINGER_TIME_MS, and the table never holds more than MAX_ENTRIES, dropping the oldest
+ * flows first. Only used on the NIO thread.
+ */
+class LingeringFlows {
+
+	// Far shorter than a real TIME_WAIT (2 * MSL), as our link to the client is local
+	static final long LINGER_TIME_MS = 30 * 1000;
+	static final int MAX_ENTRIES = 4096;
+
+	static class Flow {
+		final int sourceIp;
+		final long expiresAt;
+
+		Flow(int sourceIp, long expiresAt) {
+			this.sourceIp = sourceIp;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Insertion ordered, and every entry lives equally long, so the eldest always expires first
+	private final LinkedHashMap<Long, Flow> flows = new LinkedHashMap<>();
+
+	void add(Session session) {
+		long now = SystemClock.elapsedRealtime();
+		expire(now);
+
+		Long key = getFlowKey(session.getDestIp(), session.getDestPort(), session.getSourcePort());
+		flows.remove(key); // Re-added at the end, to keep the table in expiry order
+		flows.put(key, new Flow(session.getSourceIp(), now + LINGER_TIME_MS));
+
+		if (flows.size() > MAX_ENTRIES) {
+			Iterator<Long> iterator = flows.keySet().iterator();
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	@Nullable
+	Flow get(int destIp, int destPort, int sourceIp, int sourcePort) {
+		if (flows.isEmpty()) return null;
+		expire(SystemClock.elapsedRealtime());
+
+		Flow flow = flows.get(getFlowKey(destIp, destPort, sourcePort));
+		if (flow == null || flow.sourceIp != sourceIp) return null;
+		return flow;
+	}
+
+	void remove(int destIp, int destPort, int sourceIp, int sourcePort) {
+		if (flows.isEmpty()) return;
+
+		Long key = getFlowKey(destIp, destPort, sourcePort);
+		Flow flow = flows.get(key);
+		if (flow != null && flow.sourceIp == sourceIp) flows.remove(key);
+	}
+
+	int size() {
+		return flows.size();
+	}
+
+	private void expire(long now) {
+		Iterator<Flow> iterator = flows.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().expiresAt > now) break;
+			iterator.remove();
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package tech.httptoolkit.android.vpn;
+
+/**
+ * Thrown when we try to send the client a packet that's larger than it can accept. That's
+ * always a bug in how the packet was sized, so the session that sent it is aborted, but the
+ * rest of the engine carries on.
+ */
+public class PacketTooLargeException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public PacketTooLargeException(int size, int maxSize) {
+		super("Packet too large: " + size + " bytes, limit is " + maxSize);
+	}
+}
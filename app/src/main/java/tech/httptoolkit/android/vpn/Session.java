@@ -16,29 +16,72 @@
 
 package tech.httptoolkit.android.vpn;
 
-import android.util.Log;
-
-import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.buffer.ChunkedBuffer;
+import tech.httptoolkit.android.vpn.buffer.ReassemblyBuffer;
 import tech.httptoolkit.android.vpn.socket.ICloseSession;
-import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
-import tech.httptoolkit.android.vpn.transport.udp.UDPHeader;
+import tech.httptoolkit.android.vpn.socket.UdpSocketPool;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayDeque;
 
 /**
  * store information about a socket connection from a VPN client.
  * Each session is used by background worker to server request from client.
+ *
+ * Sessions are kept deliberately small, so we can track very large numbers of them: we store
+ * only the primitive state required to build replies (addresses, ports, sequence numbers,
+ * timestamps) rather than copies of the client's headers, and the data buffers are only
+ * created when a session first needs them.
+ *
+ * Sessions are owned by the NIO thread: they're only created, read & modified there (see
+ * SocketNIODataService), so none of this state requires locking.
  * @author Borey Sao
  * Date: May 19, 2014
  */
 public class Session {
-	private final String TAG = "Session";
 
+	// The most client data we'll buffer for a session before it's written upstream. This is the
+	// receive window we advertise to the client when nothing is buffered, if the client supports
+	// window scaling. Without scaling, we're limited to the largest unscaled window.
+	public static final int MAX_RECEIVE_WINDOW = 256 * 1024;
+	public static final int MAX_UNSCALED_WINDOW = 0xFFFF;
+
+	// The most bytes of UDP datagrams we'll queue for one session, however many datagrams that is
+	public static final int MAX_QUEUED_DATAGRAM_BYTES = 256 * 1024;
+
+	// The window scale we offer in our SYN-ACK, enough to advertise MAX_RECEIVE_WINDOW
+	public static final int RECEIVE_WINDOW_SCALE = 3;
+
+	// The TCP default, used if the client doesn't specify an MSS
+	private static final int DEFAULT_MAX_SEGMENT_SIZE = 536;
+
+	// Retransmission timeout bounds & initial value (RFC 6298), in ms. Our minimum is well below
+	// the RFC's 1 second (as in Linux), since the link to the client is local & fast.
+	private static final int INITIAL_RETRANSMIT_TIMEOUT = 1000;
+	private static final int MIN_RETRANSMIT_TIMEOUT = 200;
+	private static final int MAX_RETRANSMIT_TIMEOUT = 60 * 1000;
+	private static final int CLOCK_GRANULARITY = 10;
+
+	// The persist timer's backoff limit, whilst probing a zero window (RFC 9293 3.8.6.1)
+	private static final int MAX_PERSIST_TIMEOUT = 60 * 1000;
+
+	// Delayed ACKs (RFC 1122 4.2.3.2): we ack at least every second data segment from the client,
+	// and otherwise within this delay, unless the ack can ride on data we send first. As in Linux,
+	// we use a short delay, since the link to the client is local.
+	private static final int DELAYED_ACK_TIMEOUT = 40;
+	private static final int DELAYED_ACK_MAX_SEGMENTS = 2;
+
+	// Rough estimate of the heap used by a session itself, its channel & its selection key,
+	// excluding buffered data. Used only for reporting.
+	private static final int ESTIMATED_BASE_FOOTPRINT = 512;
 	private AbstractSelectableChannel channel;
 
 	private final SessionProtocol protocol;
@@ -54,58 +97,157 @@ public class Session {
 	
 	//track ack we sent to client and waiting for ack back from client
 	private long sendUnack = 0;
-	private boolean isacked = false;//last packet was acked yet?
 	
 	//the next ack to send to client
 	private long sendNext = 0;
 	
+	//the receive window we last advertised to the client, in bytes
+	private int advertisedWindow = 0;
+
+	//shift applied to the receive windows we advertise, if window scaling was negotiated
+	private int receiveWindowScale = 0;
+
+	//the receive window last advertised by the client, in bytes (already scaled)
+	private int sendWindow = 0;
+
+	//shift applied to the client's advertised windows, if window scaling was negotiated
+	private int sendWindowScale = 0;
+
 	//sent by client during SYN inside tcp options
 	private int maxSegmentSize = 0;
+
+	//the MSS we offered the client, which also limits the segments we send it
+	private int localMaxSegmentSize = EngineConfig.FALLBACK_MAX_SEGMENT_SIZE;
+
+	//the client offered SACK in its SYN, and we accepted it in our SYN-ACK
+	private boolean selectiveAckPermitted = false;
+
+	//timestamps (RFC 7323) were negotiated, so every segment we send carries one
+	private boolean timestampsEnabled = false;
+
+	//the client's most recent timestamp, which we echo back to it (TS.Recent in RFC 7323)
+	private int recentTimestamp = 0;
 	
 	//indicate that 3-way handshake has been completed or not
 	private boolean isConnected = false;
+
+	//we're holding back our SYN-ACK until the upstream connection succeeds
+	private boolean synAckPending = false;
+
+	//when we give up on the upstream connection, if it's not connected by then
+	private long connectDeadline = 0; // 0 when no connect is pending
 	
-	//receiving buffer for storing data from remote host
-	private final ByteArrayOutputStream receivingStream;
-	
-	//sending buffer for storing data from vpn client to be send to destination host
-	private final ByteArrayOutputStream sendingStream;
-	
-	private boolean hasReceivedLastSegment = false;
+	//receiving buffer for storing data from remote host, created on first use
+	private ChunkedBuffer receivingStream = null;
 	
-	//last packet received from client
-	private IPv4Header lastIpHeader;
-	private TCPHeader lastTcpHeader;
-	private UDPHeader lastUdpHeader;
+	//sending buffer for storing data from vpn client to be send to destination host, created on first use
+	private ChunkedBuffer sendingStream = null;
+
+	//client data that arrived out of order, held until the gap before it is filled. Created on first use
+	private ReassemblyBuffer outOfOrderData = null;
 
-	//true when connection is about to be close
-	private boolean closingConnection = false;
+	//UDP only: datagrams from the client waiting to be sent upstream, one buffer per datagram so
+	//their boundaries are preserved. Created on first use
+	private ArrayDeque<ByteBuffer> datagramQueue = null;
+	private int queuedDatagramBytes = 0;
 	
+	//the upstream server has closed its side, so we'll send a FIN once all its data is sent
+	private boolean upstreamClosed = false;
+
 	//indicate data from client is ready for sending to destination
-	private volatile boolean isDataForSendingReady = false;
-	
-	//store data for retransmission
-	private byte[] unackData = null;
-	
-	//in ACK packet from client, if the previous packet was corrupted, client will send flag in options field
-	private boolean packetCorrupted = false;
-	
-	//track how many time a packet has been retransmitted => avoid loop
-	private int resendPacketCounter = 0;
+	private boolean isDataForSendingReady = false;
 	
-	private int timestampSender = 0;
-	private int timestampReplyto = 0;
+	//bytes at the front of receivingStream that have been sent to the client but not yet acked,
+	//kept there for retransmission
+	private int unackedLength = 0;
+
+	//we've sent our FIN to the client (it's at sequence sendNext - 1 until acked)
+	private boolean finSent = false;
+
+	//retransmission state, as in RFC 6298. Times are in ms, deadlines use elapsedRealtime.
+	private int smoothedRtt = -1; // -1 until the first RTT sample
+	private int rttVariance = 0;
+	private int retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT;
+	private long retransmitDeadline = 0; // 0 when no retransmission timer is running
+
+	//the segment being timed for an RTT sample, if any (only one at a time, as in Karn's algorithm)
+	private long rttSampleSequence = 0;
+	private long rttSampleStartTime = 0;
+
+	//retransmissions since the client last acked new data => avoid loop
+	private int consecutiveRetransmits = 0;
+	//total retransmissions for this session, for reporting
+	private int retransmitCount = 0;
+
+	private int duplicateAckCount = 0;
+
+	//after a retransmission, we're recovering until the client acks everything sent before it
+	private boolean inRecovery = false;
+	private long recoveryPoint = 0;
+
+	//data segments from the client that we haven't acked yet, and when we must ack them by
+	private int unackedSegments = 0;
+	private long delayedAckDeadline = 0; // 0 when no ack is pending
+
+	//when buffered client data should be flushed upstream, if it's not been flushed before then
+	private long uploadFlushDeadline = 0; // 0 when no flush is pending
+
+	//how long small upstream reads may be held for coalescing, and when held data must be sent
+	private int downloadCoalesceDelay = 0;
+	private long downloadFlushDeadline = 0; // 0 when no data is held
+	//the reads coalesced into the held data so far, for reporting
+	private int heldReads = 0;
+
+	//persist timer state, whilst the client's window is closed and we have data for it
+	private long persistDeadline = 0; // 0 when the persist timer isn't running
+	private int persistTimeout = 0;
+	private long zeroWindowSince = 0; // 0 unless the window is currently closed
+
+	//the deadline of this session's entry in the NIO thread's timer queue, or 0 if none
+	private long queuedTimerDeadline = 0;
+
+	//the ACK to answer keepalive probes with, whilst idle. Read by the VPN thread.
+	private volatile KeepaliveResponder.Template keepaliveTemplate = null;
 	
-	//indicate that vpn client has sent FIN flag and it has been acked
+	//indicate that vpn client has sent FIN flag and it has been acked, so it won't send more data
 	private boolean ackedToFin = false;
+
+	//we've shut down output to the upstream server, after passing on all the client's data
+	private boolean upstreamOutputShutdown = false;
 	
 	//closing session and aborting connection, will be done by background task
-	private volatile boolean abortingConnection = false;
+	private boolean abortingConnection = false;
 	
 	private SelectionKey selectionkey = null;
+
+	//UDP only: the shared socket this session sends through, if it's pooled. Pooled sessions
+	//have no selection key of their own, and their socket's key is shared (see UdpSocketPool)
+	private UdpSocketPool.PooledSocket pooledSocket = null;
 	
 	public long connectionStartTime = 0;
 
+	// In SystemClock.elapsedRealtime() milliseconds
+	private final long createdAt = SystemClock.elapsedRealtime();
+
+	// Upstream socket buffer sizes we've chosen, or 0 if not chosen yet (see SocketBufferTuner)
+	private int socketReceiveBufferSize = 0;
+	private int socketSendBufferSize = 0;
+
+	// The upstream connection's round trip time, estimated from its connect time, in ms
+	private int upstreamRtt = 0;
+
+	// The current throughput sample: when it started, and the byte totals at that point
+	private long throughputSampleStart = 0;
+	private long throughputSampleBytesIn = 0;
+	private long throughputSampleBytesOut = 0;
+
+	// Totals for reporting: bytes read from the remote host, and bytes written to it
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+
+	// The address we connected to instead of the real destination, if redirected
+	private InetSocketAddress redirectTarget = null;
+
 	private final ICloseSession sessionCloser;
 	
 	Session(
@@ -116,9 +258,6 @@ public class Session {
 		int destinationPort,
 		ICloseSession sessionCloser
 	) {
-		receivingStream = new ByteArrayOutputStream();
-		sendingStream = new ByteArrayOutputStream();
-
 		this.protocol = protocol;
 		this.sourceIp = sourceIp;
 		this.sourcePort = sourcePort;
@@ -129,72 +268,548 @@ public class Session {
 	}
 
 	/**
-	 * append more data
+	 * append more data. Consumes all remaining bytes in the given buffer.
 	 * @param data Data
 	 */
-	public synchronized void addReceivedData(byte[] data){
-		try {
-			receivingStream.write(data);
-		} catch (IOException e) {
-			Log.e(TAG, e.toString());
-		}
+	public void addReceivedData(ByteBuffer data){
+		if (receivingStream == null) receivingStream = new ChunkedBuffer();
+		receivingStream.write(data);
 	}
 
 	/**
-	 * get all data received in the buffer and empty it.
-	 * @return byte[]
+	 * copy received data into a packet for the client, without consuming it. The buffer starts
+	 * at sendUnack: everything before that has been acked and released.
+	 * @param offset Offset of the data from sendUnack
 	 */
-	public synchronized byte[] getReceivedData(int maxSize){
-		byte[] data = receivingStream.toByteArray();
-		receivingStream.reset();
-		if(data.length > maxSize){
-			byte[] small = new byte[maxSize];
-			System.arraycopy(data, 0, small, 0, maxSize);
-			int len = data.length - maxSize;
-			receivingStream.write(data, maxSize, len);
-			data = small;
-		}
-		return data;
+	public void copyReceivedData(int offset, byte[] dst, int dstOffset, int length){
+		receivingStream.peek(offset, dst, dstOffset, length);
+	}
+
+	/**
+	 * record that the next length bytes of received data have been sent to the client. The
+	 * data stays buffered (for retransmission) until acked, and counts as unacked from now on.
+	 */
+	public void markDataSent(int length){
+		unackedLength += length;
 	}
 
 	/**
-	 * buffer has more data for vpn client
+	 * @return the amount of received data that hasn't been sent to the client yet
+	 */
+	public int getUnsentDataSize(){
+		return receivingStream == null ? 0 : receivingStream.size() - unackedLength;
+	}
+
+	/**
+	 * @return the amount of data sent to the client but not yet acked
+	 */
+	public int getUnackedDataSize(){
+		return unackedLength;
+	}
+
+	/**
+	 * buffer has data for vpn client, either unsent, or sent and awaiting an ack
 	 * @return boolean
 	 */
 	public boolean hasReceivedData(){
-		return receivingStream.size() > 0;
+		return receivingStream != null && !receivingStream.isEmpty();
+	}
+
+	/**
+	 * buffer has data for vpn client that hasn't been sent yet
+	 * @return boolean
+	 */
+	public boolean hasUnsentData(){
+		return receivingStream != null && receivingStream.size() > unackedLength;
+	}
+
+	/**
+	 * whether we should read more data from upstream right now. For TCP, we don't while the
+	 * client's window is closed, or any previously read data is still waiting for it to open (or
+	 * once upstream has closed). Reads that are only being held to coalesce them don't count.
+	 * UDP replies are passed straight to the client, with no window, so can always be read.
+	 * @return boolean
+	 */
+	public boolean canReadUpstream(){
+		if (upstreamClosed) return false;
+		if (protocol != SessionProtocol.TCP) return true;
+		return sendWindow > 0 && (!hasUnsentData() || downloadFlushDeadline != 0);
+	}
+
+	/**
+	 * whether there's anything left to do for the download direction when the client acks
+	 * data: unsent data, or an upstream close (so a FIN to send, or to wait on the ack for).
+	 * @return boolean
+	 */
+	public boolean hasPendingDownload(){
+		return upstreamClosed || hasUnsentData();
+	}
+
+	/**
+	 * handle an ack from the client that acknowledges new data: drop the acked data from our
+	 * retransmission buffer, take an RTT sample if it covers the segment being timed, and
+	 * restart (or stop) the retransmission timer, as in RFC 6298 section 5.
+	 * @param ackNumber The client's ack number, which must be after sendUnack
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 */
+	public void onNewDataAcked(long ackNumber, long now){
+		int ackedLength = (int) (ackNumber - sendUnack);
+		// Acks may also cover our SYN or FIN, which aren't in the buffer
+		int ackedData = Math.min(ackedLength, unackedLength);
+		if (ackedData > 0) {
+			receivingStream.consume(ackedData);
+			unackedLength -= ackedData;
+		}
+
+		sendUnack = ackNumber;
+		duplicateAckCount = 0;
+		consecutiveRetransmits = 0;
+
+		if (rttSampleStartTime != 0 && PacketUtil.isSequenceAtOrAfter(ackNumber, rttSampleSequence)) {
+			addRttSample((int) (now - rttSampleStartTime));
+			rttSampleStartTime = 0;
+		}
+
+		retransmitDeadline = ((int) (sendNext - sendUnack) == 0) ? 0 : now + retransmitTimeout;
+	}
+
+	/**
+	 * update the smoothed RTT & retransmission timeout with a new RTT sample, as in RFC 6298
+	 * @param rtt The measured round trip time, in ms
+	 */
+	public void addRttSample(int rtt){
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+
+		retransmitTimeout = Math.min(MAX_RETRANSMIT_TIMEOUT, Math.max(MIN_RETRANSMIT_TIMEOUT,
+			smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance)));
+	}
+
+	/**
+	 * start timing a segment for an RTT sample, unless one is already being timed or the
+	 * session gets its samples from timestamps instead
+	 * @param endSequence The sequence number just after the segment
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 */
+	public void startRttSample(long endSequence, long now){
+		// With timestamps, every ack provides a sample, so there's no need to time segments
+		if (timestampsEnabled || rttSampleStartTime != 0) return;
+		rttSampleSequence = endSequence;
+		rttSampleStartTime = now;
+	}
+
+	/**
+	 * record a retransmission. Per Karn's algorithm, this also cancels any RTT sample in
+	 * progress, since an ack can no longer be matched to a single transmission.
+	 */
+	public void onRetransmit(){
+		consecutiveRetransmits++;
+		retransmitCount++;
+		rttSampleStartTime = 0;
+	}
+
+	/**
+	 * double the retransmission timeout, after the retransmission timer expires (RFC 6298 5.5)
+	 */
+	public void backOffRetransmitTimeout(){
+		retransmitTimeout = Math.min(MAX_RETRANSMIT_TIMEOUT, retransmitTimeout * 2);
+	}
+
+	/**
+	 * the earliest deadline of any of this session's timers, or 0 if none are running
+	 * @return long
+	 */
+	public long getNextTimerDeadline(){
+		return earliestDeadline(
+			earliestDeadline(earliestDeadline(retransmitDeadline, persistDeadline), connectDeadline),
+			earliestDeadline(earliestDeadline(delayedAckDeadline, uploadFlushDeadline),
+				downloadFlushDeadline)
+		);
+	}
+
+	/**
+	 * start the persist timer, if it's not running already: the client's window is closed, so we
+	 * need to probe it, in case the ack that reopens it is lost. Starts from the current RTO.
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 * @return true if the timer was started, false if it was already running
+	 */
+	public boolean startPersistTimer(long now){
+		if (persistDeadline != 0) return false;
+		if (zeroWindowSince == 0) zeroWindowSince = now;
+		persistTimeout = retransmitTimeout;
+		persistDeadline = now + persistTimeout;
+		return true;
+	}
+
+	/**
+	 * restart the persist timer after a window probe, with exponential backoff
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 */
+	public void backOffPersistTimer(long now){
+		persistTimeout = Math.min(MAX_PERSIST_TIMEOUT, persistTimeout * 2);
+		persistDeadline = now + persistTimeout;
+	}
+
+	/**
+	 * stop the persist timer, because the window has opened, or there's nothing left to send
+	 */
+	public void stopPersistTimer(){
+		persistDeadline = 0;
+		zeroWindowSince = 0;
+	}
+
+	public long getPersistDeadline(){
+		return persistDeadline;
+	}
+
+	/**
+	 * @return when the client's window closed, or 0 if it's not currently closed
+	 */
+	public long getZeroWindowSince(){
+		return zeroWindowSince;
+	}
+
+	private static long earliestDeadline(long a, long b){
+		if (a == 0) return b;
+		if (b == 0) return a;
+		return Math.min(a, b);
+	}
+
+	/**
+	 * record a data segment received from the client, which we need to ack
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 * @return true if it should be acked immediately, or false if the ack can be delayed
+	 */
+	public boolean onDataReceived(long now){
+		unackedSegments++;
+		if (unackedSegments >= DELAYED_ACK_MAX_SEGMENTS) return true;
+
+		if (delayedAckDeadline == 0) delayedAckDeadline = now + DELAYED_ACK_TIMEOUT;
+		return false;
+	}
+
+	/**
+	 * record that we've sent the client a packet carrying our latest ack, which it will process.
+	 * That covers data segments too, but not resets or out-of-window probes.
+	 */
+	public void onAckSent(){
+		unackedSegments = 0;
+		delayedAckDeadline = 0;
+		onPacketSent();
+	}
+
+	/**
+	 * record that we've sent the client any packet at all in this session
+	 */
+	public void onPacketSent(){
+		// Whatever we're sending, the session isn't idle, so any keepalive answer is outdated
+		if (keepaliveTemplate != null) keepaliveTemplate = null;
+	}
+
+	public long getDelayedAckDeadline(){
+		return delayedAckDeadline;
+	}
+
+	public long getUploadFlushDeadline(){
+		return uploadFlushDeadline;
+	}
+
+	public void setUploadFlushDeadline(long uploadFlushDeadline){
+		this.uploadFlushDeadline = uploadFlushDeadline;
+	}
+
+	public int getDownloadCoalesceDelay(){
+		return downloadCoalesceDelay;
+	}
+
+	void setDownloadCoalesceDelay(int downloadCoalesceDelay){
+		this.downloadCoalesceDelay = downloadCoalesceDelay;
+	}
+
+	public long getDownloadFlushDeadline(){
+		return downloadFlushDeadline;
+	}
+
+	/**
+	 * start holding small upstream reads, until the given deadline or a full segment
+	 */
+	public void setDownloadFlushDeadline(long downloadFlushDeadline){
+		this.downloadFlushDeadline = downloadFlushDeadline;
+	}
+
+	/**
+	 * record another upstream read held for coalescing
+	 */
+	public void onReadHeld(){
+		heldReads++;
+	}
+
+	/**
+	 * stop holding upstream reads, so everything unsent goes out in the next burst
+	 * @return the number of reads that were held
+	 */
+	public int stopHoldingReads(){
+		int reads = heldReads;
+		heldReads = 0;
+		downloadFlushDeadline = 0;
+		return reads;
+	}
+
+	/**
+	 * how many more bytes we can send to the client right now: its advertised window, less the
+	 * data we've sent that it hasn't acked yet.
+	 * @return int
+	 */
+	public int getSendWindowAvailable(){
+		int inFlight = (int) (sendNext - sendUnack); // Modulo 2^32, as sequence numbers wrap
+		return Math.max(0, sendWindow - inFlight);
 	}
 
 	/**
 	 * set data to be sent to destination server
 	 * @param data Data to be sent
-	 * @return boolean Success or not
+	 * @return int Number of bytes added
 	 */
-	public synchronized int setSendingData(ByteBuffer data) {
+	public int setSendingData(ByteBuffer data) {
 		final int remaining = data.remaining();
-		sendingStream.write(data.array(), data.position(), data.remaining());
+		if (sendingStream == null) sendingStream = new ChunkedBuffer();
+		sendingStream.write(data);
 		return remaining;
 	}
 
-	int getSendingDataSize(){
-		return sendingStream.size();
+	public int getSendingDataSize(){
+		return sendingStream == null ? 0 : sendingStream.size();
 	}
 
 	/**
-	 * dequeue data for sending to server
-	 * @return byte[]
+	 * queue a datagram from the client to send upstream, keeping its boundaries intact. The
+	 * buffer is queued as is, so it must not be reused by the caller.
+	 * @param datagram The datagram's payload
+	 * @param maxDepth The most datagrams that may be queued at once
+	 * @return false if the queue was full, so the datagram was dropped
 	 */
-	public synchronized byte[] getSendingData(){
-		byte[] data = sendingStream.toByteArray();
-		sendingStream.reset();
-		return data;
+	public boolean queueDatagram(ByteBuffer datagram, int maxDepth){
+		if (datagramQueue == null) datagramQueue = new ArrayDeque<>();
+		if (
+			datagramQueue.size() >= maxDepth ||
+			queuedDatagramBytes + datagram.remaining() > MAX_QUEUED_DATAGRAM_BYTES
+		) {
+			return false;
+		}
+
+		// Sliced, so each queued buffer's limit is exactly its datagram's length
+		datagramQueue.add(datagram.slice());
+		queuedDatagramBytes += datagram.remaining();
+		return true;
 	}
+
+	/**
+	 * @return the oldest queued datagram, without dequeuing it, or null if there are none
+	 */
+	@Nullable
+	public ByteBuffer peekDatagram(){
+		return datagramQueue == null ? null : datagramQueue.peek();
+	}
+
+	/**
+	 * dequeue the oldest queued datagram, once it's been sent
+	 */
+	public void removeDatagram(){
+		ByteBuffer datagram = datagramQueue.poll();
+		if (datagram != null) queuedDatagramBytes -= datagram.limit();
+	}
+
+	public int getQueuedDatagramBytes(){
+		return queuedDatagramBytes;
+	}
+
+	/**
+	 * get zero-copy views of the data waiting to be sent to the server. Nothing is dequeued
+	 * until consumeSendingData is called with the number of bytes actually sent.
+	 * @return ByteBuffer[]
+	 */
+	public ByteBuffer[] getSendingDataSlices(){
+		if (sendingStream == null) return new ByteBuffer[0];
+		return sendingStream.slices(sendingStream.size());
+	}
+
+	/**
+	 * dequeue data that has been successfully sent to the server
+	 * @param length Number of bytes sent
+	 */
+	public void consumeSendingData(int length){
+		if (length == 0) return;
+		sendingStream.consume(length);
+	}
+
 	/**
 	 * buffer contains data for sending to destination server
 	 * @return boolean
 	 */
 	public boolean hasDataToSend(){
-		return sendingStream.size() > 0;
+		return (sendingStream != null && !sendingStream.isEmpty()) ||
+			(datagramQueue != null && !datagramQueue.isEmpty());
+	}
+
+	/**
+	 * how much more data we can accept from the client right now, given what's still buffered
+	 * waiting to be sent upstream
+	 * @return int
+	 */
+	public int getReceiveWindow(){
+		int maxWindow = receiveWindowScale > 0 ? MAX_RECEIVE_WINDOW : MAX_UNSCALED_WINDOW;
+		int window = Math.max(0, maxWindow - getSendingDataSize());
+		// Scaled windows can only be advertised in multiples of the scale
+		return (window >> receiveWindowScale) << receiveWindowScale;
+	}
+
+	/**
+	 * get the current receive window, recording it as the window we've advertised to the client.
+	 * Used when building each packet sent to the client.
+	 * @return the value for the TCP header's window field, i.e. after scaling
+	 */
+	public int advertiseReceiveWindow(){
+		advertisedWindow = getReceiveWindow();
+		return advertisedWindow >> receiveWindowScale;
+	}
+
+	/**
+	 * as advertiseReceiveWindow, but for our SYN-ACK, whose window is never scaled
+	 * @return the value for the TCP header's window field
+	 */
+	public int advertiseSynReceiveWindow(){
+		advertisedWindow = Math.min(getReceiveWindow(), MAX_UNSCALED_WINDOW);
+		return advertisedWindow;
+	}
+
+	/**
+	 * whether our receive window has grown enough since we last advertised it that the client
+	 * should be told, so it can send more. As in RFC 1122's receiver-side silly window syndrome
+	 * avoidance, we only announce increases of at least one segment or half the buffer.
+	 * @return boolean
+	 */
+	public boolean needsWindowUpdate(){
+		int segmentSize = getSendMaxSegmentSize();
+		int maxWindow = receiveWindowScale > 0 ? MAX_RECEIVE_WINDOW : MAX_UNSCALED_WINDOW;
+		int threshold = Math.min(segmentSize, maxWindow / 2);
+		return getReceiveWindow() - advertisedWindow >= threshold;
+	}
+
+	/**
+	 * total bytes currently buffered in this session, in both directions
+	 * @return int
+	 */
+	public int getBufferedBytes(){
+		return (receivingStream == null ? 0 : receivingStream.size()) + getSendingDataSize() +
+			(outOfOrderData == null ? 0 : outOfOrderData.size()) + queuedDatagramBytes;
+	}
+
+	/**
+	 * hold client data that arrived ahead of recSequence, until the gap before it is filled
+	 * @param sequence The sequence number of the start of the data
+	 * @return false if the data had to be dropped
+	 */
+	public boolean addOutOfOrderData(long sequence, ByteBuffer data){
+		if (outOfOrderData == null) outOfOrderData = new ReassemblyBuffer();
+		return outOfOrderData.add(sequence, data);
+	}
+
+	/**
+	 * take held out-of-order data that now continues from recSequence, if any
+	 * @return ByteBuffer, or null if there's none, or there's still a gap
+	 */
+	@Nullable
+	public ByteBuffer pollInOrderData(){
+		return outOfOrderData == null ? null : outOfOrderData.pollContiguous(recSequence);
+	}
+
+	public boolean hasOutOfOrderData(){
+		return outOfOrderData != null && !outOfOrderData.isEmpty();
+	}
+
+	/**
+	 * describe the out-of-order data we hold as SACK blocks for the client, if it permitted SACK
+	 * @param blocks Filled with start & end sequence number pairs
+	 * @return the number of blocks
+	 */
+	public int getSackBlocks(long[] blocks){
+		if (!selectiveAckPermitted || !hasOutOfOrderData()) return 0;
+		return outOfOrderData.getSackBlocks(blocks);
+	}
+
+	/**
+	 * estimated memory used by this session, including its buffers' capacity (which is off-heap)
+	 * @return int
+	 */
+	public int getFootprint(){
+		return ESTIMATED_BASE_FOOTPRINT +
+			(receivingStream == null ? 0 : receivingStream.getCapacity()) +
+			(sendingStream == null ? 0 : sendingStream.getCapacity());
+	}
+
+	/**
+	 * drop all buffered data, returning the buffer memory to the shared pool
+	 */
+	void releaseBuffers(){
+		unackedLength = 0;
+		retransmitDeadline = 0; // Closed sessions have no timers
+		delayedAckDeadline = 0;
+		uploadFlushDeadline = 0;
+		downloadFlushDeadline = 0;
+		persistDeadline = 0;
+		connectDeadline = 0;
+		if (receivingStream != null) receivingStream.release();
+		if (sendingStream != null) sendingStream.release();
+		if (outOfOrderData != null) outOfOrderData.clear();
+		if (datagramQueue != null) datagramQueue.clear();
+		queuedDatagramBytes = 0;
+	}
+
+	public void addBytesIn(long length) {
+		bytesIn += length;
+	}
+
+	public void addBytesOut(long length) {
+		bytesOut += length;
+	}
+
+	void setRedirectTarget(InetSocketAddress redirectTarget) {
+		this.redirectTarget = redirectTarget;
+	}
+
+	/**
+	 * build an immutable description of this session's current state, for display elsewhere
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 * @return FlowInfo
+	 */
+	FlowInfo toFlowInfo(long now) {
+		final FlowInfo.State state;
+		if (abortingConnection) {
+			state = FlowInfo.State.ABORTING;
+		} else if (ackedToFin || finSent) {
+			state = FlowInfo.State.CLOSING;
+		} else if (!isConnected) {
+			state = FlowInfo.State.CONNECTING;
+		} else {
+			state = FlowInfo.State.ESTABLISHED;
+		}
+
+		return new FlowInfo(
+			protocol,
+			sourceIp, sourcePort,
+			destIp, destPort,
+			state,
+			bytesIn, bytesOut,
+			retransmitCount,
+			socketReceiveBufferSize, socketSendBufferSize,
+			now - createdAt,
+			redirectTarget
+		);
 	}
 
 	public SessionProtocol getProtocol() {
@@ -209,7 +824,7 @@ public class Session {
 		return destPort;
 	}
 
-	long getSendUnack() {
+	public long getSendUnack() {
 		return sendUnack;
 	}
 
@@ -225,10 +840,88 @@ public class Session {
 		this.sendNext = sendNext;
 	}
 
+	int getSendWindow() {
+		return sendWindow;
+	}
+
+	void setSendWindow(int windowSize) {
+		this.sendWindow = windowSize << sendWindowScale;
+	}
+
+	/**
+	 * enable window scaling, once both sides have offered it (RFC 7323). The client's windows
+	 * are then scaled by its own offered shift, and ours by RECEIVE_WINDOW_SCALE.
+	 * @param sendWindowScale The shift offered by the client
+	 */
+	void enableWindowScaling(int sendWindowScale) {
+		this.sendWindowScale = sendWindowScale;
+		this.receiveWindowScale = RECEIVE_WINDOW_SCALE;
+	}
+
+	public int getReceiveWindowScale() {
+		return receiveWindowScale;
+	}
+
+	public boolean isSelectiveAckPermitted() {
+		return selectiveAckPermitted;
+	}
+
+	void setSelectiveAckPermitted(boolean selectiveAckPermitted) {
+		this.selectiveAckPermitted = selectiveAckPermitted;
+	}
+
+	public boolean isTimestampsEnabled() {
+		return timestampsEnabled;
+	}
+
+	/**
+	 * enable timestamps for the rest of the session, once the client has offered them
+	 * @param clientTimestamp The timestamp from the client's SYN
+	 */
+	void enableTimestamps(int clientTimestamp) {
+		this.timestampsEnabled = true;
+		this.recentTimestamp = clientTimestamp;
+	}
+
+	public int getRecentTimestamp() {
+		return recentTimestamp;
+	}
+
+	/**
+	 * record the timestamp from a client segment, if it should be echoed back. As in RFC 7323,
+	 * that's any non-decreasing timestamp on a segment that doesn't start beyond our last ack.
+	 * @param timestamp The segment's timestamp
+	 * @param sequence The segment's sequence number
+	 */
+	void updateRecentTimestamp(int timestamp, long sequence) {
+		if (
+			timestamp - recentTimestamp >= 0 &&
+			PacketUtil.isSequenceAtOrAfter(recSequence, sequence)
+		) {
+			recentTimestamp = timestamp;
+		}
+	}
+
 	public int getMaxSegmentSize() {
 		return maxSegmentSize;
 	}
 
+	/**
+	 * the largest segment the client can receive: its MSS, or the TCP default if it sent none
+	 * @return int
+	 */
+	public int getSendMaxSegmentSize() {
+		return maxSegmentSize > 0 ? maxSegmentSize : DEFAULT_MAX_SEGMENT_SIZE;
+	}
+
+	public int getLocalMaxSegmentSize() {
+		return localMaxSegmentSize;
+	}
+
+	public void setLocalMaxSegmentSize(int localMaxSegmentSize) {
+		this.localMaxSegmentSize = localMaxSegmentSize;
+	}
+
 	void setMaxSegmentSize(int maxSegmentSize) {
 		this.maxSegmentSize = maxSegmentSize;
 	}
@@ -241,6 +934,81 @@ public class Session {
 		this.isConnected = isConnected;
 	}
 
+	public boolean isSynAckPending() {
+		return synAckPending;
+	}
+
+	public void setSynAckPending(boolean synAckPending) {
+		this.synAckPending = synAckPending;
+	}
+
+	public long getConnectDeadline() {
+		return connectDeadline;
+	}
+
+	public void setConnectDeadline(long connectDeadline) {
+		this.connectDeadline = connectDeadline;
+	}
+
+	/**
+	 * @return the time this session was created, i.e. when we received the client's SYN, in
+	 * SystemClock.elapsedRealtime() milliseconds
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public int getSocketReceiveBufferSize() {
+		return socketReceiveBufferSize;
+	}
+
+	public int getSocketSendBufferSize() {
+		return socketSendBufferSize;
+	}
+
+	public void setSocketBufferSizes(int receiveBufferSize, int sendBufferSize) {
+		this.socketReceiveBufferSize = receiveBufferSize;
+		this.socketSendBufferSize = sendBufferSize;
+	}
+
+	public int getUpstreamRtt() {
+		return upstreamRtt;
+	}
+
+	public void setUpstreamRtt(int upstreamRtt) {
+		this.upstreamRtt = upstreamRtt;
+	}
+
+	public long getThroughputSampleStart() {
+		return throughputSampleStart;
+	}
+
+	public long getThroughputSampleBytesIn() {
+		return throughputSampleBytesIn;
+	}
+
+	public long getThroughputSampleBytesOut() {
+		return throughputSampleBytesOut;
+	}
+
+	/**
+	 * start a new throughput sample, from the current byte totals
+	 * @param now The current SystemClock.elapsedRealtime() time
+	 */
+	public void startThroughputSample(long now) {
+		this.throughputSampleStart = now;
+		this.throughputSampleBytesIn = bytesIn;
+		this.throughputSampleBytesOut = bytesOut;
+	}
+
 	public int getSourceIp() {
 		return sourceIp;
 	}
@@ -249,10 +1017,6 @@ public class Session {
 		return sourcePort;
 	}
 
-	void setAcked(boolean isacked) {
-		this.isacked = isacked;
-	}
-
 	public long getRecSequence() {
 		return recSequence;
 	}
@@ -269,68 +1033,108 @@ public class Session {
 		this.channel = channel;
 	}
 
-	public boolean hasReceivedLastSegment() {
-		return hasReceivedLastSegment;
+	public boolean isUpstreamClosed() {
+		return upstreamClosed;
+	}
+	public void setUpstreamClosed(boolean upstreamClosed) {
+		this.upstreamClosed = upstreamClosed;
 	}
-	public void setHasReceivedLastSegment(boolean hasReceivedLastSegment) {
-		this.hasReceivedLastSegment = hasReceivedLastSegment;
+
+	public boolean isDataForSendingReady() {
+		return isDataForSendingReady;
 	}
-	public synchronized IPv4Header getLastIpHeader() {
-		return lastIpHeader;
+	public void setDataForSendingReady(boolean isDataForSendingReady) {
+		this.isDataForSendingReady = isDataForSendingReady;
 	}
-	synchronized void setLastIpHeader(IPv4Header lastIpHeader) {
-		this.lastIpHeader = lastIpHeader;
+	public boolean isFinSent() {
+		return finSent;
 	}
-	public synchronized TCPHeader getLastTcpHeader() {
-		return lastTcpHeader;
+	public void setFinSent(boolean finSent) {
+		this.finSent = finSent;
 	}
-	synchronized void setLastTcpHeader(TCPHeader lastTcpHeader) {
-		this.lastTcpHeader = lastTcpHeader;
+
+	public int getRetransmitTimeout() {
+		return retransmitTimeout;
 	}
-	
-	public synchronized UDPHeader getLastUdpHeader() {
-		return lastUdpHeader;
+	public long getRetransmitDeadline() {
+		return retransmitDeadline;
 	}
-	synchronized void setLastUdpHeader(UDPHeader lastUdpHeader) {
-		this.lastUdpHeader = lastUdpHeader;
+	public void setRetransmitDeadline(long retransmitDeadline) {
+		this.retransmitDeadline = retransmitDeadline;
 	}
-	boolean isClosingConnection() {
-		return closingConnection;
+	public int getConsecutiveRetransmits() {
+		return consecutiveRetransmits;
 	}
-	void setClosingConnection(boolean closingConnection) {
-		this.closingConnection = closingConnection;
+	public int getRetransmitCount() {
+		return retransmitCount;
 	}
-	public boolean isDataForSendingReady() {
-		return isDataForSendingReady;
+	int incrementDuplicateAcks() {
+		return ++duplicateAckCount;
 	}
-	public void setDataForSendingReady(boolean isDataForSendingReady) {
-		this.isDataForSendingReady = isDataForSendingReady;
+	public boolean isInRecovery() {
+		return inRecovery;
 	}
-	public void setUnackData(byte[] unackData) {
-		this.unackData = unackData;
+	public void startRecovery() {
+		this.inRecovery = true;
+		this.recoveryPoint = sendNext;
 	}
-	
-	void setPacketCorrupted(boolean packetCorrupted) {
-		this.packetCorrupted = packetCorrupted;
+	void endRecovery() {
+		this.inRecovery = false;
 	}
-	public void setResendPacketCounter(int resendPacketCounter) {
-		this.resendPacketCounter = resendPacketCounter;
+	long getRecoveryPoint() {
+		return recoveryPoint;
 	}
-	public int getTimestampSender() {
-		return timestampSender;
+	KeepaliveResponder.Template getKeepaliveTemplate() {
+		return keepaliveTemplate;
 	}
-	void setTimestampSender(int timestampSender) {
-		this.timestampSender = timestampSender;
+	void setKeepaliveTemplate(KeepaliveResponder.Template keepaliveTemplate) {
+		this.keepaliveTemplate = keepaliveTemplate;
 	}
-	public int getTimestampReplyto() {
-		return timestampReplyto;
+	public long getQueuedTimerDeadline() {
+		return queuedTimerDeadline;
 	}
-	void setTimestampReplyto(int timestampReplyto) {
-		this.timestampReplyto = timestampReplyto;
+	public void setQueuedTimerDeadline(long queuedTimerDeadline) {
+		this.queuedTimerDeadline = queuedTimerDeadline;
 	}
 	boolean isAckedToFin() {
 		return ackedToFin;
 	}
+	void setAckedToFin(boolean ackedToFin) {
+		this.ackedToFin = ackedToFin;
+	}
+	public boolean isUpstreamOutputShutdown() {
+		return upstreamOutputShutdown;
+	}
+	public void setUpstreamOutputShutdown(boolean upstreamOutputShutdown) {
+		this.upstreamOutputShutdown = upstreamOutputShutdown;
+	}
+
+	/**
+	 * whether the client has closed its side, but we've not yet passed that on upstream, by
+	 * shutting down output once all its data is written
+	 * @return boolean
+	 */
+	public boolean isUpstreamShutdownPending() {
+		return ackedToFin && !upstreamOutputShutdown;
+	}
+
+	/**
+	 * whether the upload direction is done: the client sent FIN, and everything it sent before
+	 * that has been written upstream, followed by a shutdown of our output.
+	 * @return boolean
+	 */
+	public boolean isUploadFinished() {
+		return ackedToFin && upstreamOutputShutdown;
+	}
+
+	/**
+	 * whether the download direction is done: upstream closed, and the client has acked all
+	 * its data & our FIN.
+	 * @return boolean
+	 */
+	public boolean isDownloadFinished() {
+		return finSent && (int) (sendNext - sendUnack) == 0;
+	}
 
 	public boolean isAbortingConnection() {
 		return abortingConnection;
@@ -345,25 +1149,37 @@ public class Session {
 		this.selectionkey = selectionkey;
 	}
 
+	@Nullable
+	public UdpSocketPool.PooledSocket getPooledSocket() {
+		return pooledSocket;
+	}
+
+	public void setPooledSocket(@Nullable UdpSocketPool.PooledSocket pooledSocket) {
+		this.pooledSocket = pooledSocket;
+	}
+
 	public void cancelKey() {
-		synchronized (this.selectionkey) {
-			if (!this.selectionkey.isValid()) return;
-			this.selectionkey.cancel();
-		}
+		// A pooled session's socket (and its key) is shared, so it stays open
+		if (pooledSocket != null) return;
+		if (!this.selectionkey.isValid()) return;
+		this.selectionkey.cancel();
 	}
 
 	public void subscribeKey(int OP) {
-		synchronized (this.selectionkey) {
-			if (!this.selectionkey.isValid()) return;
-			this.selectionkey.interestOps(this.selectionkey.interestOps() | OP);
+		if (pooledSocket != null) {
+			// Pooled sockets always read, and write for each session that asks
+			if ((OP & SelectionKey.OP_WRITE) != 0) pooledSocket.requestWrite(this);
+			return;
 		}
+		if (!this.selectionkey.isValid()) return;
+		this.selectionkey.interestOps(this.selectionkey.interestOps() | OP);
 	}
 
 	public void unsubscribeKey(int OP) {
-		synchronized (this.selectionkey) {
-			if (!this.selectionkey.isValid()) return;
-			this.selectionkey.interestOps(this.selectionkey.interestOps() & ~OP);
-		}
+		// Pooled sockets stop writing by themselves, once no session has anything to write
+		if (pooledSocket != null) return;
+		if (!this.selectionkey.isValid()) return;
+		this.selectionkey.interestOps(this.selectionkey.interestOps() & ~OP);
 	}
 
 	public void closeSession() {
@@ -24,7 +24,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import tech.httptoolkit.android.vpn.buffer.BufferBudget;
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService;
@@ -38,12 +40,17 @@ import tech.httptoolkit.android.vpn.transport.udp.UDPPacketFactory;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import androidx.annotation.NonNull;
+import android.os.SystemClock;
 import android.util.Log;
 
 import tech.httptoolkit.android.TagKt;
 
 /**
  * handle VPN client request and response. it create a new session for each VPN client.
+ *
+ * Packets are parsed on the VPN thread, but all TCP & UDP handling that touches session state
+ * is posted to and run on the NIO thread, which owns every session. ICMP involves no sessions,
+ * so it's handled separately.
  * @author Borey Sao
  * Date: May 22, 2014
  */
@@ -53,13 +60,46 @@ public class SessionHandler {
 	private final SessionManager manager;
 	private final SocketNIODataService nioService;
 	private final ClientPacketWriter writer;
+	private final BufferBudget budget;
+	private final EngineConfig config;
+	private final KeepaliveResponder keepalives;
 
 	private final ExecutorService pingThreadpool;
 
-	public SessionHandler(SessionManager manager, SocketNIODataService nioService, ClientPacketWriter writer) {
+	// Limits the RSTs we send for packets on unknown & closed flows, so that a burst of stray
+	// packets (e.g. after many connections close at once) can't flood the client. NIO thread only.
+	private static final int MAX_RSTS_PER_SECOND = 50;
+	private int rstAllowance = MAX_RSTS_PER_SECOND;
+	private long rstAllowanceResetTime = 0;
+
+	// Counts of how we've handled packets that arrived for flows with no session
+	private final AtomicLong lateAcksSent = new AtomicLong(0);
+	private final AtomicLong latePacketsDropped = new AtomicLong(0);
+	private final AtomicLong strayRstsSent = new AtomicLong(0);
+	private final AtomicLong strayRstsSuppressed = new AtomicLong(0);
+
+	// Counts of client data that arrived out of order or duplicated
+	private final AtomicLong outOfOrderSegmentsHeld = new AtomicLong(0);
+	private final AtomicLong outOfOrderSegmentsDropped = new AtomicLong(0);
+	private final AtomicLong duplicateSegments = new AtomicLong(0);
+
+	// Counts of client UDP datagrams queued to send upstream, or dropped because the queue was full
+	private final AtomicLong datagramsQueued = new AtomicLong(0);
+	private final AtomicLong datagramsDropped = new AtomicLong(0);
+
+	public SessionHandler(
+		SessionManager manager,
+		SocketNIODataService nioService,
+		ClientPacketWriter writer,
+		BufferBudget budget,
+		EngineConfig config
+	) {
 		this.manager = manager;
 		this.nioService = nioService;
 		this.writer = writer;
+		this.budget = budget;
+		this.config = config;
+		this.keepalives = manager.getKeepaliveResponder();
 
 		// Pool of threads to synchronously proxy ICMP ping requests in the background. We need to
 		// carefully limit these, or a ping flood can cause us big big problems.
@@ -72,21 +112,51 @@ public class SessionHandler {
 	}
 
 	/**
-	 * Handle unknown raw IP packet data
+	 * Handle unknown raw IP packet data. The buffer may be reused as soon as this returns.
 	 *
 	 * @param stream ByteBuffer to be read
 	 */
-	public void handlePacket(@NonNull ByteBuffer stream) throws PacketHeaderException, IOException {
-		final byte[] rawPacket = new byte[stream.limit()];
-		stream.get(rawPacket, 0, stream.limit());
-		stream.rewind();
-
+	public void handlePacket(@NonNull ByteBuffer stream) throws PacketHeaderException {
 		final IPv4Header ipHeader = IPPacketFactory.createIPv4Header(stream);
 
 		if (ipHeader.getProtocol() == 6) {
-			handleTCPPacket(stream, ipHeader);
+			final TCPHeader tcpHeader = TCPPacketFactory.createTCPHeader(stream);
+
+			if (!tcpHeader.isSYN() && !tcpHeader.isACK() && !tcpHeader.isFIN() && !tcpHeader.isRST()) {
+				logUnknownTCPPacket(ipHeader, tcpHeader, stream);
+				return;
+			}
+
+			// Keepalives for idle sessions are answered right here, if we can
+			if (keepalives.tryAnswer(ipHeader, tcpHeader, stream.remaining(), writer)) return;
+
+			final ByteBuffer payload = copyPayload(stream);
+			nioService.post(new SocketNIODataService.Task() {
+				@Override
+				public void run() throws IOException {
+					try {
+						handleTCPPacket(payload, ipHeader, tcpHeader);
+					} catch (PacketTooLargeException e) {
+						Session session = manager.getSession(
+							SessionProtocol.TCP,
+							ipHeader.getDestinationIP(), tcpHeader.getDestinationPort(),
+							ipHeader.getSourceIP(), tcpHeader.getSourcePort()
+						);
+						if (session == null) throw e;
+						nioService.abortSession(session, e);
+					}
+				}
+			});
 		} else if (ipHeader.getProtocol() == 17) {
-			handleUDPPacket(stream, ipHeader);
+			final UDPHeader udpHeader = UDPPacketFactory.createUDPHeader(stream);
+
+			final ByteBuffer payload = copyPayload(stream);
+			nioService.post(new SocketNIODataService.Task() {
+				@Override
+				public void run() throws IOException {
+					handleUDPPacket(payload, ipHeader, udpHeader);
+				}
+			});
 		} else if (ipHeader.getProtocol() == 1) {
 			handleICMPPacket(stream, ipHeader);
 		} else {
@@ -94,9 +164,27 @@ public class SessionHandler {
 		}
 	}
 
-	private void handleUDPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader) throws PacketHeaderException, IOException {
-		UDPHeader udpheader = UDPPacketFactory.createUDPHeader(clientPacketData);
+	/**
+	 * Copy the remaining data from the VPN's packet buffer, so it can be handled on the NIO
+	 * thread after that buffer has been reused.
+	 */
+	private static ByteBuffer copyPayload(ByteBuffer stream) {
+		ByteBuffer payload = ByteBuffer.allocate(stream.remaining());
+		payload.put(stream);
+		payload.flip();
+		return payload;
+	}
+
+	private void logUnknownTCPPacket(IPv4Header ipHeader, TCPHeader tcpheader, ByteBuffer packet) {
+		Log.d(TAG,"unknown TCP flag");
+		String str1 = PacketUtil.getOutput(ipHeader, tcpheader, packet.array());
+		Log.d(TAG,">>>>>>>> Received from client <<<<<<<<<<");
+		Log.d(TAG,str1);
+		Log.d(TAG,">>>>>>>>>>>>>>>>>>>end receiving from client>>>>>>>>>>>>>>>>>>>>>");
+	}
 
+	// Runs on the NIO thread
+	private void handleUDPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader, UDPHeader udpheader) throws IOException {
 		Session session = manager.getSession(
 			SessionProtocol.UDP,
 			ipHeader.getDestinationIP(),
@@ -114,25 +202,29 @@ public class SessionHandler {
 			);
 		}
 
-		synchronized (session) {
-			session.setLastIpHeader(ipHeader);
-			session.setLastUdpHeader(udpheader);
-			manager.addClientData(clientPacketData, session);
-			session.setDataForSendingReady(true);
+		// Each datagram is queued as-is, so boundaries are kept even if several arrive before
+		// the socket is next writable. The payload was already copied from the VPN's buffer.
+		if (clientPacketData.hasRemaining()) {
+			if (session.queueDatagram(clientPacketData, config.udpQueueDepth)) {
+				datagramsQueued.incrementAndGet();
+			} else {
+				// Tail drop, like any congested router. UDP senders must expect loss anyway.
+				datagramsDropped.incrementAndGet();
+			}
+		}
+		session.setDataForSendingReady(true);
 
-			// We don't register the session until it's fully populated (as above)
-			if (newSession) nioService.registerSession(session);
+		// We don't register the session until it's fully populated (as above)
+		if (newSession) nioService.registerSession(session);
 
-			// Ping the NIO thread to write this, when the session is next writable
-			session.subscribeKey(SelectionKey.OP_WRITE);
-			nioService.refreshSelect(session);
-		}
+		// Write this upstream when the session is next writable
+		session.subscribeKey(SelectionKey.OP_WRITE);
 
 		manager.keepSessionAlive(session);
 	}
 
-	private void handleTCPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader) throws PacketHeaderException, IOException {
-		TCPHeader tcpheader = TCPPacketFactory.createTCPHeader(clientPacketData);
+	// Runs on the NIO thread
+	private void handleTCPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader, TCPHeader tcpheader) throws IOException {
 		int dataLength = clientPacketData.limit() - clientPacketData.position();
 		int sourceIP = ipHeader.getSourceIP();
 		int destinationIP = ipHeader.getDestinationIP();
@@ -147,79 +239,164 @@ public class SessionHandler {
 			Session session = manager.getSessionByKey(key);
 
 			if (session == null) {
-				Log.w(TAG, "Ack for unknown session: " + key);
-				if (tcpheader.isFIN()) {
-					sendLastAck(ipHeader, tcpheader);
-				} else if (!tcpheader.isRST()) {
-					sendRstPacket(ipHeader, tcpheader, dataLength);
-				}
+				handleStrayPacket(ipHeader, tcpheader, dataLength);
+				return;
+			}
+
+			if (session.isTimestampsEnabled() && tcpheader.hasTimeStamp()) {
+				session.updateRecentTimestamp(tcpheader.getTimeStampSender(), tcpheader.getSequenceNumber());
+			}
 
+			if (
+				KeepaliveResponder.isProbe(tcpheader, dataLength, session.getRecSequence()) &&
+				!session.isAckedToFin()
+			) {
+				answerKeepalive(tcpheader, session);
 				return;
 			}
 
-			synchronized (session) {
-				session.setLastIpHeader(ipHeader);
-				session.setLastTcpHeader(tcpheader);
-
-				//any data from client?
-				if (dataLength > 0) {
-					//accumulate data from client
-					if (session.getRecSequence() == 0 || tcpheader.getSequenceNumber() >= session.getRecSequence()) {
-						int addedLength = manager.addClientData(clientPacketData, session);
-						//send ack to client only if new data was added
-						sendAck(ipHeader, tcpheader, addedLength, session);
-					} else {
-						sendAckForDisorder(ipHeader, tcpheader, dataLength);
-					}
+			// Every segment carries the client's latest ack & window, which may let us send more,
+			// or resume reading upstream, if the window was closed
+			boolean windowWasClosed = session.getSendWindow() == 0;
+			boolean canSendMore = processAck(tcpheader, session, dataLength) &&
+				(session.hasPendingDownload() || windowWasClosed);
+
+			//any data from client?
+			if (dataLength > 0) {
+				if (session.isAckedToFin()) {
+					// Data after the client's FIN is invalid: re-ack the FIN & ignore it
+					resendAck(session);
+				} else if (budget.isOverSoftLimit()) {
+					// We're buffering too much already. Drop this data, and re-ack the data
+					// we do have, so the client retransmits this later once we've caught up.
+					budget.onReadThrottled();
+					resendAck(session);
 				} else {
-					//an ack from client for previously sent data
-					acceptAck(tcpheader, session);
-
-					if (session.isClosingConnection()) {
-						sendFinAck(ipHeader, tcpheader, session);
-					} else if (session.isAckedToFin() && !tcpheader.isFIN()) {
-						//the last ACK from client after FIN-ACK flag was sent
-						manager.closeSession(SessionProtocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
-						Log.d(TAG, "got last ACK after FIN, session is now closed.");
-					}
-				}
-				//received the last segment of data from vpn client
-				if (tcpheader.isPSH()) {
-					// Tell the NIO thread to immediately send data to the destination
-					pushDataToDestination(session, tcpheader);
-				} else if (tcpheader.isFIN()) {
-					//fin from vpn client is the last packet
-					//ack it
-					Log.d(TAG, "FIN from vpn client, will ack it.");
-					ackFinAck(ipHeader, tcpheader, session);
-				} else if (tcpheader.isRST()) {
-					resetTCPConnection(ipHeader, tcpheader);
+					receiveData(clientPacketData, tcpheader, session);
 				}
+			} else {
+				//an ack from client for previously sent data
+				acceptAck(tcpheader, session);
+			}
+			// Sent after handling any data, so the ack for that data rides on these segments
+			if (canSendMore) {
+				nioService.resumeDownload(session);
+			}
 
-				if (!session.isAbortingConnection()) {
-					manager.keepSessionAlive(session);
-				}
+			//received the last segment of data from vpn client
+			if (tcpheader.isPSH()) {
+				// Send the data to the destination as soon as the channel is writable
+				pushDataToDestination(session);
+			}
+
+			if (tcpheader.isFIN()) {
+				receiveFin(tcpheader, dataLength, session);
+			} else if (tcpheader.isRST()) {
+				resetTCPConnection(ipHeader, tcpheader);
+			}
+
+			if (!session.isAbortingConnection()) {
+				manager.keepSessionAlive(session);
 			}
 		} else if(tcpheader.isFIN()){
 			//case client sent FIN without ACK
 			Session session = manager.getSession(SessionProtocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
 			if(session == null)
-				ackFinAck(ipHeader, tcpheader, null);
+				ackFinAck(ipHeader, tcpheader);
 			else
 				manager.keepSessionAlive(session);
 
 		} else if(tcpheader.isRST()){
 			resetTCPConnection(ipHeader, tcpheader);
+		}
+	}
+
+	/**
+	 * Handle an ACK for a flow that has no session. Late packets for recently closed flows are
+	 * answered or dropped using the lingering flow state. Anything else is either a FIN, which
+	 * we ack, or an unknown flow, which we reset.
+	 */
+	private void handleStrayPacket(IPv4Header ip, TCPHeader tcp, int dataLength) {
+		LingeringFlows.Flow flow = manager.getLingeringFlow(
+			ip.getDestinationIP(), tcp.getDestinationPort(),
+			ip.getSourceIP(), tcp.getSourcePort()
+		);
+
+		if (flow == null) {
+			Log.d(TAG, "Ack for unknown session: " + Session.getSessionKey(SessionProtocol.TCP,
+				ip.getDestinationIP(), tcp.getDestinationPort(), ip.getSourceIP(), tcp.getSourcePort()));
+
+			if (tcp.isFIN()) {
+				sendLastAck(ip, tcp);
+			} else if (!tcp.isRST()) {
+				sendRstPacket(ip, tcp, dataLength);
+			}
+			return;
+		}
+
+		if (tcp.isFIN() && !tcp.isRST()) {
+			// A retransmitted FIN: the client didn't get our ack for it. Our own FIN was acked
+			// before the session closed, so a plain ACK is all that's missing.
+			long ack = tcp.getSequenceNumber() + dataLength + 1;
+			writer.write(TCPPacketFactory.createFinAckData(ip, tcp, ack, tcp.getAckNumber(),
+				false, true));
+			lateAcksSent.incrementAndGet();
+		} else if (dataLength > 0) {
+			// New data on a closed flow: the client needs to know that nobody is listening
+			sendRstPacket(ip, tcp, dataLength);
 		} else {
-			Log.d(TAG,"unknown TCP flag");
-			String str1 = PacketUtil.getOutput(ipHeader, tcpheader, clientPacketData.array());
-			Log.d(TAG,">>>>>>>> Received from client <<<<<<<<<<");
-			Log.d(TAG,str1);
-			Log.d(TAG,">>>>>>>>>>>>>>>>>>>end receiving from client>>>>>>>>>>>>>>>>>>>>>");
+			// Final ACKs & RSTs that raced the close need no answer
+			latePacketsDropped.incrementAndGet();
 		}
 	}
 
+	private boolean allowRst() {
+		long now = SystemClock.elapsedRealtime();
+		if (now >= rstAllowanceResetTime) {
+			rstAllowance = MAX_RSTS_PER_SECOND;
+			rstAllowanceResetTime = now + 1000;
+		}
+
+		if (rstAllowance <= 0) return false;
+		rstAllowance--;
+		return true;
+	}
+
+	/**
+	 * Summarize how packets for flows without sessions have been handled, for logging
+	 */
+	@NonNull
+	public String describeStrayPackets() {
+		return "Packets for closed/unknown flows: " + lateAcksSent.get() + " late FINs acked, " +
+			latePacketsDropped.get() + " late packets dropped, " +
+			strayRstsSent.get() + " RSTs sent, " + strayRstsSuppressed.get() + " RSTs rate-limited";
+	}
+
+	/**
+	 * Summarize how out-of-order & duplicate client data has been handled, for logging
+	 */
+	@NonNull
+	public String describeReassembly() {
+		return "Client data reassembly: " + outOfOrderSegmentsHeld.get() + " out-of-order segments held, " +
+			outOfOrderSegmentsDropped.get() + " dropped, " + duplicateSegments.get() + " duplicates";
+	}
+
+	/**
+	 * Summarize how client UDP datagrams have been queued, for logging
+	 */
+	@NonNull
+	public String describeDatagramQueues() {
+		return "UDP send queues: " + datagramsQueued.get() + " datagrams queued, " +
+			datagramsDropped.get() + " dropped when full (max " + config.udpQueueDepth + " per session)";
+	}
+
 	private void sendRstPacket(IPv4Header ip, TCPHeader tcp, int dataLength){
+		if (!allowRst()) {
+			strayRstsSuppressed.incrementAndGet();
+			return;
+		}
+		strayRstsSent.incrementAndGet();
+
 		byte[] data = TCPPacketFactory.createRstData(ip, tcp, dataLength);
 
 		writer.write(data);
@@ -237,76 +414,162 @@ public class SessionHandler {
 				tcp.getDestinationPort());
 	}
 
-	private void ackFinAck(IPv4Header ip, TCPHeader tcp, Session session){
+	private void ackFinAck(IPv4Header ip, TCPHeader tcp){
 		long ack = tcp.getSequenceNumber() + 1;
 		long seq = tcp.getAckNumber();
 		byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq, true, true);
 
 		writer.write(data);
-		if(session != null){
-			session.cancelKey();
-			manager.closeSession(session);
-			Log.d(TAG,"ACK to client's FIN and close session => "+PacketUtil.intToIPAddress(ip.getDestinationIP())+":"+tcp.getDestinationPort()
-					+"-"+PacketUtil.intToIPAddress(ip.getSourceIP())+":"+tcp.getSourcePort());
-		}
 	}
-	private void sendFinAck(IPv4Header ip, TCPHeader tcp, Session session){
-		final long ack = tcp.getSequenceNumber();
-		final long seq = tcp.getAckNumber();
-		final byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq,true,false);
-		final ByteBuffer stream = ByteBuffer.wrap(data);
 
-		writer.write(data);
-		Log.d(TAG,"00000000000 FIN-ACK packet data to vpn client 000000000000");
-		IPv4Header vpnip = null;
-		try {
-			vpnip = IPPacketFactory.createIPv4Header(stream);
-		} catch (PacketHeaderException e) {
-			e.printStackTrace();
+	/**
+	 * handle a FIN from the client, half-closing the session: the client won't send any more,
+	 * but the upstream server may still have plenty to say. We ack the FIN, and once all the
+	 * client's data has been written upstream, we shut down our output there, so the server
+	 * sees the same half-close. Our own FIN follows whenever upstream closes, and the session
+	 * is closed once both directions are finished.
+	 */
+	private void receiveFin(TCPHeader tcp, int dataLength, Session session){
+		if (session.isAckedToFin()) {
+			// A retransmission: the client missed our ack (already resent, if this had data)
+			if (dataLength == 0) resendAck(session);
+			return;
 		}
 
-		TCPHeader vpntcp = null;
-		try {
-			if (vpnip != null)
-				vpntcp = TCPPacketFactory.createTCPHeader(stream);
-		} catch (PacketHeaderException e) {
-			e.printStackTrace();
+		long finSequence = tcp.getSequenceNumber() + dataLength;
+		if ((int) (finSequence - session.getRecSequence()) != 0) {
+			// Some data before the FIN is missing (or was dropped). The FIN will be resent after
+			// that's filled in, so it's handled then.
+			return;
 		}
 
-		if(vpnip != null && vpntcp != null){
-			String sout = PacketUtil.getOutput(vpnip, vpntcp, data);
-			Log.d(TAG,sout);
-		}
-		Log.d(TAG,"0000000000000 finished sending FIN-ACK packet to vpn client 000000000000");
+		Log.d(TAG, "FIN from vpn client, half-closing " + session);
+		session.setRecSequence(finSequence + 1);
+		session.setAckedToFin(true);
+		resendAck(session);
 
-		session.setSendNext(seq + 1);
-		//avoid re-sending it, from here client should take care the rest
-		session.setClosingConnection(false);
+		// Write out everything the client sent before closing, followed by the shutdown
+		pushDataToDestination(session);
 	}
 
-	private void pushDataToDestination(Session session, TCPHeader tcp){
+	/**
+	 * Stream client data upstream without waiting for PSH, since large uploads may not use it.
+	 * Small amounts are briefly held, so back-to-back segments are coalesced into one gathered
+	 * write, but we flush straight away once enough is buffered, or if our receive window is
+	 * nearly full, since then the client can't send more until we do.
+	 */
+	private void streamDataToDestination(Session session){
+		if (
+			config.uploadFlushDelayMs == 0 ||
+			session.getSendingDataSize() >= config.uploadFlushBytes ||
+			session.getReceiveWindow() < session.getLocalMaxSegmentSize()
+		) {
+			pushDataToDestination(session);
+		} else if (session.getUploadFlushDeadline() == 0) {
+			session.setUploadFlushDeadline(SystemClock.elapsedRealtime() + config.uploadFlushDelayMs);
+			nioService.scheduleTimers(session);
+		}
+	}
+
+	private void pushDataToDestination(Session session){
 		session.setDataForSendingReady(true);
-		session.setTimestampReplyto(tcp.getTimeStampSender());
-		session.setTimestampSender((int)System.currentTimeMillis());
+		session.setUploadFlushDeadline(0);
 
-		// Ping the NIO thread to write this, when the session is next writable
+		// Write this upstream when the session is next writable
 		session.subscribeKey(SelectionKey.OP_WRITE);
-		nioService.refreshSelect(session);
 	}
 	
 	/**
-	 * send acknowledgment packet to VPN client
-	 * @param ipheader IP Header
-	 * @param tcpheader TCP Header
-	 * @param acceptedDataLength Data Length
-	 * @param session Session
+	 * accept data from the client, by its position in the sequence space: anything we already
+	 * have is trimmed, as is anything beyond the window we advertised. Data at recSequence is
+	 * buffered to send upstream, along with any held out-of-order data that now follows it.
+	 * Data beyond a gap is held until the gap is filled.
 	 */
-	private void sendAck(IPv4Header ipheader, TCPHeader tcpheader, int acceptedDataLength, Session session){
-		long acknumber = session.getRecSequence() + acceptedDataLength;
-		session.setRecSequence(acknumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipheader, tcpheader, acknumber);
+	private void receiveData(ByteBuffer data, TCPHeader tcpheader, Session session){
+		int offset = (int) (tcpheader.getSequenceNumber() - session.getRecSequence());
+
+		if (offset < 0) {
+			// Starts with data we already have, e.g. a retransmission overlapping new data
+			if (-offset >= data.remaining()) {
+				// Entirely duplicate: the client probably missed our ack, so resend it now
+				duplicateSegments.incrementAndGet();
+				resendAck(session);
+				return;
+			}
+			data.position(data.position() - offset);
+			offset = 0;
+		}
 
-		writer.write(data);
+		// Only accept data within the window we advertised. Well behaved clients never send more,
+		// but if they do it's dropped, and they'll resend it later.
+		int windowSpace = session.getReceiveWindow() - offset;
+		if (windowSpace <= 0) {
+			resendAck(session);
+			return;
+		}
+		boolean isTrimmed = data.remaining() > windowSpace;
+		if (isTrimmed) {
+			data.limit(data.position() + windowSpace);
+		}
+
+		if (offset > 0) {
+			// There's a gap before this data. Hold it, and send a duplicate ack (with SACK
+			// blocks) right away, so the client can fast retransmit the gap (RFC 5681 4.2).
+			if (session.addOutOfOrderData(session.getRecSequence() + offset, data)) {
+				outOfOrderSegmentsHeld.incrementAndGet();
+			} else {
+				outOfOrderSegmentsDropped.incrementAndGet();
+			}
+			resendAck(session);
+			return;
+		}
+
+		boolean fillsGap = session.hasOutOfOrderData();
+
+		int acceptedLength = manager.addClientData(data, session);
+		session.setRecSequence(session.getRecSequence() + acceptedLength);
+
+		ByteBuffer heldData;
+		while ((heldData = session.pollInOrderData()) != null) {
+			int heldLength = manager.addClientData(heldData, session);
+			session.setRecSequence(session.getRecSequence() + heldLength);
+			acceptedLength += heldLength;
+		}
+
+		// Unless it's needed immediately, our ack is delayed, so it can ride on data we send back
+		// or cover several segments at once. If we dropped data, or filled a gap, the client needs
+		// to know right away, so it can resend or move on.
+		nioService.ackClientData(session, acceptedLength, isTrimmed || fillsGap);
+
+		if (!tcpheader.isPSH()) streamDataToDestination(session);
+	}
+
+	/**
+	 * answer a keepalive probe with an ACK, and publish that so later probes can be answered
+	 * on the VPN thread, as long as nothing else happens on the session in the meantime.
+	 */
+	private void answerKeepalive(TCPHeader tcpheader, Session session){
+		// Probes carry no new information, except perhaps a window update
+		boolean windowWasClosed = session.getSendWindow() == 0;
+		if (processAck(tcpheader, session, 0) && (session.hasPendingDownload() || windowWasClosed)) {
+			nioService.resumeDownload(session);
+		}
+
+		byte[] ack = TCPPacketFactory.createResponseAckData(session);
+		writer.write(ack);
+
+		// Only truly idle sessions get a template: nothing waiting to send, and nothing unacked
+		if (!session.hasPendingDownload() && (int) (session.getSendNext() - session.getSendUnack()) == 0) {
+			keepalives.publish(session, ack);
+		}
+	}
+
+	/**
+	 * Summarize how keepalive probes have been answered, for logging
+	 */
+	@NonNull
+	public String describeKeepalives() {
+		return keepalives.describe();
 	}
 
 	/**
@@ -315,50 +578,80 @@ public class SessionHandler {
 	 * @param session Session
 	 */
 	private void resendAck(Session session){
-		byte[] data = TCPPacketFactory.createResponseAckData(
-				session.getLastIpHeader(),
-				session.getLastTcpHeader(),
-				session.getRecSequence()
-		);
-		writer.write(data);
+		writer.write(TCPPacketFactory.createResponseAckData(session));
 	}
 
-	private void sendAckForDisorder(IPv4Header ipHeader, TCPHeader tcpheader, int acceptedDataLength) {
-		long ackNumber = tcpheader.getSequenceNumber() + acceptedDataLength;
-		Log.d(TAG,"sent disorder ack, ack# " + tcpheader.getSequenceNumber() +
-				" + " + acceptedDataLength + " = " + ackNumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipHeader, tcpheader, ackNumber);
+	/**
+	 * process the ack number & window in a segment from the client, as in RFC 793: acks within
+	 * the range of data we've sent update the client's window, and acks for new data release
+	 * that data from our retransmission buffer. Repeated acks for the same data with no new
+	 * data or window change are duplicate acks (RFC 5681), which trigger a fast retransmit.
+	 * @param tcpHeader TCP Header
+	 * @param session Session
+	 * @param dataLength The amount of data in the segment
+	 * @return true if the ack was acceptable
+	 */
+	private boolean processAck(TCPHeader tcpHeader, Session session, int dataLength){
+		long ackNumber = tcpHeader.getAckNumber();
 
-		writer.write(data);
+		if (
+			!PacketUtil.isSequenceAtOrAfter(ackNumber, session.getSendUnack()) ||
+			!PacketUtil.isSequenceAtOrAfter(session.getSendNext(), ackNumber)
+		) {
+			return false;
+		}
+
+		int previousWindow = session.getSendWindow();
+		session.setSendWindow(tcpHeader.getWindowSize());
+
+		if ((int) (ackNumber - session.getSendUnack()) > 0) {
+			long now = SystemClock.elapsedRealtime();
+			if (session.isTimestampsEnabled() && tcpHeader.hasTimeStamp()) {
+				// The client echoes our timestamp from the segment it's acking. That gives an
+				// RTT sample for every ack, even after retransmissions (RFC 7323 section 4).
+				int rtt = (int) now - tcpHeader.getTimeStampReplyTo();
+				if (rtt >= 0) session.addRttSample(rtt);
+			}
+			session.onNewDataAcked(ackNumber, now);
+			nioService.scheduleTimers(session);
+
+			if (session.isInRecovery()) {
+				if (PacketUtil.isSequenceAtOrAfter(ackNumber, session.getRecoveryPoint())) {
+					session.endRecovery();
+				} else {
+					nioService.retransmitNextSegment(session);
+				}
+			}
+		} else if (
+			dataLength == 0 &&
+			!tcpHeader.isFIN() &&
+			session.getSendWindow() == previousWindow &&
+			(int) (session.getSendNext() - ackNumber) > 0 &&
+			session.incrementDuplicateAcks() == 3 &&
+			!session.isInRecovery()
+		) {
+			nioService.fastRetransmit(session);
+		}
+
+		return true;
 	}
 
 	/**
-	 * acknowledge a packet.
+	 * acknowledge a packet. The ack & window themselves have already been applied to the
+	 * session by processAck.
 	 * @param tcpHeader TCP Header
 	 * @param session Session
 	 */
 	private void acceptAck(TCPHeader tcpHeader, Session session){
-		boolean isCorrupted = PacketUtil.isPacketCorrupted(tcpHeader);
-
-		session.setPacketCorrupted(isCorrupted);
-		if (isCorrupted) {
+		if (PacketUtil.isPacketCorrupted(tcpHeader)) {
 			Log.e(TAG,"prev packet was corrupted, last ack# " + tcpHeader.getAckNumber());
 		}
 
-		if (
-			tcpHeader.getAckNumber() > session.getSendUnack() ||
-			tcpHeader.getAckNumber() == session.getSendNext()
-		) {
-			session.setAcked(true);
-
-			session.setSendUnack(tcpHeader.getAckNumber());
-			session.setRecSequence(tcpHeader.getSequenceNumber());
-			session.setTimestampReplyto(tcpHeader.getTimeStampSender());
-			session.setTimestampSender((int) System.currentTimeMillis());
-		} else {
+		// Only the data, FIN & handshake we accept advance recSequence. A pure ACK's sequence
+		// number may be past a hole in what we've received, so must never move it.
+		if ((int) tcpHeader.getAckNumber() != (int) session.getSendUnack()) {
 			Log.d(TAG,"Not Accepting ack# "+tcpHeader.getAckNumber() +" , it should be: "+session.getSendNext());
 			Log.d(TAG,"Prev sendUnack: "+session.getSendUnack());
-			session.setAcked(false);
 		}
 	}
 
@@ -374,9 +667,7 @@ public class SessionHandler {
 			ip.getSourceIP(), tcp.getSourcePort()
 		);
 		if(session != null){
-			synchronized (session) {
-				session.setAbortingConnection(true);
-			}
+			session.setAbortingConnection(true);
 		}
 	}
 
@@ -386,39 +677,60 @@ public class SessionHandler {
 	 * @param tcp TCP
 	 */
 	private void replySynAck(IPv4Header ip, TCPHeader tcp) throws IOException {
-		ip.setIdentification(0);
-		Packet packet = TCPPacketFactory.createSynAckPacketData(ip, tcp);
-		
-		TCPHeader tcpheader = (TCPHeader) packet.getTransportHeader();
-		
-		Session session = manager.createNewTCPSession(
+		Session existingSession = manager.getSession(
+			SessionProtocol.TCP,
 			ip.getDestinationIP(), tcp.getDestinationPort(),
 			ip.getSourceIP(), tcp.getSourcePort()
 		);
 
-		if (session.getLastIpHeader() != null) {
+		if (existingSession != null) {
+			// A retransmitted SYN, whilst we wait for the upstream connection before answering.
+			// We'll reply once that connects (or fails).
+			if (existingSession.isSynAckPending()) return;
+
 			// We have an existing session for this connection! We've somehow received a SYN
 			// for an existing socket (or some kind of other race). We resend the last ACK
 			// for this session, rejecting this SYN. Not clear why this happens, but it can.
-			resendAck(session);
+			resendAck(existingSession);
 			return;
 		}
 
-		synchronized (session) {
-			session.setMaxSegmentSize(tcpheader.getMaxSegmentSize());
-			session.setSendUnack(tcpheader.getSequenceNumber());
-			session.setSendNext(tcpheader.getSequenceNumber() + 1);
-			//client initial sequence has been incremented by 1 and set to ack
-			session.setRecSequence(tcpheader.getAckNumber());
-
-			session.setLastIpHeader(ip);
-			session.setLastTcpHeader(tcp);
-
-			nioService.registerSession(session);
+		if (manager.isRecentConnectFailure(ip.getDestinationIP(), tcp.getDestinationPort())) {
+			// We've just failed to connect here: refuse this without opening another socket
+			writer.write(TCPPacketFactory.createRstData(ip, tcp, 0));
+			return;
+		}
 
-			writer.write(packet.getBuffer());
-			Log.d(TAG,"Send SYN-ACK to client");
+		Session session = manager.createNewTCPSession(
+			ip.getDestinationIP(), tcp.getDestinationPort(),
+			ip.getSourceIP(), tcp.getSourcePort()
+		);
+		if (session == null) {
+			// The connection failed straight away (and that's been recorded): refuse it now
+			nioService.onConnectFailedImmediately();
+			writer.write(TCPPacketFactory.createRstData(ip, tcp, 0));
+			return;
 		}
+
+		final long initialSequence = TCPPacketFactory.createInitialSequenceNumber();
+
+		session.setMaxSegmentSize(tcp.getMaxSegmentSize());
+		session.setLocalMaxSegmentSize(config.getMaxSegmentSize());
+		session.setDownloadCoalesceDelay(config.getDownloadCoalesceDelayMs(tcp.getDestinationPort()));
+		// Our SYN-ACK accepts each option the client offers (see createSynAckData). The window
+		// in a SYN is never scaled, so it's set before scaling is enabled.
+		session.setSendWindow(tcp.getWindowSize());
+		if (tcp.hasWindowScale()) session.enableWindowScaling(tcp.getWindowScale());
+		if (tcp.isSelectiveAckPermitted()) session.setSelectiveAckPermitted(true);
+		if (tcp.hasTimeStamp()) session.enableTimestamps(tcp.getTimeStampSender());
+		session.setSendUnack(initialSequence);
+		session.setSendNext(initialSequence + 1);
+		//client initial sequence has been incremented by 1 and set to ack
+		session.setRecSequence(tcp.getSequenceNumber() + 1);
+
+		nioService.registerSession(session);
+		// Answers the client's SYN, now or once connected, and tracks the connection
+		nioService.startConnection(session);
 	}
 
 	private void handleICMPPacket(
@@ -18,15 +18,16 @@ package tech.httptoolkit.android.vpn;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
 import org.jetbrains.annotations.NotNull;
 
 import tech.httptoolkit.android.TagKt;
-import tech.httptoolkit.android.vpn.socket.DataConst;
 import tech.httptoolkit.android.vpn.socket.ICloseSession;
 import tech.httptoolkit.android.vpn.socket.SocketProtector;
+import tech.httptoolkit.android.vpn.socket.UdpSocketPool;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.io.IOException;
@@ -35,12 +36,24 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manage in-memory storage for VPN client session.
+ *
+ * Sessions are owned by the NIO thread, and should only be looked up, created & closed there.
+ * Accesses from any other thread are counted (and logged, the first time) so that any
+ * regressions to cross-thread session access are easy to spot.
  * @author Borey Sao
  * Date: May 20, 2014
  */
@@ -50,11 +63,59 @@ public class SessionManager implements ICloseSession {
 	private final Map<String, Session> table = new ConcurrentHashMap<>();
 	private SocketProtector protector = SocketProtector.getInstance();
 
+	// Recently closed TCP flows, so we can handle their late packets cheaply. NIO thread only.
+	private final LingeringFlows lingeringFlows = new LingeringFlows();
+
+	// Destinations that recently failed to connect, so repeat SYNs fail fast. NIO thread only.
+	private final ConnectFailures connectFailures = new ConnectFailures();
+
+	// Answers keepalive probes for idle sessions on the VPN thread
+	private final KeepaliveResponder keepaliveResponder = new KeepaliveResponder();
+
+	// Shared upstream sockets for UDP sessions, or null if each has its own. NIO thread only.
+	@Nullable
+	private final UdpSocketPool udpSocketPool;
+
+	private final EngineConfig config;
+
+	public SessionManager(EngineConfig config) {
+		this.config = config;
+		this.udpSocketPool = config.udpSocketPoolSize > 0
+			? new UdpSocketPool(config.udpSocketPoolSize, protector)
+			: null;
+	}
+
+	private volatile Thread ownerThread = null;
+	private final AtomicLong foreignThreadAccesses = new AtomicLong(0);
+
+	/**
+	 * Set the thread that owns all sessions. Session access from other threads after this
+	 * point will be reported as ownership violations.
+	 */
+	public void setOwnerThread(Thread ownerThread) {
+		this.ownerThread = ownerThread;
+	}
+
+	private void checkOwnerThread() {
+		Thread owner = ownerThread;
+		if (owner == null || owner == Thread.currentThread()) return;
+
+		if (foreignThreadAccesses.getAndIncrement() == 0) {
+			Log.w(TAG, "Session accessed from " + Thread.currentThread().getName() +
+				", not owning thread " + owner.getName(), new IllegalStateException());
+		}
+	}
+
+	public long getForeignThreadAccesses() {
+		return foreignThreadAccesses.get();
+	}
+
 	/**
 	 * keep java garbage collector from collecting a session
 	 * @param session Session
 	 */
 	public void keepSessionAlive(Session session) {
+		checkOwnerThread();
 		if(session != null){
 			String key = Session.getSessionKey(
 				session.getProtocol(),
@@ -87,6 +148,7 @@ public class SessionManager implements ICloseSession {
 
 	@Nullable
 	public Session getSessionByKey(String key) {
+		checkOwnerThread();
 		if (table.containsKey(key)) {
 			return table.get(key);
 		}
@@ -102,30 +164,153 @@ public class SessionManager implements ICloseSession {
 	 * @param srcPort Source Port
 	 */
 	public void closeSession(SessionProtocol protocol, int ip, int port, int srcIp, int srcPort){
+		checkOwnerThread();
 		String key = Session.getSessionKey(protocol, ip, port, srcIp, srcPort);
 		Session session = table.remove(key);
 
 		if(session != null){
 			final AbstractSelectableChannel channel = session.getChannel();
-			try {
-				if (channel != null) {
-					channel.close();
+			if (session.getPooledSocket() != null) {
+				// The socket is shared with other sessions, so it stays open
+				udpSocketPool.release(session);
+			} else {
+				try {
+					if (channel != null) {
+						channel.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
+			}
+			session.releaseBuffers();
+			if (protocol == SessionProtocol.TCP) {
+				lingeringFlows.add(session);
+				keepaliveResponder.remove(session);
 			}
 			Log.d(TAG,"closed session -> " + key);
 		}
 	}
 
+	/**
+	 * Get the lingering state of a recently closed TCP flow, if there is one
+	 */
+	@Nullable
+	LingeringFlows.Flow getLingeringFlow(int ip, int port, int srcIp, int srcPort) {
+		checkOwnerThread();
+		return lingeringFlows.get(ip, port, srcIp, srcPort);
+	}
+
+	/**
+	 * Record that the upstream connection for this session failed, so that new connections to
+	 * the same destination are refused straight away for a short while.
+	 */
+	public void recordConnectFailure(@NonNull Session session) {
+		checkOwnerThread();
+		connectFailures.add(session.getDestIp(), session.getDestPort(), SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * @return true if connecting to this destination failed very recently
+	 */
+	public boolean isRecentConnectFailure(int ip, int port) {
+		checkOwnerThread();
+		return connectFailures.contains(ip, port, SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Forget all recent connection failures, e.g. because the network has changed
+	 */
+	public void clearConnectFailures() {
+		checkOwnerThread();
+		connectFailures.clear();
+	}
+
+	@NonNull
+	public String describeConnectFailures() {
+		return connectFailures.describe();
+	}
+
+	@NonNull
+	KeepaliveResponder getKeepaliveResponder() {
+		return keepaliveResponder;
+	}
+
+	@Nullable
+	public UdpSocketPool getUdpSocketPool() {
+		return udpSocketPool;
+	}
+
 	public void closeSession(@NonNull Session session){
 		closeSession(session.getProtocol(), session.getDestIp(),
 				session.getDestPort(), session.getSourceIp(),
 				session.getSourcePort());
 	}
 
+	/**
+	 * Summarize the current sessions & their estimated memory footprint, for logging. This
+	 * reads session state without owning it, so is only approximate, if the NIO thread is running.
+	 */
+	@NonNull
+	public String describeSessions() {
+		int sessionCount = 0;
+		long totalFootprint = 0;
+
+		for (Session session : table.values()) {
+			sessionCount++;
+			totalFootprint += session.getFootprint();
+		}
+
+		return sessionCount + " sessions, using ~" + (totalFootprint / 1024) + "KB " +
+			"(~" + (sessionCount > 0 ? totalFootprint / sessionCount : 0) + " bytes per session), " +
+			foreignThreadAccesses.get() + " accesses from outside the NIO thread";
+	}
+
+	/**
+	 * Copy the current state of every session into a new immutable snapshot. Must be called on
+	 * the NIO thread, which owns the sessions.
+	 */
+	@NonNull
+	public FlowSnapshot buildFlowSnapshot(long now) {
+		checkOwnerThread();
+
+		final List<FlowInfo> flows = new ArrayList<>(table.size());
+		for (Session session : table.values()) {
+			flows.add(session.toFlowInfo(now));
+		}
+
+		return new FlowSnapshot(now, flows);
+	}
+
+	/**
+	 * Get every session currently buffering data, ordered by the amount buffered (largest first).
+	 */
+	@NonNull
+	public List<Session> getSessionsByBufferedSize() {
+		checkOwnerThread();
+		final List<Session> sessions = new ArrayList<>();
+		final Map<Session, Integer> bufferedSizes = new HashMap<>();
+
+		for (Session session : table.values()) {
+			int bufferedBytes = session.getBufferedBytes();
+			if (bufferedBytes == 0) continue;
+
+			sessions.add(session);
+			bufferedSizes.put(session, bufferedBytes);
+		}
+
+		Collections.sort(sessions, new Comparator<Session>() {
+			@Override
+			public int compare(Session a, Session b) {
+				return Integer.compare(bufferedSizes.get(b), bufferedSizes.get(a));
+			}
+		});
+
+		return sessions;
+	}
+
 	@NotNull
 	public Session createNewUDPSession(int ip, int port, int srcIp, int srcPort) throws IOException {
+		checkOwnerThread();
 		String keys = Session.getSessionKey(SessionProtocol.UDP, ip, port, srcIp, srcPort);
 
 		// For TCP, we freak out if you try to create an already existing session.
@@ -135,6 +320,12 @@ public class SessionManager implements ICloseSession {
 
 		Session session = new Session(SessionProtocol.UDP, srcIp, srcPort, ip, port, this);
 
+		if (udpSocketPool != null && udpSocketPool.assign(session)) {
+			table.put(keys, session);
+			Log.d(TAG,"new pooled UDP session created: " + session);
+			return session;
+		}
+
 		DatagramChannel channel;
 
 		channel = DatagramChannel.open();
@@ -160,8 +351,14 @@ public class SessionManager implements ICloseSession {
 		return session;
 	}
 
-	@NotNull
+	/**
+	 * Create a TCP session, and start connecting upstream.
+	 * @return the session, or null if the connection failed immediately (e.g. the network is
+	 * unreachable). That failure is recorded, and the socket closed.
+	 */
+	@Nullable
 	public Session createNewTCPSession(int ip, int port, int srcIp, int srcPort) throws IOException {
+		checkOwnerThread();
 		String key = Session.getSessionKey(SessionProtocol.TCP, ip, port, srcIp, srcPort);
 
 		Session existingSession = table.get(key);
@@ -171,6 +368,9 @@ public class SessionManager implements ICloseSession {
 		// We return the initialized session, which will be reacked to indicate rejection.
 		if (existingSession != null) return existingSession;
 
+		// A new connection reusing a recently closed flow's ports replaces it entirely
+		lingeringFlows.remove(ip, port, srcIp, srcPort);
+
 		Session session = new Session(SessionProtocol.TCP, srcIp, srcPort, ip, port, this);
 
 		SocketChannel channel;
@@ -178,7 +378,10 @@ public class SessionManager implements ICloseSession {
 		channel.socket().setKeepAlive(true);
 		channel.socket().setTcpNoDelay(true);
 		channel.socket().setSoTimeout(0);
-		channel.socket().setReceiveBufferSize(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+		// The window scale we offer upstream is fixed by the receive buffer size when we connect,
+		// so we start at the largest size we might use. It's shrunk once we're connected, and
+		// then adapted to the session's throughput (see SocketBufferTuner).
+		channel.socket().setReceiveBufferSize(config.maxSocketBufferSize);
 		channel.configureBlocking(false);
 
 		String ips = PacketUtil.intToIPAddress(ip);
@@ -192,12 +395,26 @@ public class SessionManager implements ICloseSession {
 		// Initiate connection straight away, to reduce latency
 		// We use the real address, unless tcpPortRedirection redirects us to a different
 		// target address for traffic on this port.
-		SocketAddress socketAddress = tcpPortRedirection.get(port) != null
-			? tcpPortRedirection.get(port)
+		InetSocketAddress redirectTarget = tcpPortRedirection.get(port);
+		SocketAddress socketAddress = redirectTarget != null
+			? redirectTarget
 			: new InetSocketAddress(ips, port);
+		session.setRedirectTarget(redirectTarget);
 
 		Log.d(TAG,"Initiate connecting to remote tcp server: " + socketAddress.toString());
-		boolean connected = channel.connect(socketAddress);
+		boolean connected;
+		try {
+			connected = channel.connect(socketAddress);
+		} catch (IOException | UnresolvedAddressException | UnsupportedAddressTypeException | SecurityException e) {
+			Log.w(TAG, "Upstream connection failed immediately for " + key + ": " + e);
+			try {
+				channel.close();
+			} catch (IOException closeError) {
+				Log.w(TAG, "Failed to close socket after connect failure: " + closeError);
+			}
+			recordConnectFailure(session);
+			return null;
+		}
 		session.setConnected(connected);
 
 		table.put(key, session);
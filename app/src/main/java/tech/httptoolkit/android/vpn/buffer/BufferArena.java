@@ -0,0 +1,283 @@
+package tech.httptoolkit.android.vpn.buffer;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import tech.httptoolkit.android.BuildConfig;
+import tech.httptoolkit.android.TagKt;
+
+/**
+ * A shared arena of fixed-size chunks, used as the backing storage for every session's
+ * ChunkedBuffers.
+ *
+ * Memory is allocated off-heap in 1MB slabs, each carved into 16KB chunks. Buffered traffic
+ * therefore doesn't count against the Java heap, and doesn't create any GC work at all: chunks
+ * are recycled when a buffer drains or its session closes, and slabs are only unmapped once
+ * every one of their chunks is free again.
+ *
+ * In debug builds, every ChunkedBuffer holding chunks is tracked, so that any buffer that is
+ * garbage collected without being released is logged (with the stack where it allocated) and
+ * its chunks are reclaimed. Double releases are also caught there.
+ *
+ * This is thread safe: chunks are acquired & released by both the VPN & NIO threads.
+ */
+public class BufferArena {
+
+	private static final String TAG = TagKt.formatTag(BufferArena.class.getName());
+
+	public static final int CHUNK_SIZE = 16 * 1024;
+	private static final int SLAB_SIZE = 1024 * 1024;
+	private static final int CHUNKS_PER_SLAB = SLAB_SIZE / CHUNK_SIZE;
+
+	// We keep up to this many completely free slabs mapped, to absorb bursts of traffic
+	// without repeatedly mapping & unmapping memory.
+	private static final int MAX_IDLE_SLABS = 4;
+
+	private static final BufferArena instance = new BufferArena();
+
+	public static BufferArena getInstance() {
+		return instance;
+	}
+
+	/**
+	 * A single chunk of arena memory. The buffer's position & limit are owned by whoever
+	 * acquired the chunk.
+	 */
+	static final class Chunk {
+		final ByteBuffer buffer;
+		final Slab slab;
+		boolean inUse = false;
+
+		Chunk(ByteBuffer buffer, Slab slab) {
+			this.buffer = buffer;
+			this.slab = slab;
+		}
+	}
+
+	private static final class Slab {
+		final ByteBuffer memory;
+		final SharedMemory sharedMemory; // Null if we fell back to a direct buffer
+		final ArrayDeque<Chunk> freeChunks = new ArrayDeque<>(CHUNKS_PER_SLAB);
+
+		Slab(ByteBuffer memory, SharedMemory sharedMemory) {
+			this.memory = memory;
+			this.sharedMemory = sharedMemory;
+
+			for (int i = 0; i < CHUNKS_PER_SLAB; i++) {
+				memory.limit((i + 1) * CHUNK_SIZE);
+				memory.position(i * CHUNK_SIZE);
+				freeChunks.add(new Chunk(memory.slice(), this));
+			}
+		}
+
+		boolean isUnused() {
+			return freeChunks.size() == CHUNKS_PER_SLAB;
+		}
+	}
+
+	/**
+	 * Tracks the chunks held by a ChunkedBuffer, without keeping the buffer itself alive. Only
+	 * used in debug builds.
+	 */
+	private static final class LeakTracker extends WeakReference<ChunkedBuffer> {
+		final ArrayDeque<Chunk> chunks;
+		final Throwable allocationSite;
+
+		LeakTracker(ChunkedBuffer buffer, ArrayDeque<Chunk> chunks, ReferenceQueue<ChunkedBuffer> queue) {
+			super(buffer, queue);
+			this.chunks = chunks;
+			this.allocationSite = new Throwable("Buffer allocated here");
+		}
+	}
+
+	// Disabled under memory pressure, so every fully free slab is released immediately
+	private boolean idleReserveEnabled = true;
+
+	private final List<Slab> slabs = new ArrayList<>();
+	private final ArrayDeque<Slab> slabsWithSpace = new ArrayDeque<>();
+	private int chunksInUse = 0;
+	private int peakChunksInUse = 0;
+
+	private final ReferenceQueue<ChunkedBuffer> leakQueue = new ReferenceQueue<>();
+	private final Set<LeakTracker> leakTrackers = new HashSet<>();
+	private int leaksDetected = 0;
+
+	/**
+	 * Get an empty chunk, ready to be written from position 0 up to CHUNK_SIZE.
+	 */
+	synchronized Chunk acquire() {
+		if (BuildConfig.DEBUG) reclaimLeakedBuffers();
+
+		Slab slab = slabsWithSpace.peekFirst();
+		if (slab == null) {
+			slab = allocateSlab();
+			slabs.add(slab);
+			slabsWithSpace.addFirst(slab);
+		}
+
+		Chunk chunk = slab.freeChunks.pollFirst();
+		if (slab.freeChunks.isEmpty()) slabsWithSpace.remove(slab);
+
+		chunk.inUse = true;
+		chunk.buffer.clear();
+
+		chunksInUse += 1;
+		if (chunksInUse > peakChunksInUse) peakChunksInUse = chunksInUse;
+
+		return chunk;
+	}
+
+	/**
+	 * Return a chunk to the arena. The caller must not touch the chunk again afterwards.
+	 */
+	synchronized void release(Chunk chunk) {
+		if (!chunk.inUse) {
+			// Releasing twice would hand the same memory to two different owners later on
+			if (BuildConfig.DEBUG) throw new IllegalStateException("Buffer chunk released twice");
+			Log.e(TAG, "Ignoring double release of buffer chunk");
+			return;
+		}
+
+		chunk.inUse = false;
+		chunksInUse -= 1;
+
+		Slab slab = chunk.slab;
+		if (slab.freeChunks.isEmpty()) slabsWithSpace.addLast(slab);
+		slab.freeChunks.addFirst(chunk);
+
+		if (slab.isUnused() && countIdleSlabs() > getMaxIdleSlabs()) {
+			freeSlab(slab);
+		}
+	}
+
+	/**
+	 * Release every completely free slab, beyond our idle reserve (if enabled).
+	 */
+	public synchronized void trim() {
+		int idleSlabsToKeep = getMaxIdleSlabs();
+		for (Slab slab : new ArrayList<>(slabs)) {
+			if (!slab.isUnused()) continue;
+
+			if (idleSlabsToKeep > 0) {
+				idleSlabsToKeep--;
+			} else {
+				freeSlab(slab);
+			}
+		}
+	}
+
+	public synchronized void setIdleReserveEnabled(boolean enabled) {
+		this.idleReserveEnabled = enabled;
+	}
+
+	private int getMaxIdleSlabs() {
+		return idleReserveEnabled ? MAX_IDLE_SLABS : 0;
+	}
+
+	/**
+	 * Register a buffer that has just started holding chunks, so we can spot it if it's
+	 * dropped without being released. Returns a handle to pass to untrack() afterwards.
+	 */
+	synchronized Object track(ChunkedBuffer buffer, ArrayDeque<Chunk> chunks) {
+		if (!BuildConfig.DEBUG) return null;
+
+		LeakTracker tracker = new LeakTracker(buffer, chunks, leakQueue);
+		leakTrackers.add(tracker);
+		return tracker;
+	}
+
+	synchronized void untrack(Object handle) {
+		if (handle == null) return;
+
+		LeakTracker tracker = (LeakTracker) handle;
+		leakTrackers.remove(tracker);
+		tracker.clear();
+	}
+
+	private void reclaimLeakedBuffers() {
+		LeakTracker tracker;
+		while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+			if (!leakTrackers.remove(tracker)) continue; // Released properly, just late
+
+			leaksDetected += 1;
+			Log.e(TAG, "Leaked buffer with " + tracker.chunks.size() + " chunks", tracker.allocationSite);
+
+			for (Chunk chunk : tracker.chunks) {
+				release(chunk);
+			}
+			tracker.chunks.clear();
+		}
+	}
+
+	private Slab allocateSlab() {
+		// On Android, direct ByteBuffers are still allocated within the Java heap, so we use
+		// shared memory mappings to keep this genuinely off-heap wherever that's available.
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+			try {
+				SharedMemory sharedMemory = SharedMemory.create("httptoolkit-vpn-buffers", SLAB_SIZE);
+				return new Slab(sharedMemory.mapReadWrite(), sharedMemory);
+			} catch (ErrnoException e) {
+				Log.w(TAG, "Could not map shared memory for buffers, falling back to direct buffers", e);
+			}
+		}
+
+		return new Slab(ByteBuffer.allocateDirect(SLAB_SIZE), null);
+	}
+
+	private void freeSlab(Slab slab) {
+		slabs.remove(slab);
+		slabsWithSpace.remove(slab);
+
+		if (slab.sharedMemory != null) {
+			SharedMemory.unmap(slab.memory);
+			slab.sharedMemory.close();
+		}
+		// Direct buffers are freed by the GC, once the slab & its chunks are unreachable
+	}
+
+	private int countIdleSlabs() {
+		int idleSlabs = 0;
+		for (Slab slab : slabs) {
+			if (slab.isUnused()) idleSlabs++;
+		}
+		return idleSlabs;
+	}
+
+	/**
+	 * Bytes of arena memory currently holding buffered data (at chunk granularity).
+	 */
+	public synchronized long getBytesInUse() {
+		return (long) chunksInUse * CHUNK_SIZE;
+	}
+
+	/**
+	 * Total bytes of arena memory currently mapped, whether in use or not.
+	 */
+	public synchronized long getBytesAllocated() {
+		return (long) slabs.size() * SLAB_SIZE;
+	}
+
+	@NonNull
+	public synchronized String describeOccupancy() {
+		long allocated = (long) slabs.size() * SLAB_SIZE;
+		long inUse = (long) chunksInUse * CHUNK_SIZE;
+
+		return "Buffer arena: " + (inUse / 1024) + "KB in use of " + (allocated / 1024) + "KB " +
+			"(" + slabs.size() + " slabs, " + countIdleSlabs() + " idle), " +
+			"peak " + ((long) peakChunksInUse * CHUNK_SIZE / 1024) + "KB" +
+			(BuildConfig.DEBUG ? ", " + leaksDetected + " leaked buffers" : "");
+	}
+}
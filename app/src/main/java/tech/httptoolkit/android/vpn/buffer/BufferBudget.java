@@ -0,0 +1,155 @@
+package tech.httptoolkit.android.vpn.buffer;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import tech.httptoolkit.android.TagKt;
+
+/**
+ * A global limit on the bytes buffered by the VPN engine: all session buffers (measured via
+ * the BufferArena) plus every packet queued in the ClientPacketWriter.
+ *
+ * There are two thresholds. Above the soft limit, we stop reading more data (upstream reads
+ * pause, and new client data isn't accepted, so the client retransmits it later). Above the
+ * hard limit, the NIO thread sheds load by resetting the sessions buffering the most data.
+ *
+ * The limits shrink in response to onTrimMemory: it's much better to slow down or drop a
+ * few connections than to have the whole service killed by the system, dropping all of them.
+ * After a quiet period with no further trim requests, they recover to their full size.
+ */
+public class BufferBudget {
+
+	private final String TAG = TagKt.getTAG(this);
+
+	public static final long DEFAULT_SOFT_LIMIT = 16 * 1024 * 1024;
+	public static final long DEFAULT_HARD_LIMIT = 32 * 1024 * 1024;
+
+	// How long after the last trim request until we return to our full budget
+	private static final long TRIM_RECOVERY_TIME_MS = 60 * 1000;
+
+	private final BufferArena arena;
+	private final long softLimit;
+	private final long hardLimit;
+
+	private final AtomicLong queuedPacketBytes = new AtomicLong(0);
+
+	// Percentage of the configured limits currently available, reduced under memory pressure
+	private volatile int limitPercentage = 100;
+	private volatile long lastTrimTime = 0;
+
+	private final AtomicLong throttleCount = new AtomicLong(0);
+	private final AtomicLong shedSessionCount = new AtomicLong(0);
+	private final AtomicLong shedBytes = new AtomicLong(0);
+
+	public BufferBudget() {
+		this(BufferArena.getInstance(), DEFAULT_SOFT_LIMIT, DEFAULT_HARD_LIMIT);
+	}
+
+	public BufferBudget(BufferArena arena, long softLimit, long hardLimit) {
+		this.arena = arena;
+		this.softLimit = softLimit;
+		this.hardLimit = hardLimit;
+	}
+
+	public void onPacketQueued(int length) {
+		queuedPacketBytes.addAndGet(length);
+	}
+
+	public void onPacketDequeued(int length) {
+		queuedPacketBytes.addAndGet(-length);
+	}
+
+	public long getBufferedBytes() {
+		return arena.getBytesInUse() + queuedPacketBytes.get();
+	}
+
+	public long getSoftLimit() {
+		return softLimit * getLimitPercentage() / 100;
+	}
+
+	public long getHardLimit() {
+		return hardLimit * getLimitPercentage() / 100;
+	}
+
+	/**
+	 * True if we're over the soft limit, and so shouldn't read any more data for now.
+	 */
+	public boolean isOverSoftLimit() {
+		return getBufferedBytes() > getSoftLimit();
+	}
+
+	public void onReadThrottled() {
+		throttleCount.incrementAndGet();
+	}
+
+	/**
+	 * The number of bytes we need to drop to get back under the soft limit, if we're currently
+	 * over the hard limit, or 0 if no shedding is required.
+	 */
+	public long getBytesToShed() {
+		long buffered = getBufferedBytes();
+		if (buffered <= getHardLimit()) return 0;
+		return buffered - getSoftLimit();
+	}
+
+	public void onSessionShed(long bufferedBytes) {
+		shedSessionCount.incrementAndGet();
+		shedBytes.addAndGet(bufferedBytes);
+	}
+
+	/**
+	 * Shrink the budget in response to system memory pressure. Called with the level from
+	 * ComponentCallbacks2.onTrimMemory.
+	 */
+	public void onTrimMemory(int level) {
+		// UI_HIDDEN just means our activity was closed, which isn't relevant to the VPN
+		if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) return;
+
+		final int percentage;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			// We're well down the LRU list, and likely to be killed soon: minimize everything
+			percentage = 10;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			percentage = 25;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			percentage = 50;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			percentage = 75;
+		} else {
+			return;
+		}
+
+		lastTrimTime = SystemClock.elapsedRealtime();
+		limitPercentage = Math.min(getLimitPercentage(), percentage);
+
+		// Hand back any idle memory we're holding straight away
+		arena.setIdleReserveEnabled(false);
+		arena.trim();
+
+		Log.i(TAG, "Trimming memory at level " + level + ", buffer budget now " +
+			(getSoftLimit() / 1024) + "KB/" + (getHardLimit() / 1024) + "KB");
+	}
+
+	private int getLimitPercentage() {
+		int percentage = limitPercentage;
+		if (percentage < 100 && SystemClock.elapsedRealtime() - lastTrimTime > TRIM_RECOVERY_TIME_MS) {
+			limitPercentage = percentage = 100;
+			arena.setIdleReserveEnabled(true);
+		}
+		return percentage;
+	}
+
+	@NonNull
+	public String describe() {
+		return "Buffer budget: " + (getBufferedBytes() / 1024) + "KB buffered " +
+			"(" + (queuedPacketBytes.get() / 1024) + "KB queued for the VPN), " +
+			"limits " + (getSoftLimit() / 1024) + "KB/" + (getHardLimit() / 1024) + "KB, " +
+			throttleCount.get() + " throttled reads, " +
+			shedSessionCount.get() + " sessions shed (" + (shedBytes.get() / 1024) + "KB)";
+	}
+}
@@ -0,0 +1,252 @@
+package tech.httptoolkit.android.vpn.buffer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A FIFO byte buffer, made up of a chain of fixed-size chunks from a shared BufferArena.
+ *
+ * Data is appended to the tail chunk, and read & consumed from the head chunk. Fully
+ * consumed chunks are returned to the arena immediately, so reading N bytes from the front
+ * never requires copying the rest of the buffer (unlike ByteArrayOutputStream.toByteArray()),
+ * and the buffer's memory usage tracks how much data is actually waiting.
+ *
+ * Not thread safe: only used by the thread that owns the session it belongs to.
+ */
+public class ChunkedBuffer {
+
+	private final BufferArena arena;
+
+	// Each chunk's content lives between readOffset (for the head) or 0 (otherwise), and
+	// writeOffset (for the tail) or CHUNK_SIZE (otherwise). We track these offsets ourselves,
+	// rather than using the chunks' position & limit, so that slices handed out to callers
+	// can be freely advanced without corrupting our state.
+	private final ArrayDeque<BufferArena.Chunk> chunks = new ArrayDeque<>();
+	private int readOffset = 0;
+	private int writeOffset = 0;
+
+	private int size = 0;
+
+	// Debug-only leak tracking handle, set whenever we're holding any chunks
+	private Object leakTracker = null;
+
+	public ChunkedBuffer() {
+		this(BufferArena.getInstance());
+	}
+
+	public ChunkedBuffer(BufferArena arena) {
+		this.arena = arena;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * The bytes of arena memory currently held by this buffer.
+	 */
+	public int getCapacity() {
+		return chunks.size() * BufferArena.CHUNK_SIZE;
+	}
+
+	/**
+	 * Append all remaining bytes from the given buffer, advancing its position to its limit.
+	 */
+	public void write(@NonNull ByteBuffer data) {
+		while (data.hasRemaining()) {
+			ByteBuffer tail = writableTail();
+			int length = Math.min(data.remaining(), BufferArena.CHUNK_SIZE - writeOffset);
+
+			tail.limit(writeOffset + length);
+			tail.position(writeOffset);
+
+			int originalLimit = data.limit();
+			data.limit(data.position() + length);
+			tail.put(data);
+			data.limit(originalLimit);
+
+			writeOffset += length;
+			size += length;
+		}
+	}
+
+	public void write(@NonNull byte[] data, int offset, int length) {
+		write(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Copy up to length bytes from the front of the buffer into the given array, without
+	 * consuming them.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int peek(@NonNull byte[] dst, int dstOffset, int length) {
+		return peek(0, dst, dstOffset, length);
+	}
+
+	/**
+	 * Copy up to length bytes, starting skip bytes from the front of the buffer, into the given
+	 * array, without consuming them.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int peek(int skip, @NonNull byte[] dst, int dstOffset, int length) {
+		int copied = 0;
+		boolean isHead = true;
+
+		for (BufferArena.Chunk chunk : chunks) {
+			if (copied >= length) break;
+
+			int start = isHead ? readOffset : 0;
+			int end = chunk == chunks.peekLast() ? writeOffset : BufferArena.CHUNK_SIZE;
+			isHead = false;
+
+			if (skip >= end - start) {
+				skip -= end - start;
+				continue;
+			}
+			start += skip;
+			skip = 0;
+
+			int count = Math.min(end - start, length - copied);
+
+			ByteBuffer chunkBuffer = chunk.buffer;
+			chunkBuffer.limit(start + count);
+			chunkBuffer.position(start);
+			chunkBuffer.get(dst, dstOffset + copied, count);
+
+			copied += count;
+		}
+
+		return copied;
+	}
+
+	/**
+	 * Read up to length bytes from the front of the buffer into the given array, consuming them.
+	 *
+	 * @return the number of bytes read
+	 */
+	public int read(@NonNull byte[] dst, int dstOffset, int length) {
+		int copied = peek(dst, dstOffset, length);
+		consume(copied);
+		return copied;
+	}
+
+	/**
+	 * Get zero-copy views over (up to) the first maxBytes bytes of the buffer, e.g. to pass
+	 * directly to a gathering write. Nothing is consumed: once the data has been used, the
+	 * caller should call consume() with however many bytes it actually used.
+	 *
+	 * The returned buffers are only valid until the next write/consume/release call.
+	 */
+	@NonNull
+	public ByteBuffer[] slices(int maxBytes) {
+		int sliceCount = 0;
+		int remaining = Math.min(maxBytes, size);
+
+		// Work out how many chunks we'll need first, so we can size the array exactly
+		int available = remaining;
+		for (Iterator<BufferArena.Chunk> it = chunks.iterator(); it.hasNext() && available > 0; ) {
+			BufferArena.Chunk chunk = it.next();
+			int start = sliceCount == 0 ? readOffset : 0;
+			int end = chunk == chunks.peekLast() ? writeOffset : BufferArena.CHUNK_SIZE;
+			available -= (end - start);
+			sliceCount++;
+		}
+
+		ByteBuffer[] result = new ByteBuffer[sliceCount];
+		int i = 0;
+		for (BufferArena.Chunk chunk : chunks) {
+			if (i >= sliceCount) break;
+
+			int start = i == 0 ? readOffset : 0;
+			int end = chunk == chunks.peekLast() ? writeOffset : BufferArena.CHUNK_SIZE;
+			int count = Math.min(end - start, remaining);
+
+			ByteBuffer slice = chunk.buffer.duplicate();
+			slice.limit(start + count);
+			slice.position(start);
+			result[i++] = slice;
+
+			remaining -= count;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Drop the first n bytes of the buffer, returning any emptied chunks to the arena.
+	 */
+	public void consume(int n) {
+		if (n < 0 || n > size) {
+			throw new IllegalArgumentException("Can't consume " + n + " bytes from a buffer of " + size);
+		}
+
+		size -= n;
+
+		while (n > 0) {
+			BufferArena.Chunk head = chunks.peekFirst();
+			int headEnd = head == chunks.peekLast() ? writeOffset : BufferArena.CHUNK_SIZE;
+			int headAvailable = headEnd - readOffset;
+
+			if (n < headAvailable) {
+				readOffset += n;
+				break;
+			}
+
+			// Fully consumed chunks (including the tail, if we've caught up with the writes)
+			// go straight back to the arena, so idle sessions hold no buffer memory at all.
+			n -= headAvailable;
+			releaseHead();
+		}
+	}
+
+	/**
+	 * Drop all buffered data, and return every chunk to the arena.
+	 */
+	public void release() {
+		while (!chunks.isEmpty()) {
+			arena.release(chunks.pollFirst());
+		}
+		readOffset = 0;
+		writeOffset = 0;
+		size = 0;
+		stopTracking();
+	}
+
+	private void releaseHead() {
+		arena.release(chunks.pollFirst());
+		readOffset = 0;
+		if (chunks.isEmpty()) {
+			writeOffset = 0;
+			stopTracking();
+		}
+	}
+
+	private ByteBuffer writableTail() {
+		BufferArena.Chunk tail = chunks.peekLast();
+		if (tail == null || writeOffset == BufferArena.CHUNK_SIZE) {
+			tail = arena.acquire();
+			chunks.addLast(tail);
+			if (chunks.size() == 1) {
+				readOffset = 0;
+				leakTracker = arena.track(this, chunks);
+			}
+			writeOffset = 0;
+		}
+		return tail.buffer;
+	}
+
+	private void stopTracking() {
+		if (leakTracker == null) return;
+		arena.untrack(leakTracker);
+		leakTracker = null;
+	}
+}
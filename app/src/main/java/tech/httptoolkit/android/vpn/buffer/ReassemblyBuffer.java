@@ -0,0 +1,183 @@
+package tech.httptoolkit.android.vpn.buffer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Holds data that arrived out of order, ahead of the next sequence number we're expecting,
+ * until the gap before it is filled.
+ *
+ * Segments are stored in sequence order, with overlaps trimmed as they're added, so stored
+ * data never overlaps. Sequence numbers are compared modulo 2^32, so wrapping is handled. All
+ * data is within the receive window we advertised, which bounds the memory used here.
+ *
+ * Not thread safe: only used by the thread that owns the session it belongs to.
+ */
+public class ReassemblyBuffer {
+
+	// Bounds the bookkeeping for pathological reordering. Beyond this, new segments are dropped
+	// (and retransmitted by the client later) rather than stored.
+	private static final int MAX_SEGMENTS = 64;
+
+	private static final class Segment {
+		final long sequence;
+		final byte[] data;
+
+		Segment(long sequence, byte[] data) {
+			this.sequence = sequence;
+			this.data = data;
+		}
+
+		long end() {
+			return sequence + data.length;
+		}
+	}
+
+	// In sequence order, never overlapping
+	private final ArrayList<Segment> segments = new ArrayList<>();
+	private int size = 0;
+
+	// The segment most recently added, reported first in SACK blocks (RFC 2018 section 4)
+	private long lastAddedSequence = 0;
+
+	private static int compare(long a, long b) {
+		return (int) (a - b);
+	}
+
+	public boolean isEmpty() {
+		return segments.isEmpty();
+	}
+
+	/**
+	 * @return total bytes stored
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Store the remaining data in the buffer, which starts at the given sequence number, trimming
+	 * any parts we've already stored. Segments that this completely covers are replaced.
+	 * @return false if the segment was dropped, because too many segments are already stored
+	 */
+	public boolean add(long sequence, @NonNull ByteBuffer data) {
+		final long dataStart = sequence;
+		long end = sequence + data.remaining();
+
+		// Find the first stored segment that ends after the new data starts
+		int index = 0;
+		while (index < segments.size() && compare(segments.get(index).end(), sequence) <= 0) {
+			index++;
+		}
+
+		// If that segment starts before us, we only need the part after it
+		if (index < segments.size() && compare(segments.get(index).sequence, sequence) <= 0) {
+			sequence = segments.get(index).end();
+			index++;
+		}
+
+		// Drop any segments the new data completely covers
+		while (index < segments.size() && compare(segments.get(index).end(), end) <= 0) {
+			size -= segments.remove(index).data.length;
+		}
+
+		// If the next segment starts before our end, we only need the part before it
+		if (index < segments.size() && compare(segments.get(index).sequence, end) < 0) {
+			end = segments.get(index).sequence;
+		}
+
+		int length = compare(end, sequence);
+		if (length <= 0) return true; // Nothing new
+
+		if (segments.size() >= MAX_SEGMENTS) return false;
+
+		byte[] stored = new byte[length];
+		data.position(data.position() + compare(sequence, dataStart));
+		data.get(stored);
+
+		segments.add(index, new Segment(sequence, stored));
+		size += length;
+		lastAddedSequence = sequence;
+		return true;
+	}
+
+	/**
+	 * Take the stored data that starts exactly at the given sequence number, if any, trimming
+	 * anything before it. Data entirely before it is discarded.
+	 * @return the data, or null if there's still a gap before the next stored segment
+	 */
+	@Nullable
+	public ByteBuffer pollContiguous(long nextSequence) {
+		while (!segments.isEmpty()) {
+			Segment first = segments.get(0);
+
+			if (compare(first.sequence, nextSequence) > 0) return null; // Still a gap
+
+			segments.remove(0);
+			size -= first.data.length;
+
+			int skip = compare(nextSequence, first.sequence);
+			if (skip < first.data.length) {
+				return ByteBuffer.wrap(first.data, skip, first.data.length - skip);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Describe the stored ranges as SACK blocks (RFC 2018): merged into contiguous ranges, with
+	 * the range holding the most recently added data first, then the rest in sequence order.
+	 * @param blocks Filled with start & end sequence number pairs
+	 * @return the number of blocks written, at most blocks.length / 2
+	 */
+	public int getSackBlocks(@NonNull long[] blocks) {
+		int maxBlocks = blocks.length / 2;
+		int count = 0;
+
+		// Find the latest range first
+		int latest = -1;
+		long start = 0, end = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			if (i == 0 || compare(segment.sequence, end) != 0) {
+				start = segment.sequence;
+			}
+			end = segment.end();
+
+			boolean rangeEnds = i == segments.size() - 1 || compare(segments.get(i + 1).sequence, end) != 0;
+			if (rangeEnds && latest == -1 &&
+				compare(lastAddedSequence, start) >= 0 && compare(lastAddedSequence, end) < 0
+			) {
+				latest = i;
+				blocks[0] = start;
+				blocks[1] = end;
+				count = 1;
+			}
+		}
+
+		for (int i = 0; i < segments.size() && count < maxBlocks; i++) {
+			Segment segment = segments.get(i);
+			if (i == 0 || compare(segment.sequence, end) != 0) {
+				start = segment.sequence;
+			}
+			end = segment.end();
+
+			boolean rangeEnds = i == segments.size() - 1 || compare(segments.get(i + 1).sequence, end) != 0;
+			if (rangeEnds && i != latest) {
+				blocks[count * 2] = start;
+				blocks[count * 2 + 1] = end;
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	public void clear() {
+		segments.clear();
+		size = 0;
+	}
+}
@@ -0,0 +1,5 @@
+package tech.httptoolkit.android.vpn.socket;
+
+public interface IErrorHandler {
+	void handleError(Exception e);
+}
@@ -0,0 +1,83 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import java.util.PriorityQueue;
+
+import tech.httptoolkit.android.vpn.Session;
+
+/**
+ * Timers for sessions (e.g. retransmission), run on the NIO thread between selects.
+ *
+ * Each session has at most one entry queued here, for its earliest deadline at the time
+ * (see Session.getNextTimerDeadline). Entries are lazy: when a session's timers are pushed
+ * later (e.g. restarting the retransmission timer on every ack) its entry is left alone,
+ * and when that fires early the session is just queued again for its real deadline. That
+ * keeps re-arming timers cheap, and the queue no larger than the number of sessions.
+ *
+ * Only used on the NIO thread.
+ */
+class SessionTimers {
+
+	interface Handler {
+		void onTimer(Session session, long now);
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		final long deadline;
+		final Session session;
+
+		Entry(long deadline, Session session) {
+			this.deadline = deadline;
+			this.session = session;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+
+	private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+
+	/**
+	 * Make sure the session's timers will fire, after any of its deadlines have changed.
+	 */
+	void schedule(Session session) {
+		long deadline = session.getNextTimerDeadline();
+		if (deadline == 0) return; // Any queued entry will fire harmlessly & be dropped
+
+		long queuedDeadline = session.getQueuedTimerDeadline();
+		if (queuedDeadline != 0 && queuedDeadline <= deadline) return; // Will fire in time
+
+		session.setQueuedTimerDeadline(deadline);
+		queue.add(new Entry(deadline, session));
+	}
+
+	/**
+	 * Run the handler for every session with a timer due by now.
+	 * @return the time in ms until the next queued timer, or 0 if there are none
+	 */
+	long runExpired(long now, Handler handler) {
+		Entry entry;
+		while ((entry = queue.peek()) != null && entry.deadline <= now) {
+			queue.poll();
+
+			Session session = entry.session;
+			// Skip entries replaced by an earlier deadline, which have already been handled
+			if (session.getQueuedTimerDeadline() != entry.deadline) continue;
+			session.setQueuedTimerDeadline(0);
+
+			long deadline = session.getNextTimerDeadline();
+			if (deadline != 0 && deadline <= now) {
+				handler.onTimer(session, now);
+			}
+
+			schedule(session);
+		}
+
+		return entry == null ? 0 : Math.max(1, entry.deadline - now);
+	}
+
+	int size() {
+		return queue.size();
+	}
+}
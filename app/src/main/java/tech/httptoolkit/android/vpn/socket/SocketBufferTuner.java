@@ -0,0 +1,135 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import android.util.Log;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tech.httptoolkit.android.TagKt;
+import tech.httptoolkit.android.vpn.EngineConfig;
+import tech.httptoolkit.android.vpn.Session;
+
+/**
+ * Sizes each upstream TCP socket's send & receive buffers to suit its traffic.
+ *
+ * Every session starts at the configured minimum, so the many mostly idle connections an app
+ * holds open stay cheap. As data flows, we sample each direction's throughput, and size its
+ * buffer to twice the bandwidth-delay product (throughput multiplied by the upstream RTT,
+ * estimated from the connect time), within the configured limits. Buffers grow as soon as
+ * they're too small, but only shrink gradually, once they're far larger than needed.
+ *
+ * The receive buffer is set to the maximum before connecting, since the window scale that
+ * the socket offers upstream is fixed by its buffer size at that point, and then shrunk to
+ * the minimum once connected.
+ *
+ * Only used on the NIO thread, except for the counters, which are read elsewhere for reporting.
+ */
+public class SocketBufferTuner {
+
+	private final String TAG = TagKt.getTAG(this);
+
+	// How often each session's throughput is sampled, whilst it's transferring data
+	private static final long SAMPLE_INTERVAL_MS = 250;
+
+	// A floor for our RTT estimate, since a very fast connect says little about the path later
+	private static final int MIN_UPSTREAM_RTT = 10;
+
+	private final int minBufferSize;
+	private final int maxBufferSize;
+
+	private final AtomicLong buffersGrown = new AtomicLong(0);
+	private final AtomicLong buffersShrunk = new AtomicLong(0);
+	private final AtomicLong largestReceiveBuffer = new AtomicLong(0);
+	private final AtomicLong largestSendBuffer = new AtomicLong(0);
+
+	SocketBufferTuner(EngineConfig config) {
+		this.minBufferSize = config.minSocketBufferSize;
+		this.maxBufferSize = config.maxSocketBufferSize;
+	}
+
+	/**
+	 * Shrink a newly connected socket's buffers to the minimum, and estimate its RTT.
+	 */
+	void onConnected(Session session, long now) {
+		session.setUpstreamRtt((int) Math.max(MIN_UPSTREAM_RTT, now - session.getCreatedAt()));
+		applyBufferSizes(session, minBufferSize, minBufferSize);
+		session.startThroughputSample(now);
+	}
+
+	/**
+	 * Called after data is read from or written to a session's socket, to resize its buffers
+	 * once each throughput sample is complete.
+	 */
+	void onTransfer(Session session, long now) {
+		long elapsed = now - session.getThroughputSampleStart();
+		if (elapsed < SAMPLE_INTERVAL_MS) return;
+
+		int rtt = Math.max(MIN_UPSTREAM_RTT, session.getUpstreamRtt());
+		int receiveSize = adjust(session.getSocketReceiveBufferSize(),
+			getTargetSize(session.getBytesIn() - session.getThroughputSampleBytesIn(), elapsed, rtt));
+		int sendSize = adjust(session.getSocketSendBufferSize(),
+			getTargetSize(session.getBytesOut() - session.getThroughputSampleBytesOut(), elapsed, rtt));
+
+		if (receiveSize != session.getSocketReceiveBufferSize() || sendSize != session.getSocketSendBufferSize()) {
+			applyBufferSizes(session, receiveSize, sendSize);
+		}
+		session.startThroughputSample(now);
+	}
+
+	// Twice the bandwidth-delay product, rounded up to a power of two, within our limits
+	private int getTargetSize(long bytes, long elapsedMs, int rttMs) {
+		long bandwidthDelay = bytes * rttMs / elapsedMs;
+		long target = Long.highestOneBit(Math.max(1, bandwidthDelay * 2 - 1)) << 1;
+		return (int) Math.max(minBufferSize, Math.min(maxBufferSize, target));
+	}
+
+	// Grow straight to the target, but only halve a buffer once it's 4x larger than needed,
+	// so bursty sessions don't flap between sizes
+	private static int adjust(int current, int target) {
+		if (target > current) return target;
+		if (target <= current / 4) return current / 2;
+		return current;
+	}
+
+	private void applyBufferSizes(Session session, int receiveSize, int sendSize) {
+		int previousReceiveSize = session.getSocketReceiveBufferSize();
+		int previousSendSize = session.getSocketSendBufferSize();
+
+		Socket socket = ((SocketChannel) session.getChannel()).socket();
+		try {
+			if (receiveSize != previousReceiveSize) socket.setReceiveBufferSize(receiveSize);
+			if (sendSize != previousSendSize) socket.setSendBufferSize(sendSize);
+		} catch (SocketException e) {
+			Log.w(TAG, "Failed to resize socket buffers for " + session + ": " + e.getMessage());
+			return;
+		}
+		session.setSocketBufferSizes(receiveSize, sendSize);
+
+		if (previousReceiveSize != 0) {
+			if (receiveSize > previousReceiveSize || sendSize > previousSendSize) {
+				buffersGrown.incrementAndGet();
+			} else {
+				buffersShrunk.incrementAndGet();
+			}
+		}
+		updateMax(largestReceiveBuffer, receiveSize);
+		updateMax(largestSendBuffer, sendSize);
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		// Only ever updated on the NIO thread, so no need for a CAS loop
+		if (value > max.get()) max.set(value);
+	}
+
+	/**
+	 * Summarize how socket buffers have been sized, for logging
+	 */
+	public String describe() {
+		return "Socket buffers: " + (minBufferSize / 1024) + "-" + (maxBufferSize / 1024) + "KB allowed, " +
+			buffersGrown.get() + " grown, " + buffersShrunk.get() + " shrunk, largest " +
+			(largestReceiveBuffer.get() / 1024) + "KB receive & " +
+			(largestSendBuffer.get() / 1024) + "KB send";
+	}
+}
@@ -1,20 +1,21 @@
 package tech.httptoolkit.android.vpn.socket;
 
 import androidx.annotation.NonNull;
+import android.os.SystemClock;
 import android.util.Log;
 
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.EngineConfig;
 import tech.httptoolkit.android.vpn.Session;
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
-import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
-import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.udp.UDPHeader;
 import tech.httptoolkit.android.vpn.transport.udp.UDPPacketFactory;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
@@ -24,6 +25,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import tech.httptoolkit.android.TagKt;
 
@@ -36,10 +38,52 @@ class SocketChannelReader {
 
 	private final String TAG = TagKt.getTAG(this);
 
+	// Give up on a session after this many retransmissions without progress, on the timeout
+	// after the last one. The RTO doubles from at least 200ms up to a 60s cap, so from the
+	// minimum RTO that's 0.2s + 0.4s + ... + 51.2s (~102s), then 7 timeouts of 60s: about 9
+	// minutes in total, or about 11 from the initial 1s RTO.
+	private static final int MAX_CONSECUTIVE_RETRANSMITS = 15;
+
+	// After this many timeouts in a row, sessions using a large MSS fall back to a standard one
+	private static final int MSS_FALLBACK_RETRANSMITS = 2;
+
+	// Give up on a session whose client has kept its window closed for this long, rather than
+	// holding its unsent data (and the upstream connection) indefinitely
+	private static final long MAX_ZERO_WINDOW_TIME = 2 * 60 * 1000;
+
 	private final ClientPacketWriter writer;
+	private final SessionTimers timers;
+
+	// Retransmission counters, updated on the NIO thread only, but read elsewhere for reporting
+	private final AtomicLong retransmitTimeouts = new AtomicLong(0);
+	private final AtomicLong fastRetransmits = new AtomicLong(0);
+	private final AtomicLong segmentsRetransmitted = new AtomicLong(0);
+	private final AtomicLong bytesRetransmitted = new AtomicLong(0);
+	private final AtomicLong retransmitAborts = new AtomicLong(0);
+	private final AtomicLong segmentSizeFallbacks = new AtomicLong(0);
+
+	// Coalescing of small upstream reads, as above: reads held, and packets saved by that
+	private final AtomicLong readsHeld = new AtomicLong(0);
+	private final AtomicLong packetsSaved = new AtomicLong(0);
+
+	// Zero window counters, as above
+	private final AtomicLong zeroWindowStalls = new AtomicLong(0);
+	private final AtomicLong windowProbesSent = new AtomicLong(0);
+	private final AtomicLong zeroWindowAborts = new AtomicLong(0);
+
+	// Scratch space for upstream reads. This is only ever used from the NIO thread, and all
+	// data is copied out into the session before the next read, so we can share one buffer.
+	// It's direct, so channel reads can fill it without an extra internal copy. It always fits
+	// the largest UDP datagram, and TCP reads are limited to each session's receive buffer size.
+	private final ByteBuffer readBuffer;
+
+	// The most datagrams we read from a pooled UDP socket per readable event
+	private static final int MAX_POOLED_READS = 64;
 
-	public SocketChannelReader(ClientPacketWriter writer) {
+	public SocketChannelReader(ClientPacketWriter writer, SessionTimers timers, int maxReadSize) {
 		this.writer = writer;
+		this.timers = timers;
+		this.readBuffer = ByteBuffer.allocateDirect(Math.max(DataConst.MAX_RECEIVE_BUFFER_SIZE, maxReadSize));
 	}
 
 	public void read(Session session) {
@@ -53,8 +97,158 @@ class SocketChannelReader {
 			return;
 		}
 
-		// Resubscribe to reads, so that we're triggered again if more data arrives later.
-		session.subscribeKey(SelectionKey.OP_READ);
+		// Resubscribe to reads, so that we're triggered again if more data arrives later, unless
+		// we're waiting for the client's window to open (then an ACK will resume reads instead).
+		if (session.canReadUpstream()) {
+			session.subscribeKey(SelectionKey.OP_READ);
+		} else {
+			session.unsubscribeKey(SelectionKey.OP_READ);
+		}
+
+		closeIfAborted(session);
+	}
+
+	/**
+	 * Send data that's been waiting for the client's window to open, e.g. after the client acks
+	 * previous data, closing the session if that completes it.
+	 */
+	public void pushPendingData(@NonNull Session session) {
+		pushDataToClient(session);
+		closeIfAborted(session);
+	}
+
+	/**
+	 * The retransmission timer has expired: resend the oldest unacked segment, and back off
+	 * the timer (RFC 6298 5.4 - 5.6). Gives up & resets the session if the client hasn't
+	 * acked anything after many retries.
+	 */
+	public void onRetransmitTimeout(@NonNull Session session, long now) {
+		if ((int) (session.getSendNext() - session.getSendUnack()) == 0) {
+			// Everything has been acked, nothing to do
+			session.setRetransmitDeadline(0);
+			return;
+		}
+
+		if (session.getConsecutiveRetransmits() >= MAX_CONSECUTIVE_RETRANSMITS) {
+			Log.w(TAG, "Client stopped acking data, aborting " + session);
+			retransmitAborts.incrementAndGet();
+			writer.write(TCPPacketFactory.createRstData(session));
+			session.setRetransmitDeadline(0);
+			session.setAbortingConnection(true);
+			closeIfAborted(session);
+			return;
+		}
+
+		retransmitTimeouts.incrementAndGet();
+		session.backOffRetransmitTimeout();
+
+		// If large segments keep getting lost, the client may not cope with the MSS our MTU
+		// allows (like a path MTU black hole, RFC 4821): fall back to standard sized segments.
+		if (
+			session.getConsecutiveRetransmits() >= MSS_FALLBACK_RETRANSMITS &&
+			session.getLocalMaxSegmentSize() > EngineConfig.FALLBACK_MAX_SEGMENT_SIZE
+		) {
+			Log.w(TAG, "Falling back to smaller segments for " + session);
+			session.setLocalMaxSegmentSize(EngineConfig.FALLBACK_MAX_SEGMENT_SIZE);
+			segmentSizeFallbacks.incrementAndGet();
+		}
+
+		retransmitOldestSegment(session);
+		session.startRecovery();
+
+		session.setRetransmitDeadline(now + session.getRetransmitTimeout());
+		timers.schedule(session);
+	}
+
+	/**
+	 * The client has sent duplicate acks, implying the oldest unacked segment was lost but later
+	 * ones arrived: resend it immediately, without waiting for the timer (RFC 5681 3.2).
+	 */
+	public void fastRetransmit(@NonNull Session session) {
+		fastRetransmits.incrementAndGet();
+		retransmitOldestSegment(session);
+		session.startRecovery();
+	}
+
+	/**
+	 * During recovery, the client acked some but not all of the data we'd sent before the
+	 * retransmission: the next segment was lost too, so resend it immediately.
+	 */
+	public void retransmitNextSegment(@NonNull Session session) {
+		retransmitOldestSegment(session);
+	}
+
+	private void retransmitOldestSegment(@NonNull Session session) {
+		session.onRetransmit();
+
+		int length = Math.min(TCPPacketFactory.getMaxSegmentPayload(session),
+				session.getUnackedDataSize());
+		if (length > 0) {
+			// PSH if this resends the end of everything we've sent
+			boolean isPsh = length == session.getUnackedDataSize();
+			writer.write(TCPPacketFactory.createResponsePacketData(session,
+					session.getSendUnack(), length, isPsh));
+
+			segmentsRetransmitted.incrementAndGet();
+			bytesRetransmitted.addAndGet(length);
+		} else if (session.isFinSent()) {
+			// All data is acked, so it's our FIN that's been lost
+			writer.write(TCPPacketFactory.createFinData(session, session.getSendNext() - 1));
+			segmentsRetransmitted.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Summarize retransmissions so far, for logging
+	 */
+	public String describeRetransmissions() {
+		return "Retransmissions: " + retransmitTimeouts.get() + " timeouts, " +
+			fastRetransmits.get() + " fast retransmits, " +
+			segmentsRetransmitted.get() + " segments (" + bytesRetransmitted.get() + " bytes) " +
+			"resent, " + retransmitAborts.get() + " sessions aborted, " +
+			segmentSizeFallbacks.get() + " fell back to smaller segments";
+	}
+
+	/**
+	 * The persist timer has expired, whilst the client's window is closed: probe the window, in
+	 * case the ack that reopened it was lost, and back off the timer. Gives up & resets the
+	 * session if the window stays closed for too long.
+	 */
+	public void onPersistTimeout(@NonNull Session session, long now) {
+		if (!session.hasUnsentData() || session.getSendWindowAvailable() > 0) {
+			// The window has opened (or we've nothing left to send) in the meantime
+			session.stopPersistTimer();
+			pushDataToClient(session);
+			closeIfAborted(session);
+			return;
+		}
+
+		if (now - session.getZeroWindowSince() >= MAX_ZERO_WINDOW_TIME) {
+			Log.w(TAG, "Client window closed for too long, aborting " + session);
+			zeroWindowAborts.incrementAndGet();
+			writer.write(TCPPacketFactory.createRstData(session));
+			session.stopPersistTimer();
+			session.setAbortingConnection(true);
+			closeIfAborted(session);
+			return;
+		}
+
+		windowProbesSent.incrementAndGet();
+		writer.write(TCPPacketFactory.createWindowProbeData(session));
+		session.backOffPersistTimer(now);
+	}
+
+	/**
+	 * Summarize zero window stalls & how they were handled, for logging
+	 */
+	public String describeZeroWindows() {
+		return "Zero windows: " + zeroWindowStalls.get() + " stalls, " +
+			windowProbesSent.get() + " window probes sent, " +
+			zeroWindowAborts.get() + " sessions aborted";
+	}
+
+	private void closeIfAborted(@NonNull Session session) {
+		AbstractSelectableChannel channel = session.getChannel();
 
 		if (session.isAbortingConnection()) {
 			Log.d(TAG,"removing aborted connection -> "+ session);
@@ -88,22 +282,36 @@ class SocketChannelReader {
 		}
 
 		SocketChannel channel = (SocketChannel) session.getChannel();
-		ByteBuffer buffer = ByteBuffer.allocate(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+		ByteBuffer buffer = readBuffer;
 		int len;
 
+		// Busy sessions (with large receive buffers) read more at once than idle ones
+		int readSize = session.getSocketReceiveBufferSize() > 0
+			? Math.min(buffer.capacity(), session.getSocketReceiveBufferSize())
+			: buffer.capacity();
+
 		try {
-			do {
+			// We only read more once everything read so far has been sent. If the client's
+			// window fills up, the rest waits upstream, where TCP flow control slows the sender.
+			while (session.canReadUpstream()) {
+				buffer.clear();
+				buffer.limit(readSize);
 				len = channel.read(buffer);
 				if (len > 0) { //-1 mean it reach the end of stream
-					sendToRequester(buffer, len, session);
-					buffer.clear();
-				} else if (len == -1) {
-					Log.d(TAG,"End of data from remote server, will send FIN to client");
-					Log.d(TAG,"send FIN to: " + session);
-					sendFin(session);
-					session.setAbortingConnection(true);
+					session.addBytesIn(len);
+					sendToRequester(buffer, session);
+				} else {
+					if (len == -1) {
+						Log.d(TAG,"End of data from remote server, will send FIN to client " +
+							"once all data is sent: " + session);
+						session.setUpstreamClosed(true);
+						// Nothing more is coming to coalesce with, so send everything now
+						stopHoldingReads(session);
+						pushDataToClient(session);
+					}
+					break;
 				}
-			} while (len > 0);
+			}
 		}catch(NotYetConnectedException e){
 			Log.e(TAG,"socket not connected");
 		}catch(ClosedByInterruptException e){
@@ -116,75 +324,145 @@ class SocketChannelReader {
 		}
 	}
 	
-	private void sendToRequester(ByteBuffer buffer, int dataSize, @NonNull Session session){
-		// Last piece of data is usually smaller than MAX_RECEIVE_BUFFER_SIZE. We use this as a
-		// trigger to set PSH on the resulting TCP packet that goes to the VPN.
-		if (dataSize < DataConst.MAX_RECEIVE_BUFFER_SIZE) {
-			session.setHasReceivedLastSegment(true);
-		} else {
-			session.setHasReceivedLastSegment(false);
+	private void sendToRequester(ByteBuffer buffer, @NonNull Session session){
+		buffer.flip();
+		session.addReceivedData(buffer);
+
+		// For ports configured to coalesce, a read that leaves less than a full segment unsent is
+		// held briefly (like Nagle's algorithm, but time bounded) in case more follows.
+		int coalesceDelay = session.getDownloadCoalesceDelay();
+		if (coalesceDelay > 0) {
+			if (session.getUnsentDataSize() < TCPPacketFactory.getMaxSegmentPayload(session)) {
+				session.onReadHeld();
+				readsHeld.incrementAndGet();
+				if (session.getDownloadFlushDeadline() == 0) {
+					session.setDownloadFlushDeadline(SystemClock.elapsedRealtime() + coalesceDelay);
+					timers.schedule(session);
+				}
+			} else {
+				stopHoldingReads(session);
+			}
 		}
 
-		buffer.limit(dataSize);
-		buffer.flip();
-		// TODO should allocate new byte array?
-		byte[] data = new byte[dataSize];
-		System.arraycopy(buffer.array(), 0, data, 0, dataSize);
-		session.addReceivedData(data);
-		//pushing all data to vpn client
-		while(session.hasReceivedData()){
-			pushDataToClient(session);
+		//push as much as the client's window allows to the vpn client
+		pushDataToClient(session);
+	}
+
+	/**
+	 * Small upstream reads have been held for long enough: send them to the client now.
+	 */
+	public void onDownloadFlushTimeout(@NonNull Session session) {
+		stopHoldingReads(session);
+		pushDataToClient(session);
+		closeIfAborted(session);
+	}
+
+	private void stopHoldingReads(@NonNull Session session) {
+		int heldReads = session.stopHoldingReads();
+		if (heldReads > 1) {
+			// Without coalescing, each of these reads would have needed at least one packet.
+			// Together they need one packet per segment, plus one for the tail.
+			int segments = session.getUnsentDataSize() / TCPPacketFactory.getMaxSegmentPayload(session) + 1;
+			packetsSaved.addAndGet(Math.max(0, heldReads - segments));
 		}
 	}
+
+	/**
+	 * Summarize the coalescing of small upstream reads, for logging
+	 */
+	public String describeCoalescing() {
+		return "Download coalescing: " + readsHeld.get() + " small reads held, " +
+			packetsSaved.get() + " packets saved";
+	}
+
 	/**
-	 * create packet data and send it to VPN client
+	 * create packets from the received data and send them to VPN client, for as long as
+	 * the client's advertised window has space. Anything else stays buffered in the session,
+	 * and everything sent stays buffered until it's acked, in case it needs retransmitting.
+	 * Once upstream has closed and everything is sent, this also sends our FIN, and once that's
+	 * acked the session is finished.
 	 * @param session Session
 	 */
 	private void pushDataToClient(@NonNull Session session){
-		if (!session.hasReceivedData()) {
-			//no data to send
-			Log.d(TAG,"no data for vpn client");
+		long now = SystemClock.elapsedRealtime();
+
+		// Send everything the window allows as one burst of full-sized segments, each built
+		// straight from the buffer. PSH marks the end of the burst, i.e. the end of the data
+		// we have right now, so the client delivers it to the app without waiting for more.
+		int unsentLength = session.getUnsentDataSize();
+		int burstLength = Math.min(unsentLength, session.getSendWindowAvailable());
+		int maxPayload = TCPPacketFactory.getMaxSegmentPayload(session);
+
+		// Whilst small reads are being held, only whole segments go out. The tail waits for more
+		// data or the flush deadline, unless the window is what's limiting us anyway.
+		if (session.getDownloadFlushDeadline() != 0 && burstLength == unsentLength) {
+			burstLength -= burstLength % maxPayload;
 		}
 
-		IPv4Header ipHeader = session.getLastIpHeader();
-		TCPHeader tcpheader = session.getLastTcpHeader();
-		// TODO What does 60 mean?
-		int max = session.getMaxSegmentSize() - 60;
+		if (burstLength > 0) {
+			while (burstLength > 0) {
+				int length = Math.min(maxPayload, burstLength);
+				burstLength -= length;
+
+				long seq = session.getSendNext();
+				writer.write(TCPPacketFactory.createResponsePacketData(session, seq, length,
+						burstLength == 0));
+				session.markDataSent(length);
+				session.setSendNext(seq + length);
+			}
 
-		if(max < 1) {
-			max = 1024;
+			onSegmentSent(session, session.getSendNext(), now);
 		}
 
-		byte[] packetBody = session.getReceivedData(max);
-		if(packetBody != null && packetBody.length > 0) {
-			long unAck = session.getSendNext();
-			long nextUnAck = session.getSendNext() + packetBody.length;
-			session.setSendNext(nextUnAck);
-			//we need this data later on for retransmission
-			session.setUnackData(packetBody);
-			session.setResendPacketCounter(0);
+		if (
+			session.hasUnsentData() && session.getSendWindowAvailable() == 0 &&
+			(int) (session.getSendNext() - session.getSendUnack()) == 0
+		) {
+			// The window is closed, with nothing in flight whose ack might reopen it. We need the
+			// persist timer to probe it, in case the ack that does reopen it is lost.
+			if (session.startPersistTimer(now)) {
+				zeroWindowStalls.incrementAndGet();
+				timers.schedule(session);
+			}
+		} else if (session.getPersistDeadline() != 0) {
+			session.stopPersistTimer();
+		}
 
-			byte[] data = TCPPacketFactory.createResponsePacketData(ipHeader,
-					tcpheader, packetBody, session.hasReceivedLastSegment(),
-					session.getRecSequence(), unAck,
-					session.getTimestampSender(), session.getTimestampReplyto());
+		if (session.isUpstreamClosed() && !session.hasUnsentData() && !session.isAbortingConnection()) {
+			if (!session.isFinSent()) {
+				Log.d(TAG,"send FIN to: " + session);
+				sendFin(session);
+				onSegmentSent(session, session.getSendNext(), now);
+			} else if (session.isDownloadFinished() && session.isUploadFinished()) {
+				// Our FIN & all our data have been acked, and the client's side is closed too
+				session.setAbortingConnection(true);
+			}
+		}
+	}
+
+	private void onSegmentSent(@NonNull Session session, long endSequence, long now) {
+		session.startRttSample(endSequence, now);
 
-			writer.write(data);
+		// RFC 6298 5.1: start the retransmission timer, if it's not already running
+		if (session.getRetransmitDeadline() == 0) {
+			session.setRetransmitDeadline(now + session.getRetransmitTimeout());
+			timers.schedule(session);
 		}
 	}
+
 	private void sendFin(Session session){
-		final IPv4Header ipHeader = session.getLastIpHeader();
-		final TCPHeader tcpheader = session.getLastTcpHeader();
-		final byte[] data = TCPPacketFactory.createFinData(ipHeader, tcpheader,
-				session.getRecSequence(), session.getSendNext(),
-				session.getTimestampSender(), session.getTimestampReplyto());
+		final byte[] data = TCPPacketFactory.createFinData(session);
 
 		writer.write(data);
+		// Our FIN takes up one sequence number
+		session.setFinSent(true);
+		session.setSendNext(session.getSendNext() + 1);
 	}
 
 	private void readUDP(Session session){
 		DatagramChannel channel = (DatagramChannel) session.getChannel();
-		ByteBuffer buffer = ByteBuffer.allocate(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+		ByteBuffer buffer = readBuffer;
+		buffer.clear();
 		int len;
 
 		try {
@@ -195,20 +473,8 @@ class SocketChannelReader {
 
 				len = channel.read(buffer);
 				if (len > 0) {
-					buffer.limit(len);
 					buffer.flip();
-
-					//create UDP packet
-					byte[] data = new byte[len];
-					System.arraycopy(buffer.array(),0, data, 0, len);
-					byte[] packetData = UDPPacketFactory.createResponsePacket(
-							session.getLastIpHeader(), session.getLastUdpHeader(), data);
-
-					//write to client
-					writer.write(packetData);
-
-					Log.d(TAG,"SDR: sent " + len + " bytes to UDP client, packetData.length: "
-							+ packetData.length);
+					sendDatagramToClient(session, buffer);
 					buffer.clear();
 				}
 			} while(len > 0);
@@ -219,4 +485,50 @@ class SocketChannelReader {
 			session.setAbortingConnection(true);
 		}
 	}
+
+	/**
+	 * Read the replies waiting on a pooled UDP socket, and pass each to the session it belongs
+	 * to. Replies from addresses that no session on the socket is talking to are dropped.
+	 */
+	void readPooled(UdpSocketPool pool, UdpSocketPool.PooledSocket socket) {
+		DatagramChannel channel = socket.getChannel();
+		ByteBuffer buffer = readBuffer;
+		long now = SystemClock.elapsedRealtime();
+
+		try {
+			// Limited, so a flood on one shared socket can't starve everything else
+			for (int i = 0; i < MAX_POOLED_READS; i++) {
+				buffer.clear();
+				SocketAddress source = channel.receive(buffer);
+				if (source == null) break;
+
+				Session session = pool.demultiplex(socket, source, now);
+				if (session == null) continue;
+
+				buffer.flip();
+				sendDatagramToClient(session, buffer);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to read from pooled UDP socket: " + e.getMessage());
+		}
+	}
+
+	private void sendDatagramToClient(Session session, ByteBuffer buffer) {
+		int len = buffer.remaining();
+		session.addBytesIn(len);
+
+		//create UDP packet
+		byte[] data = new byte[len];
+		buffer.get(data);
+		byte[] packetData = UDPPacketFactory.createResponsePacket(
+				session.getDestIp(), session.getDestPort(),
+				session.getSourceIp(), session.getSourcePort(),
+				data);
+
+		//write to client
+		writer.write(packetData);
+
+		Log.d(TAG,"SDR: sent " + len + " bytes to UDP client, packetData.length: "
+				+ packetData.length);
+	}
 }
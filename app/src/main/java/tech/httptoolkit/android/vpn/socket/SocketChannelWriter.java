@@ -16,6 +16,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import tech.httptoolkit.android.TagKt;
 
@@ -32,6 +33,14 @@ public class SocketChannelWriter {
 
 	private final ClientPacketWriter writer;
 
+	// The most queued datagrams we send for one session per writable event, so that one busy
+	// UDP flow can't starve every other session on the NIO thread
+	private static final int MAX_DATAGRAMS_PER_BATCH = 32;
+
+	private final AtomicLong datagramsWritten = new AtomicLong(0);
+	private final AtomicLong datagramBatches = new AtomicLong(0);
+	private final AtomicLong datagramWritesDeferred = new AtomicLong(0);
+
 	SocketChannelWriter(ClientPacketWriter writer) {
 		this.writer = writer;
 	}
@@ -93,14 +102,24 @@ public class SocketChannelWriter {
 	private void writeTCP(Session session) {
 		try {
 			writePendingData(session);
+
+			// Once everything the client sent before its FIN is written, pass the half-close on
+			if (session.isUpstreamShutdownPending() && !session.hasDataToSend()) {
+				shutdownOutput(session);
+			}
+
+			// If that freed up a useful amount of buffer space, tell the client it can send more.
+			// Otherwise a client that filled our window would have to wait for its persist timer.
+			if (session.needsWindowUpdate()) {
+				writer.write(TCPPacketFactory.createResponseAckData(session));
+			}
 		} catch (NotYetConnectedException ex) {
 			Log.e(TAG,"failed to write to unconnected socket: " + ex.getMessage());
 		} catch (IOException e) {
 			Log.e(TAG,"Error writing to server: " + e.toString());
 			
 			//close connection with vpn client
-			byte[] rstData = TCPPacketFactory.createRstData(
-					session.getLastIpHeader(), session.getLastTcpHeader(), 0);
+			byte[] rstData = TCPPacketFactory.createRstData(session);
 
 			writer.write(rstData);
 
@@ -110,41 +129,104 @@ public class SocketChannelWriter {
 		}
 	}
 
+	private void shutdownOutput(Session session) throws IOException {
+		// SocketChannel.shutdownOutput is API 24+, but the socket adaptor's works everywhere
+		((SocketChannel) session.getChannel()).socket().shutdownOutput();
+		session.setUpstreamOutputShutdown(true);
+		Log.d(TAG, "Shut down output upstream, after client FIN: " + session);
+
+		if (session.isDownloadFinished()) {
+			// Upstream had already closed, and the client has acked all of that: we're done
+			session.setAbortingConnection(true);
+		}
+	}
+
 	private void writePendingData(Session session) throws IOException {
 		if (!session.hasDataToSend()) return;
 		AbstractSelectableChannel channel = session.getChannel();
 
-		byte[] data = session.getSendingData();
-		ByteBuffer buffer = ByteBuffer.allocate(data.length);
-		buffer.put(data);
-		buffer.flip();
-
-		while (buffer.hasRemaining()) {
-			int bytesWritten = channel instanceof SocketChannel
-				? ((SocketChannel) channel).write(buffer)
-				: ((DatagramChannel) channel).write(buffer);
-
-			if (bytesWritten == 0) {
-				break;
-			}
+		boolean allWritten;
+		if (channel instanceof SocketChannel) {
+			allWritten = writePendingStream(session, (SocketChannel) channel);
+		} else {
+			allWritten = writePendingDatagram(session, (DatagramChannel) channel);
 		}
 
-		if (buffer.hasRemaining()) {
+		if (!allWritten) {
 			// The channel's own buffer is full, so we have to save this for later.
-			Log.i(TAG, buffer.remaining() + " bytes unwritten for " + channel.toString());
-
-			// Put the remaining data from the buffer back into the session
-			session.setSendingData(buffer.compact());
+			Log.i(TAG, (session.getSendingDataSize() + session.getQueuedDatagramBytes()) +
+				" bytes unwritten for " + channel.toString());
 
 			// Subscribe to WRITE events, so we know when this is ready to resume.
 			session.subscribeKey(SelectionKey.OP_WRITE);
 		} else {
-			// All done, all good -> wait until the next TCP PSH / UDP packet
+			// All done, all good -> wait until more TCP data is flushed, or the next UDP packet
 			session.setDataForSendingReady(false);
 
 			// We don't need to know about WRITE events any more, we've written all our data.
-			// This is safe from races with new data, due to the session lock in NIO.
+			// This is safe from races with new data, as new data is only added on this thread.
 			session.unsubscribeKey(SelectionKey.OP_WRITE);
 		}
 	}
+
+	private boolean writePendingStream(Session session, SocketChannel channel) throws IOException {
+		// Write straight from the session's buffer chunks, with no intermediate copy. Anything
+		// that doesn't fit stays buffered in the session until the channel is writable again.
+		ByteBuffer[] slices = session.getSendingDataSlices();
+		long totalWritten = 0;
+
+		while (true) {
+			long bytesWritten = channel.write(slices);
+			if (bytesWritten <= 0) break;
+			totalWritten += bytesWritten;
+			if (!slices[slices.length - 1].hasRemaining()) break;
+		}
+
+		session.consumeSendingData((int) totalWritten);
+		session.addBytesOut(totalWritten);
+		return !session.hasDataToSend();
+	}
+
+	private boolean writePendingDatagram(Session session, DatagramChannel channel) throws IOException {
+		// Send each queued datagram with its own write, in order, so their boundaries are kept.
+		// Pooled sockets are shared & unconnected, so they're sent to the session's remote.
+		UdpSocketPool.PooledSocket pooledSocket = session.getPooledSocket();
+		int sent = 0;
+		ByteBuffer datagram;
+		while ((datagram = session.peekDatagram()) != null && sent < MAX_DATAGRAMS_PER_BATCH) {
+			int bytesWritten = pooledSocket != null
+				? pooledSocket.send(session, datagram)
+				: channel.write(datagram);
+
+			if (bytesWritten == 0) {
+				// Datagrams are all-or-nothing: it stays queued, to retry when writable again
+				datagramWritesDeferred.incrementAndGet();
+				break;
+			}
+
+			session.removeDatagram();
+			session.addBytesOut(bytesWritten);
+			sent++;
+		}
+
+		if (sent > 0) {
+			datagramsWritten.addAndGet(sent);
+			datagramBatches.incrementAndGet();
+		}
+
+		// Anything left (a full socket buffer, or a batch limit reached) waits for OP_WRITE
+		return session.peekDatagram() == null;
+	}
+
+	/**
+	 * Summarize how queued UDP datagrams have been written upstream, for logging
+	 */
+	@NonNull
+	public String describeDatagramWrites() {
+		long batches = datagramBatches.get();
+		long written = datagramsWritten.get();
+		return "UDP writes: " + written + " datagrams in " + batches + " batches (avg " +
+			(batches > 0 ? written / batches : 0) + "), " +
+			datagramWritesDeferred.get() + " deferred by full socket buffers";
+	}
 }
@@ -1,9 +1,16 @@
 package tech.httptoolkit.android.vpn.socket;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.EngineConfig;
+import tech.httptoolkit.android.vpn.FlowSnapshot;
+import tech.httptoolkit.android.vpn.PacketTooLargeException;
 import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.SessionManager;
+import tech.httptoolkit.android.vpn.buffer.BufferBudget;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.io.IOException;
@@ -18,9 +25,13 @@ import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.channels.UnsupportedAddressTypeException;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import tech.httptoolkit.android.TagKt;
 
@@ -30,32 +41,130 @@ import tech.httptoolkit.android.TagKt;
  *
  * It uses a Selector that fires on outgoing socket events (connected, readable, writable),
  * handles the resulting operations, and keeps those subscriptions up to date.
+ *
+ * This thread owns all session state. Other threads never touch sessions directly: they
+ * post tasks (e.g. handling a parsed packet from the VPN), which run here between selects.
+ * That means sessions, their buffers & their selection keys need no locking at all.
  */
 public class SocketNIODataService implements Runnable {
 
+	/**
+	 * A unit of work to run on the NIO thread. Any exception thrown is passed to the
+	 * service's error handler.
+	 */
+	public interface Task {
+		void run() throws Exception;
+	}
+
 	private final String TAG = TagKt.getTAG(this);
-	private final ReentrantLock nioSelectionLock = new ReentrantLock();
-	private final ReentrantLock nioHandlingLock = new ReentrantLock();
 	private final Selector selector = Selector.open();
 
+	// How often we recheck the buffer budget, whilst reads are paused because we're over it
+	private static final long THROTTLED_SELECT_TIMEOUT_MS = 50;
+
+	// How often we publish flow snapshots, whilst anybody is reading them
+	public static final long SNAPSHOT_INTERVAL_MS = 250;
+	// How long after the last snapshot read until we stop publishing them
+	private static final long SNAPSHOT_IDLE_TIMEOUT_MS = 5000;
+
+	private final SessionTimers timers = new SessionTimers();
 	private final SocketChannelReader reader;
 	private final SocketChannelWriter writer;
+	private final ClientPacketWriter clientPacketWriter;
+	private final SessionManager manager;
+	private final BufferBudget budget;
+	private final SocketBufferTuner bufferTuner;
+	private final boolean deferSynAck;
+	private final int connectTimeoutMs;
+
+	// Sessions whose reads we've paused due to the buffer budget. Only used on the NIO thread.
+	private final Set<Session> throttledSessions = new HashSet<>();
+
+	private final IErrorHandler errorHandler;
+
+	// Work posted from other threads, run on the NIO thread before each select
+	private final Queue<QueuedTask> pendingTasks = new ConcurrentLinkedQueue<>();
+	// Set when a wakeup is already on its way, so a burst of posted tasks wakes the selector once
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+	// Data uploaded by clients & the ACKs we've sent for it, updated on the NIO thread only, but
+	// read elsewhere for reporting
+	private final AtomicLong bytesUploaded = new AtomicLong(0);
+	private final AtomicLong uploadAcksSent = new AtomicLong(0);
+	private final AtomicLong delayedAcksSent = new AtomicLong(0);
+
+	// Upstream TCP connection outcomes & latencies (ms, from the client's SYN), updated on the
+	// NIO thread only, but read elsewhere for reporting
+	private final AtomicLong connectsSucceeded = new AtomicLong(0);
+	private final AtomicLong totalConnectTime = new AtomicLong(0);
+	private final AtomicLong connectsFailed = new AtomicLong(0);
+	private final AtomicLong connectsTimedOut = new AtomicLong(0);
+	private final AtomicLong totalFailedConnectTime = new AtomicLong(0);
+	private final AtomicLong firstByteCount = new AtomicLong(0);
+	private final AtomicLong totalTimeToFirstByte = new AtomicLong(0);
+
+	private final AtomicLong tasksPosted = new AtomicLong(0);
+	private final AtomicLong wakeupsSent = new AtomicLong(0);
+	// Only updated on the NIO thread, but read elsewhere for reporting
+	private volatile long tasksRun = 0;
+	private volatile long totalTaskWaitNanos = 0;
+	private volatile long maxTaskWaitNanos = 0;
+
+	// Flow snapshots are copied from the session table on this thread, and published here
+	private volatile FlowSnapshot flowSnapshot = FlowSnapshot.EMPTY;
+	private volatile long lastSnapshotReadTime = 0;
 
 	private volatile boolean shutdown = false;
 
-	
-	public SocketNIODataService(ClientPacketWriter clientPacketWriter) throws IOException {
-		reader = new SocketChannelReader(clientPacketWriter);
+	public SocketNIODataService(
+		ClientPacketWriter clientPacketWriter,
+		SessionManager manager,
+		BufferBudget budget,
+		EngineConfig config,
+		IErrorHandler errorHandler
+	) throws IOException {
+		this.clientPacketWriter = clientPacketWriter;
+		this.manager = manager;
+		this.budget = budget;
+		this.errorHandler = errorHandler;
+		bufferTuner = new SocketBufferTuner(config);
+		deferSynAck = config.deferSynAck;
+		connectTimeoutMs = config.connectTimeoutMs;
+		reader = new SocketChannelReader(clientPacketWriter, timers, config.maxReadSize);
 		writer = new SocketChannelWriter(clientPacketWriter);
 	}
 
 	@Override
 	public void run() {
 		Log.d(TAG,"SocketNIODataService starting in background...");
+		manager.setOwnerThread(Thread.currentThread());
 		runTask();
 	}
 
+	/**
+	 * Run the given task on the NIO thread, as soon as possible. Safe to call from any thread.
+	 */
+	public void post(Task task) {
+		pendingTasks.add(new QueuedTask(task, System.nanoTime()));
+		tasksPosted.incrementAndGet();
+
+		if (wakeupPending.compareAndSet(false, true)) {
+			wakeupsSent.incrementAndGet();
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Register a new session's channel with our selector. Must be called on the NIO thread.
+	 */
 	public void registerSession(Session session) throws ClosedChannelException {
+		UdpSocketPool.PooledSocket pooledSocket = session.getPooledSocket();
+		if (pooledSocket != null) {
+			// Pooled sessions share their socket's key, registered by the first to use it
+			manager.getUdpSocketPool().register(pooledSocket, selector);
+			return;
+		}
+
 		AbstractSelectableChannel channel = session.getChannel();
 
 		boolean isConnected = channel instanceof DatagramChannel
@@ -64,48 +173,242 @@ public class SocketNIODataService implements Runnable {
 
 		Log.i(TAG, "Registering new session: " + session);
 
-		Lock selectorLock = lockSelector(selector);
-		try {
-			SelectionKey selectionKey = channel.register(selector,
-					isConnected
-							? SelectionKey.OP_READ
-							: SelectionKey.OP_CONNECT
-			);
-			session.setSelectionKey(selectionKey);
-			selectionKey.attach(session);
-			Log.d(TAG, "Registered selector successfully");
-		} finally {
-			selectorLock.unlock();
+		SelectionKey selectionKey = channel.register(selector,
+				isConnected
+						? SelectionKey.OP_READ
+						: SelectionKey.OP_CONNECT
+		);
+		session.setSelectionKey(selectionKey);
+		selectionKey.attach(session);
+		Log.d(TAG, "Registered selector successfully");
+	}
+
+	/**
+	 * Called on the NIO thread when the client acks data or opens its window: sends any
+	 * upstream data that was waiting for window space, and resumes upstream reads once that's
+	 * all been sent.
+	 */
+	public void resumeDownload(Session session) {
+		reader.pushPendingData(session);
+
+		if (session.canReadUpstream() && !throttledSessions.contains(session)) {
+			session.subscribeKey(SelectionKey.OP_READ);
 		}
 	}
 
-	private Lock lockSelector(Selector selector) {
-		boolean gotSelectionLock = nioSelectionLock.tryLock();
-		if (gotSelectionLock) return nioSelectionLock;
+	/**
+	 * Called on the NIO thread when duplicate acks show the client is missing our oldest
+	 * unacked segment
+	 */
+	public void fastRetransmit(Session session) {
+		reader.fastRetransmit(session);
+	}
 
-		nioHandlingLock.lock(); // Ensure the NIO thread can't do anything on wakeup
-		selector.wakeup();
+	/**
+	 * Called on the NIO thread when a partial ack during recovery shows the client is missing
+	 * the next unacked segment too
+	 */
+	public void retransmitNextSegment(Session session) {
+		reader.retransmitNextSegment(session);
+	}
 
-		nioSelectionLock.lock(); // Actually get the lock we want
-		nioHandlingLock.unlock(); // Release the handling lock, which we no longer care about
+	/**
+	 * Make sure the session's timers will fire, after changing its deadlines. NIO thread only.
+	 */
+	public void scheduleTimers(Session session) {
+		timers.schedule(session);
+	}
 
-		return nioSelectionLock;
+	/**
+	 * Ack data just accepted from the client, either now or after a short delay. Delayed acks
+	 * are skipped entirely if anything else is sent to the client first, since every packet
+	 * we send carries our latest ack. NIO thread only.
+	 */
+	public void ackClientData(Session session, int length, boolean immediate) {
+		bytesUploaded.addAndGet(length);
+
+		if (immediate || session.onDataReceived(SystemClock.elapsedRealtime())) {
+			sendUploadAck(session);
+		} else {
+			timers.schedule(session);
+		}
+	}
+
+	private void sendUploadAck(Session session) {
+		clientPacketWriter.write(TCPPacketFactory.createResponseAckData(session));
+		uploadAcksSent.incrementAndGet();
 	}
 
 	/**
-	 * If the selector is currently select()ing, wake it up (e.g. to register changes to
-	 * interestOps). If it's not (and so it probably will select() very soon anyway) do nothing.
-	 * This is designed to be run after changing readyOps, to ensure the new ops get monitored
-	 * immediately (and fire immediately, if already ready). Without this, that blocks.
+	 * Summarize the ACKs sent for uploaded data so far, for logging
 	 */
-	public void refreshSelect(Session session) {
-		boolean gotLock = nioSelectionLock.tryLock();
+	public String describeUploadAcks() {
+		long bytes = bytesUploaded.get();
+		long acks = uploadAcksSent.get();
+		return "Uploads: " + (bytes / 1024) + "KB received, " + acks + " ACKs sent (" +
+			delayedAcksSent.get() + " delayed), " +
+			(bytes > 0 ? (acks * 1024 * 1024 / bytes) : 0) + " ACKs per MB";
+	}
 
-		if (!gotLock) {
-			session.getSelectionKey().selector().wakeup();
+	private final SessionTimers.Handler timerHandler = new SessionTimers.Handler() {
+		@Override
+		public void onTimer(Session session, long now) {
+			try {
+				runTimers(session, now);
+			} catch (PacketTooLargeException e) {
+				abortSession(session, e);
+			}
+		}
+
+		private void runTimers(Session session, long now) {
+			long flushDeadline = session.getUploadFlushDeadline();
+			if (flushDeadline != 0 && flushDeadline <= now) {
+				// Client data has waited long enough for more to coalesce with: write it now
+				session.setUploadFlushDeadline(0);
+				session.setDataForSendingReady(true);
+				session.subscribeKey(SelectionKey.OP_WRITE);
+			}
+
+			long ackDeadline = session.getDelayedAckDeadline();
+			if (ackDeadline != 0 && ackDeadline <= now) {
+				delayedAcksSent.incrementAndGet();
+				sendUploadAck(session);
+			}
+
+			long retransmitDeadline = session.getRetransmitDeadline();
+			if (retransmitDeadline != 0 && retransmitDeadline <= now) {
+				reader.onRetransmitTimeout(session, now);
+			}
+
+			long downloadFlushDeadline = session.getDownloadFlushDeadline();
+			if (downloadFlushDeadline != 0 && downloadFlushDeadline <= now) {
+				reader.onDownloadFlushTimeout(session);
+			}
+
+			long persistDeadline = session.getPersistDeadline();
+			if (persistDeadline != 0 && persistDeadline <= now) {
+				reader.onPersistTimeout(session, now);
+			}
+
+			long connectDeadline = session.getConnectDeadline();
+			if (connectDeadline != 0 && connectDeadline <= now && !session.isConnected()) {
+				connectsTimedOut.incrementAndGet();
+				Log.w(TAG, "Upstream connection timed out for " + session);
+				onConnectFailed(session, now);
+			}
+		}
+	};
+
+	/**
+	 * Answer a new TCP session's SYN, and track its upstream connection, once registered. A
+	 * connection that succeeded synchronously (as can happen for loopback & local network peers)
+	 * goes through onConnected just like one that completes later, so both are recorded & tuned
+	 * the same way. If SYN-ACKs are deferred, onConnected sends it. NIO thread only.
+	 */
+	public void startConnection(Session session) {
+		long now = SystemClock.elapsedRealtime();
+
+		if (deferSynAck) {
+			session.setSynAckPending(true);
 		} else {
-			nioSelectionLock.unlock();
+			clientPacketWriter.write(TCPPacketFactory.createSynAckData(session));
 		}
+
+		if (session.isConnected()) {
+			onConnected(session, now);
+		} else if (connectTimeoutMs > 0) {
+			session.setConnectDeadline(now + connectTimeoutMs);
+			timers.schedule(session);
+		}
+	}
+
+	/**
+	 * The upstream connection has succeeded: answer the client's SYN, if we were waiting for this
+	 */
+	private void onConnected(Session session, long now) {
+		session.setConnected(true);
+		session.setConnectDeadline(0);
+
+		connectsSucceeded.incrementAndGet();
+		totalConnectTime.addAndGet(now - session.getCreatedAt());
+		bufferTuner.onConnected(session, now);
+
+		if (session.isSynAckPending()) {
+			session.setSynAckPending(false);
+			clientPacketWriter.write(TCPPacketFactory.createSynAckData(session));
+		}
+	}
+
+	/**
+	 * The upstream connection failed or timed out: reset the client's connection straight away,
+	 * rather than letting it wait (or send data) for a connection that will never work. If we
+	 * haven't answered its SYN yet, the RST acks that, so the client accepts it in SYN-SENT.
+	 */
+	private void onConnectFailed(Session session, long now) {
+		connectsFailed.incrementAndGet();
+		totalFailedConnectTime.addAndGet(now - session.getCreatedAt());
+
+		session.setConnectDeadline(0);
+		session.setSynAckPending(false);
+		clientPacketWriter.write(TCPPacketFactory.createRstData(session));
+		manager.recordConnectFailure(session);
+
+		session.setAbortingConnection(true);
+		if (session.getSelectionKey() != null) session.cancelKey();
+		session.closeSession();
+	}
+
+	/**
+	 * Count an upstream connection that failed synchronously, before it had a session to close
+	 */
+	public void onConnectFailedImmediately() {
+		connectsFailed.incrementAndGet();
+	}
+
+	/**
+	 * Abort a session after a bug in handling it (e.g. building an oversized packet), so that
+	 * one broken session doesn't take down the whole NIO thread. NIO thread only.
+	 */
+	public void abortSession(Session session, RuntimeException e) {
+		Log.e(TAG, "Aborting " + session + " after error", e);
+		errorHandler.handleError(e);
+
+		if (session.getChannel() instanceof SocketChannel) {
+			clientPacketWriter.write(TCPPacketFactory.createRstData(session));
+		}
+
+		session.setAbortingConnection(true);
+		if (session.getSelectionKey() != null) session.cancelKey();
+		session.closeSession();
+		throttledSessions.remove(session);
+	}
+
+	/**
+	 * Called from any thread when the device's network changes. Recent connection failures may
+	 * not apply on the new network, so we forget them.
+	 */
+	public void onNetworkChanged() {
+		post(new Task() {
+			@Override
+			public void run() {
+				manager.clearConnectFailures();
+			}
+		});
+	}
+
+	/**
+	 * Summarize upstream connection outcomes & latencies, for logging
+	 */
+	public String describeConnects() {
+		long succeeded = connectsSucceeded.get();
+		long failed = connectsFailed.get();
+		long firstBytes = firstByteCount.get();
+		return "Upstream connects: " + succeeded + " succeeded (~" +
+			(succeeded > 0 ? totalConnectTime.get() / succeeded : 0) + "ms average), " +
+			failed + " failed (" + connectsTimedOut.get() + " timed out, ~" +
+			(failed > 0 ? totalFailedConnectTime.get() / failed : 0) + "ms average). " +
+			"Time to first byte: ~" + (firstBytes > 0 ? totalTimeToFirstByte.get() / firstBytes : 0) +
+			"ms average, over " + firstBytes + " sessions";
 	}
 
 	/**
@@ -116,13 +419,98 @@ public class SocketNIODataService implements Runnable {
 		selector.wakeup();
 	}
 
+	/**
+	 * Get the most recently published snapshot of all active flows. Safe to call from any thread,
+	 * and never blocks. Snapshots are only published whilst this is being called regularly, so
+	 * the first call after a pause may return an outdated snapshot, and trigger a refresh.
+	 */
+	public FlowSnapshot getFlowSnapshot() {
+		long now = SystemClock.elapsedRealtime();
+		boolean wasIdle = now - lastSnapshotReadTime > SNAPSHOT_IDLE_TIMEOUT_MS;
+		lastSnapshotReadTime = now;
+
+		// Make sure the selector isn't blocked indefinitely, so it starts publishing immediately
+		if (wasIdle && wakeupPending.compareAndSet(false, true)) {
+			wakeupsSent.incrementAndGet();
+			selector.wakeup();
+		}
+
+		return flowSnapshot;
+	}
+
+	/**
+	 * Publish a new snapshot if one is being read & the current one is outdated.
+	 * @return the time in ms until the next snapshot is due, or 0 if nobody is reading them.
+	 */
+	private long publishFlowSnapshotIfDue() {
+		long now = SystemClock.elapsedRealtime();
+		if (now - lastSnapshotReadTime > SNAPSHOT_IDLE_TIMEOUT_MS) {
+			if (flowSnapshot != FlowSnapshot.EMPTY) flowSnapshot = FlowSnapshot.EMPTY; // Drop stale data
+			return 0;
+		}
+
+		long snapshotAge = now - flowSnapshot.timestamp;
+		if (snapshotAge < SNAPSHOT_INTERVAL_MS) return SNAPSHOT_INTERVAL_MS - snapshotAge;
+
+		flowSnapshot = manager.buildFlowSnapshot(now);
+		return SNAPSHOT_INTERVAL_MS;
+	}
+
+	public String describeRetransmissions() {
+		return reader.describeRetransmissions();
+	}
+
+	public String describeZeroWindows() {
+		return reader.describeZeroWindows();
+	}
+
+	public String describeCoalescing() {
+		return reader.describeCoalescing();
+	}
+
+	public String describeSocketBuffers() {
+		return bufferTuner.describe();
+	}
+
+	public String describeDatagramWrites() {
+		return writer.describeDatagramWrites();
+	}
+
+	public String describeUdpSocketPool() {
+		UdpSocketPool pool = manager.getUdpSocketPool();
+		return pool != null ? pool.describe() : "UDP socket pool: disabled";
+	}
+
+	/**
+	 * Summarize the tasks handed to this thread, and how long they waited, for logging
+	 */
+	public String describeTasks() {
+		long runCount = tasksRun;
+		long averageWaitMicros = runCount > 0 ? totalTaskWaitNanos / runCount / 1000 : 0;
+
+		return "NIO tasks: " + tasksPosted.get() + " posted, " + runCount + " run, " +
+			wakeupsSent.get() + " selector wakeups. " +
+			"Queue wait: ~" + averageWaitMicros + "us average, " +
+			(maxTaskWaitNanos / 1000) + "us max";
+	}
+
 	private void runTask(){
 		Log.i(TAG, "NIO selector is running...");
 		
 		while(!shutdown){
+			// Run posted work first, so any interest changes it makes apply to this select
+			runPendingTasks();
+
+			// Wake up for timers, or periodically if we're throttled or publishing snapshots.
+			// A timeout of 0 blocks until an event.
+			long selectTimeout = timers.runExpired(SystemClock.elapsedRealtime(), timerHandler);
+			if (!throttledSessions.isEmpty()) {
+				selectTimeout = earliestTimeout(selectTimeout, THROTTLED_SELECT_TIMEOUT_MS);
+			}
+			selectTimeout = earliestTimeout(selectTimeout, publishFlowSnapshotIfDue());
+
 			try {
-				nioSelectionLock.lockInterruptibly();
-				selector.select();
+				selector.select(selectTimeout);
 			} catch (IOException e) {
 				Log.e(TAG,"Error in Selector.select(): " + e.getMessage());
 				try {
@@ -131,48 +519,75 @@ public class SocketNIODataService implements Runnable {
 					Log.e(TAG, e.toString());
 				}
 				continue;
-			} catch (InterruptedException ex) {
-				Log.i(TAG, "Select() interrupted");
-			} finally {
-				if (nioSelectionLock.isHeldByCurrentThread()) {
-					nioSelectionLock.unlock();
-				}
 			}
 
 			if (shutdown) {
 				break;
 			}
 
-			// A lock here makes it possible to reliably grab the selection lock above
-			nioHandlingLock.lock();
-			try {
-				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
-				while (iterator.hasNext()) {
-					SelectionKey key = iterator.next();
-					Session session = ((Session) key.attachment());
-					synchronized (session) { // Sessions are locked during processing (no VPN data races)
-						try {
-							processSelectionKey(key);
-						} catch (IOException e) {
-							synchronized (key) {
-								key.cancel();
-							}
-						}
-					}
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
-					iterator.remove();
-					if (shutdown) {
-						break;
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				try {
+					processSelectionKey(key);
+				} catch (IOException e) {
+					key.cancel();
+				} catch (PacketTooLargeException e) {
+					if (key.attachment() instanceof Session) {
+						abortSession((Session) key.attachment(), e);
+					} else {
+						errorHandler.handleError(e);
 					}
 				}
-			} finally {
-				nioHandlingLock.unlock();
+
+				iterator.remove();
+				if (shutdown) {
+					break;
+				}
 			}
+
+			enforceBudget();
 		}
 		Log.i(TAG, "NIO selector shutdown");
 	}
 
+	// Combine two select timeouts, where 0 means no timeout
+	private static long earliestTimeout(long a, long b) {
+		if (a == 0) return b;
+		if (b == 0) return a;
+		return Math.min(a, b);
+	}
+
+	private void runPendingTasks() {
+		// Cleared before draining, so a task posted after this point always triggers a wakeup
+		wakeupPending.set(false);
+
+		QueuedTask queuedTask;
+		while (!shutdown && (queuedTask = pendingTasks.poll()) != null) {
+			long waitNanos = System.nanoTime() - queuedTask.postedAt;
+			totalTaskWaitNanos += waitNanos;
+			if (waitNanos > maxTaskWaitNanos) maxTaskWaitNanos = waitNanos;
+			tasksRun++;
+
+			try {
+				queuedTask.task.run();
+			} catch (Exception e) {
+				errorHandler.handleError(e);
+			}
+		}
+	}
+
+	private static class QueuedTask {
+		final Task task;
+		final long postedAt;
+
+		QueuedTask(Task task, long postedAt) {
+			this.task = task;
+			this.postedAt = postedAt;
+		}
+	}
+
 	private void processSelectionKey(SelectionKey key) throws IOException {
 		if (!key.isValid()) {
 			Log.d(TAG,"Invalid SelectionKey");
@@ -181,7 +596,13 @@ public class SocketNIODataService implements Runnable {
 
 		SelectableChannel channel = key.channel();
 
-		Session session = ((Session) key.attachment());
+		Object attachment = key.attachment();
+		if (attachment instanceof UdpSocketPool.PooledSocket) {
+			processPooledSocketSelection(key, (UdpSocketPool.PooledSocket) attachment);
+			return;
+		}
+
+		Session session = ((Session) attachment);
 		if (session == null) {
 			Log.w(TAG, "Key fired with no session attached");
 			return;
@@ -191,8 +612,15 @@ public class SocketNIODataService implements Runnable {
 			SocketChannel socketChannel = (SocketChannel) channel;
 
 			if (socketChannel.isConnectionPending()) {
-				boolean connected = socketChannel.finishConnect();
-				session.setConnected(connected);
+				boolean connected;
+				try {
+					connected = socketChannel.finishConnect();
+				} catch (IOException e) {
+					Log.w(TAG, "Upstream connection failed for " + session + ": " + e.getMessage());
+					onConnectFailed(session, SystemClock.elapsedRealtime());
+					return;
+				}
+				if (connected) onConnected(session, SystemClock.elapsedRealtime());
 			} else {
 				throw new IllegalStateException("TCP channels must either be connected or pending connection");
 			}
@@ -203,6 +631,20 @@ public class SocketNIODataService implements Runnable {
 		}
 	}
 
+	private void processPooledSocketSelection(SelectionKey key, UdpSocketPool.PooledSocket socket) {
+		UdpSocketPool pool = manager.getUdpSocketPool();
+
+		// UDP replies are passed straight to the client, never buffered, so these reads aren't
+		// throttled by the buffer budget
+		if (key.isReadable()) {
+			reader.readPooled(pool, socket);
+		}
+
+		if (key.isValid() && key.isWritable()) {
+			pool.writePending(socket, writer);
+		}
+	}
+
 	private boolean isConnected(SelectableChannel channel) {
 		if (channel instanceof DatagramChannel) {
 			return ((DatagramChannel) channel).isConnected();
@@ -214,39 +656,99 @@ public class SocketNIODataService implements Runnable {
 	}
 
 	private void processConnectedSelection(SelectionKey key, Session session) {
-		// Whilst connected, we always want READ and not CONNECT events
+		// Whilst connected, we want READ (unless throttled, or waiting on the client's window)
+		// and not CONNECT events
 		session.unsubscribeKey(SelectionKey.OP_CONNECT);
-		session.subscribeKey(SelectionKey.OP_READ);
+		if (!throttledSessions.contains(session) && session.canReadUpstream()) {
+			session.subscribeKey(SelectionKey.OP_READ);
+		}
 		processSelectorRead(key, session);
 		processPendingWrite(key, session);
 	}
 
 	private void processSelectorRead(SelectionKey selectionKey, Session session) {
-		boolean canRead;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canRead = selectionKey.isValid() && selectionKey.isReadable();
+		if (!selectionKey.isValid() || !selectionKey.isReadable()) return;
+
+		if (budget.isOverSoftLimit()) {
+			budget.onReadThrottled();
+
+			// We're buffering too much already: leave this data upstream (where TCP flow control
+			// will slow down the sender) until we've drained some of our buffers.
+			session.unsubscribeKey(SelectionKey.OP_READ);
+			throttledSessions.add(session);
+			return;
 		}
 
-		if (canRead) reader.read(session);
+		boolean isFirstRead = session.getBytesIn() == 0;
+		reader.read(session);
+
+		if (session.getChannel() instanceof SocketChannel && !session.isAbortingConnection()) {
+			long now = SystemClock.elapsedRealtime();
+			if (isFirstRead && session.getBytesIn() > 0) {
+				firstByteCount.incrementAndGet();
+				totalTimeToFirstByte.addAndGet(now - session.getCreatedAt());
+			}
+			bufferTuner.onTransfer(session, now);
+		}
+	}
+
+	/**
+	 * Run after each round of selection: resumes throttled reads if we're back under budget,
+	 * or sheds the largest sessions if we're so far over budget that throttling isn't enough.
+	 */
+	private void enforceBudget() {
+		long bytesToShed = budget.getBytesToShed();
+		if (bytesToShed > 0) {
+			for (Session session : manager.getSessionsByBufferedSize()) {
+				if (bytesToShed <= 0) break;
+				bytesToShed -= shedSession(session);
+			}
+		}
+
+		if (!throttledSessions.isEmpty() && !budget.isOverSoftLimit()) {
+			for (Session session : throttledSessions) {
+				// TCP sessions waiting on the client's window stay paused: an ACK will resume
+				// them. UDP sessions have no window, so always resume here.
+				if (session.canReadUpstream()) session.subscribeKey(SelectionKey.OP_READ);
+			}
+			throttledSessions.clear();
+		}
+	}
+
+	private int shedSession(Session session) {
+		int bufferedBytes = session.getBufferedBytes();
+		Log.w(TAG, "Over buffer budget, shedding " + session + " with " + bufferedBytes + " bytes buffered");
+
+		if (session.getChannel() instanceof SocketChannel) {
+			clientPacketWriter.write(TCPPacketFactory.createRstData(session));
+		}
+
+		session.setAbortingConnection(true);
+		if (session.getSelectionKey() != null) session.cancelKey();
+		session.closeSession();
+		throttledSessions.remove(session);
+
+		budget.onSessionShed(bufferedBytes);
+		return bufferedBytes;
 	}
 
 	private void processPendingWrite(SelectionKey selectionKey, Session session) {
-		// Nothing to write? Skip this entirely, and make sure we're not subscribed
-		if (!session.hasDataToSend() || !session.isDataForSendingReady()) {
+		// Nothing to write (or shut down)? Skip this entirely, and make sure we're not subscribed
+		if (
+			(!session.hasDataToSend() || !session.isDataForSendingReady()) &&
+			!session.isUpstreamShutdownPending()
+		) {
 			session.unsubscribeKey(SelectionKey.OP_WRITE);
 			return;
 		}
 
-		boolean canWrite;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canWrite = selectionKey.isValid() && selectionKey.isWritable();
-		}
-
-		if (canWrite) {
+		if (selectionKey.isValid() && selectionKey.isWritable()) {
 			session.unsubscribeKey(SelectionKey.OP_WRITE);
 			writer.write(session); // This will resubscribe to OP_WRITE if it can't complete
+
+			if (session.getChannel() instanceof SocketChannel && !session.isAbortingConnection()) {
+				bufferTuner.onTransfer(session, SystemClock.elapsedRealtime());
+			}
 		}
 	}
 }
@@ -0,0 +1,291 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tech.httptoolkit.android.TagKt;
+import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.util.PacketUtil;
+
+/**
+ * A small, fixed pool of unconnected upstream UDP sockets, shared by many UDP sessions.
+ *
+ * Otherwise, each UDP flow gets its own connected & protected socket, so apps that make lots
+ * of DNS or QUIC flows use up file descriptors & selector keys quickly. With a pool, sessions
+ * instead send through one of a few shared sockets, and replies are matched back to the right
+ * session by their source address. Each socket can only carry one session per remote address
+ * (or replies would be ambiguous), so if every socket already has a session for a remote, a
+ * new session to it falls back to a dedicated socket.
+ *
+ * Pooled sessions have no selection key of their own: each socket's key is shared by all its
+ * sessions, with the PooledSocket attached. Pooled sessions that have been idle for
+ * IDLE_TIMEOUT_MS are closed, to free their place. Only used on the NIO thread, except for
+ * the counters, which are read elsewhere for reporting.
+ */
+public class UdpSocketPool {
+
+	private final String TAG = TagKt.getTAG(this);
+
+	// How long a pooled session may go without sending or receiving before it's closed
+	static final long IDLE_TIMEOUT_MS = 60 * 1000;
+	// How often we look for idle sessions, when new sessions are created
+	private static final long EXPIRY_INTERVAL_MS = 5 * 1000;
+
+	private static final class Flow {
+		final Session session;
+		final InetSocketAddress remoteAddress;
+		long lastActive;
+
+		Flow(Session session, InetSocketAddress remoteAddress, long now) {
+			this.session = session;
+			this.remoteAddress = remoteAddress;
+			this.lastActive = now;
+		}
+	}
+
+	public static final class PooledSocket {
+		private final DatagramChannel channel;
+		private SelectionKey selectionKey = null;
+
+		// The sessions sending through this socket, by remote address
+		private final HashMap<Long, Flow> flows = new HashMap<>();
+
+		// Sessions with datagrams waiting for this socket to be writable, in the order they asked
+		private final LinkedHashSet<Session> pendingWrites = new LinkedHashSet<>();
+
+		PooledSocket(DatagramChannel channel) {
+			this.channel = channel;
+		}
+
+		DatagramChannel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Write this session's queued datagrams when the socket is next writable
+		 */
+		public void requestWrite(@NonNull Session session) {
+			pendingWrites.add(session);
+			if (selectionKey != null && selectionKey.isValid()) {
+				selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Send one of a session's datagrams to its remote address
+		 * @return the bytes sent, or 0 if the socket's buffer is full
+		 */
+		int send(@NonNull Session session, @NonNull ByteBuffer datagram) throws IOException {
+			Flow flow = flows.get(getKey(session.getDestIp(), session.getDestPort()));
+			if (flow == null || flow.session != session) {
+				throw new IOException("Session is not using this pooled socket: " + session);
+			}
+
+			int bytesSent = channel.send(datagram, flow.remoteAddress);
+			if (bytesSent > 0) flow.lastActive = SystemClock.elapsedRealtime();
+			return bytesSent;
+		}
+
+		@Override
+		public String toString() {
+			return "PooledSocket (" + flows.size() + " sessions)";
+		}
+	}
+
+	private final int size;
+	private final SocketProtector protector;
+	private final List<PooledSocket> sockets = new ArrayList<>();
+
+	private long nextExpiryCheck = 0;
+
+	private final AtomicLong sessionsPooled = new AtomicLong(0);
+	private final AtomicLong sessionsUnpooled = new AtomicLong(0);
+	private final AtomicLong sessionsExpired = new AtomicLong(0);
+	private final AtomicLong datagramsDemultiplexed = new AtomicLong(0);
+	private final AtomicLong datagramsUnmatched = new AtomicLong(0);
+
+	public UdpSocketPool(int size, SocketProtector protector) {
+		this.size = size;
+		this.protector = protector;
+	}
+
+	private static long getKey(int ip, int port) {
+		return ((long) ip << 32) | (port & 0xFFFF);
+	}
+
+	/**
+	 * Assign a new UDP session to a pooled socket, opening one if needed.
+	 * @return false if no socket can carry this session, so it needs a dedicated socket instead
+	 */
+	public boolean assign(@NonNull Session session) throws IOException {
+		long now = SystemClock.elapsedRealtime();
+		if (now >= nextExpiryCheck) {
+			nextExpiryCheck = now + EXPIRY_INTERVAL_MS;
+			expireIdleSessions(now);
+		}
+
+		long key = getKey(session.getDestIp(), session.getDestPort());
+
+		// Use the least loaded socket that doesn't already have a session for this remote, but
+		// open a new one instead while the pool isn't full, to spread sessions out
+		PooledSocket target = null;
+		for (PooledSocket socket : sockets) {
+			if (socket.flows.containsKey(key)) continue;
+			if (target == null || socket.flows.size() < target.flows.size()) target = socket;
+		}
+		if ((target == null || !target.flows.isEmpty()) && sockets.size() < size) {
+			target = openSocket();
+		}
+
+		if (target == null) {
+			sessionsUnpooled.incrementAndGet();
+			return false;
+		}
+
+		InetSocketAddress remoteAddress = new InetSocketAddress(
+			PacketUtil.intToIPAddress(session.getDestIp()),
+			session.getDestPort()
+		);
+		target.flows.put(key, new Flow(session, remoteAddress, now));
+		session.setChannel(target.channel);
+		session.setPooledSocket(target);
+		// Unconnected sockets can always send, so the session is usable straight away
+		session.setConnected(true);
+
+		sessionsPooled.incrementAndGet();
+		return true;
+	}
+
+	private PooledSocket openSocket() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().setSoTimeout(0);
+		channel.configureBlocking(false);
+		protector.protect(channel.socket());
+
+		PooledSocket socket = new PooledSocket(channel);
+		sockets.add(socket);
+		Log.i(TAG, "Opened pooled UDP socket " + sockets.size() + " of " + size);
+		return socket;
+	}
+
+	/**
+	 * Register the socket with the NIO selector, if it isn't already, so we hear about replies
+	 */
+	void register(@NonNull PooledSocket socket, @NonNull Selector selector) throws ClosedChannelException {
+		if (socket.selectionKey != null) return;
+
+		socket.selectionKey = socket.channel.register(selector, SelectionKey.OP_READ, socket);
+		if (!socket.pendingWrites.isEmpty()) {
+			socket.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Remove a closed session from its socket. The socket itself stays open for other sessions.
+	 */
+	public void release(@NonNull Session session) {
+		PooledSocket socket = session.getPooledSocket();
+		if (socket == null) return;
+
+		long key = getKey(session.getDestIp(), session.getDestPort());
+		Flow flow = socket.flows.get(key);
+		if (flow != null && flow.session == session) socket.flows.remove(key);
+		socket.pendingWrites.remove(session);
+		session.setPooledSocket(null);
+	}
+
+	private void expireIdleSessions(long now) {
+		List<Session> idleSessions = null;
+
+		for (PooledSocket socket : sockets) {
+			for (Flow flow : socket.flows.values()) {
+				if (now - flow.lastActive < IDLE_TIMEOUT_MS) continue;
+				if (idleSessions == null) idleSessions = new ArrayList<>();
+				idleSessions.add(flow.session);
+			}
+		}
+		if (idleSessions == null) return;
+
+		// Closed after iterating, since closing releases each session from its socket's flows
+		for (Session session : idleSessions) {
+			session.setAbortingConnection(true);
+			session.closeSession();
+		}
+		sessionsExpired.addAndGet(idleSessions.size());
+		Log.d(TAG, "Closed " + idleSessions.size() + " idle pooled UDP sessions");
+	}
+
+	/**
+	 * Find the session that a datagram received on this socket belongs to, by its source address
+	 * @return the session, or null if no session on this socket is talking to that address
+	 */
+	@Nullable
+	Session demultiplex(@NonNull PooledSocket socket, @NonNull SocketAddress source, long now) {
+		InetAddress address = ((InetSocketAddress) source).getAddress();
+		byte[] addressBytes = address.getAddress();
+
+		Flow flow = null;
+		if (addressBytes.length == 4) {
+			int ip = PacketUtil.getNetworkInt(addressBytes, 0, 4);
+			flow = socket.flows.get(getKey(ip, ((InetSocketAddress) source).getPort()));
+		}
+
+		if (flow == null) {
+			datagramsUnmatched.incrementAndGet();
+			return null;
+		}
+
+		flow.lastActive = now;
+		datagramsDemultiplexed.incrementAndGet();
+		return flow.session;
+	}
+
+	/**
+	 * Write queued datagrams for each session waiting on this socket, now it's writable. Each
+	 * session gets one batch per call, and any with more left go back to the end of the line.
+	 */
+	void writePending(@NonNull PooledSocket socket, @NonNull SocketChannelWriter writer) {
+		for (int i = socket.pendingWrites.size(); i > 0 && !socket.pendingWrites.isEmpty(); i--) {
+			Iterator<Session> iterator = socket.pendingWrites.iterator();
+			Session session = iterator.next();
+			iterator.remove();
+
+			// Requeues the session via requestWrite, if it can't write everything
+			writer.write(session);
+		}
+
+		if (socket.pendingWrites.isEmpty() && socket.selectionKey.isValid()) {
+			socket.selectionKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Summarize how UDP sessions have used the pool, for logging
+	 */
+	@NonNull
+	public String describe() {
+		return "UDP socket pool: " + sockets.size() + " of " + size + " sockets open, " +
+			sessionsPooled.get() + " sessions pooled, " + sessionsUnpooled.get() + " given dedicated sockets, " +
+			sessionsExpired.get() + " expired when idle. " + datagramsDemultiplexed.get() + " replies matched, " +
+			datagramsUnmatched.get() + " unmatched & dropped";
+	}
+}
@@ -20,6 +20,8 @@ import androidx.annotation.NonNull;
 
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
 
+import tech.httptoolkit.android.vpn.util.PacketUtil;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -29,6 +31,46 @@ import java.nio.ByteOrder;
  * Date: June 30, 2014
  */
 public class IPPacketFactory {
+
+	// Length of the headers we generate ourselves, which never include IP options
+	public static final int IP_HEADER_LENGTH = 20;
+
+	private static final int DEFAULT_TTL = 64;
+
+	/**
+	 * write a complete 20 byte IPv4 header (with no options, and DF set) for a packet we're
+	 * sending to the VPN client, directly into the given buffer, including its checksum.
+	 * @param buffer array to write to
+	 * @param offset position of the start of the IP header
+	 * @param totalLength length of the entire IP packet, including this header
+	 * @param protocol transport protocol number (6 for TCP, 17 for UDP)
+	 * @param sourceIp source address
+	 * @param destIp destination address
+	 */
+	public static void writeIPv4Header(@NonNull byte[] buffer, int offset, int totalLength,
+									   int protocol, int sourceIp, int destIp){
+		final int identification = PacketUtil.getPacketId();
+
+		buffer[offset] = 0x45; // Version 4, header length 5 words
+		buffer[offset + 1] = 0; // DSCP & ECN
+		buffer[offset + 2] = (byte) (totalLength >> 8);
+		buffer[offset + 3] = (byte) totalLength;
+		buffer[offset + 4] = (byte) (identification >> 8);
+		buffer[offset + 5] = (byte) identification;
+		buffer[offset + 6] = 0x40; // Don't fragment, no fragment offset
+		buffer[offset + 7] = 0;
+		buffer[offset + 8] = (byte) DEFAULT_TTL;
+		buffer[offset + 9] = (byte) protocol;
+		buffer[offset + 10] = 0; // Checksum, calculated below
+		buffer[offset + 11] = 0;
+		PacketUtil.writeIntToBytes(sourceIp, buffer, offset + 12);
+		PacketUtil.writeIntToBytes(destIp, buffer, offset + 16);
+
+		final int checksum = PacketUtil.internetChecksum(buffer, offset, IP_HEADER_LENGTH, 0);
+		buffer[offset + 10] = (byte) (checksum >> 8);
+		buffer[offset + 11] = (byte) checksum;
+	}
+
 	/**
 	 * make new instance of IPv4Header
 	 * @param iPv4Header instance of IPv4Header
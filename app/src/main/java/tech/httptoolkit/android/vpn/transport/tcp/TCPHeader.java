@@ -47,7 +47,9 @@ public class TCPHeader implements ITransportHeader{
 	//vars below need to be set via setters when copy
 	private int maxSegmentSize = 0;
 	private int windowScale = 0;
+	private boolean hasWindowScale = false;
 	private boolean isSelectiveAckPermitted = false;
+	private boolean hasTimeStamp = false;
 	private int timeStampSender = 0;
 	private int timeStampReplyTo = 0;
 
@@ -249,8 +251,17 @@ public class TCPHeader implements ITransportHeader{
 	}
 	void setWindowScale(int windowScale) {
 		this.windowScale = windowScale;
+		this.hasWindowScale = true;
 	}
-	boolean isSelectiveAckPermitted() {
+	/**
+	 * whether the window scale option was present. A scale of 0 is a valid offer, which enables
+	 * scaling of our own windows.
+	 * @return boolean
+	 */
+	public boolean hasWindowScale() {
+		return hasWindowScale;
+	}
+	public boolean isSelectiveAckPermitted() {
 		return isSelectiveAckPermitted;
 	}
 	void setSelectiveAckPermitted(boolean isSelectiveAckPermitted) {
@@ -261,8 +272,12 @@ public class TCPHeader implements ITransportHeader{
 	}
 	void setTimeStampSender(int timeStampSender) {
 		this.timeStampSender = timeStampSender;
+		this.hasTimeStamp = true;
+	}
+	public boolean hasTimeStamp() {
+		return hasTimeStamp;
 	}
-	int getTimeStampReplyTo() {
+	public int getTimeStampReplyTo() {
 		return timeStampReplyTo;
 	}
 	void setTimeStampReplyTo(int timeStampReplyTo) {
@@ -18,21 +18,18 @@ package tech.httptoolkit.android.vpn.transport.tcp;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import android.os.SystemClock;
 import android.util.Log;
 
-import tech.httptoolkit.android.vpn.Packet;
+import tech.httptoolkit.android.vpn.Session;
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Date;
 import java.util.Random;
 
-import tech.httptoolkit.android.TagKt;
-
 import static tech.httptoolkit.android.TagKt.formatTag;
 
 /**
@@ -41,422 +38,366 @@ import static tech.httptoolkit.android.TagKt.formatTag;
  * Date: May 8, 2014
  */
 public class TCPPacketFactory {
-	private final String TAG = TagKt.getTAG(this);
-	
-	private static TCPHeader copyTCPHeader(TCPHeader tcpheader){
-		final TCPHeader tcp = new TCPHeader(tcpheader.getSourcePort(),
-				tcpheader.getDestinationPort(), tcpheader.getSequenceNumber(),
-				tcpheader.getAckNumber(), tcpheader.getDataOffset(), tcpheader.isNS(),
-				tcpheader.getTcpFlags(), tcpheader.getWindowSize(),
-				tcpheader.getChecksum(), tcpheader.getUrgentPointer());
-
-		tcp.setMaxSegmentSize(tcpheader.getMaxSegmentSize());
-		tcp.setWindowScale(tcpheader.getWindowScale());
-		tcp.setSelectiveAckPermitted(tcpheader.isSelectiveAckPermitted());
-		tcp.setTimeStampSender(tcpheader.getTimeStampSender());
-		tcp.setTimeStampReplyTo(tcpheader.getTimeStampReplyTo());
-		return tcp;
+
+	public static final int FLAG_FIN = 0x01;
+	public static final int FLAG_SYN = 0x02;
+	public static final int FLAG_RST = 0x04;
+	public static final int FLAG_PSH = 0x08;
+	public static final int FLAG_ACK = 0x10;
+
+	private static final int TCP_PROTOCOL = 6;
+
+	// Length of the TCP headers we generate ourselves, excluding options
+	private static final int TCP_HEADER_LENGTH = 20;
+
+	// NOP, NOP, then the 10 byte timestamp option, as carried by every segment once negotiated
+	private static final int TIMESTAMP_OPTIONS_LENGTH = 12;
+
+	// The smallest client MSS we'll honour, as Linux's tcp_min_snd_mss, so a tiny or bogus MSS
+	// can't have us sending data a few bytes at a time
+	private static final int MIN_SEND_MAX_SEGMENT_SIZE = 48;
+
+	// Receive window we advertise to the client
+	private static final int DEFAULT_WINDOW_SIZE = 0xFFFF;
+
+	private static final Random random = new Random();
+
+	/**
+	 * generate a random initial sequence number for a new connection
+	 * @return long
+	 */
+	public static long createInitialSequenceNumber(){
+		long seqNumber = random.nextInt();
+		if(seqNumber < 0){
+			seqNumber = seqNumber * -1;
+		}
+		Log.d(formatTag(TCPPacketFactory.class.getName()),"Set Initial Sequence number: "+seqNumber);
+		return seqNumber;
 	}
 
 	/**
-	 * create FIN-ACK for sending to client
-	 * @param iPv4Header IP Header
-	 * @param tcpHeader TCP Header
+	 * create FIN-ACK for sending to client, in response to a packet from the client
+	 * @param ipHeader IP Header of the client's packet
+	 * @param tcpHeader TCP Header of the client's packet
 	 * @param ackToClient acknowledge
 	 * @param seqToClient sequence
 	 * @return byte[]
 	 */
-	public static byte[] createFinAckData(IPv4Header iPv4Header, TCPHeader tcpHeader,
+	public static byte[] createFinAckData(IPv4Header ipHeader, TCPHeader tcpHeader,
 								   long ackToClient, long seqToClient,
 								   boolean isFin, boolean isAck){
-		IPv4Header ip = IPPacketFactory.copyIPv4Header(iPv4Header);
-		TCPHeader tcp = copyTCPHeader(tcpHeader);
-		
-		//flip IP from source to dest and vice-versa
-		int sourceIp = ip.getDestinationIP();
-		int destIp = ip.getSourceIP();
-		int sourcePort = tcp.getDestinationPort();
-		int destPort = tcp.getSourcePort();
-		
-		ip.setDestinationIP(destIp);
-		ip.setSourceIP(sourceIp);
-		tcp.setDestinationPort(destPort);
-		tcp.setSourcePort(sourcePort);
-		
-		tcp.setAckNumber(ackToClient);
-		tcp.setSequenceNumber(seqToClient);
-		
-		ip.setIdentification(PacketUtil.getPacketId());
-		
-		//ACK
-		tcp.setIsACK(isAck);
-		tcp.setIsSYN(false);
-		tcp.setIsPSH(false);
-		tcp.setIsFIN(isFin);
-		
-		//set response timestamps in options fields
-		tcp.setTimeStampReplyTo(tcp.getTimeStampSender());
-		Date currentDate = new Date();
-		int senderTimestamp = (int)currentDate.getTime();
-		tcp.setTimeStampSender(senderTimestamp);
-		
-		//recalculate IP length
-		int totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength();
-		
-		ip.setTotalLength(totalLength);
-		
-		return createPacketData(ip, tcp, null);
-	}
-
-	public static byte[] createFinData(IPv4Header ip, TCPHeader tcp, long ackNumber, long seqNumber, int timeSender, int timeReplyTo){
-		//flip IP from source to dest and vice-versa
-		int sourceIp = ip.getDestinationIP();
-		int destIp = ip.getSourceIP();
-		int sourcePort = tcp.getDestinationPort();
-		int destPort = tcp.getSourcePort();
-		
-		tcp.setAckNumber(ackNumber);
-		tcp.setSequenceNumber(seqNumber);
-		
-		tcp.setTimeStampReplyTo(timeReplyTo);
-		tcp.setTimeStampSender(timeSender);
-		
-		ip.setDestinationIP(destIp);
-		ip.setSourceIP(sourceIp);
-		tcp.setDestinationPort(destPort);
-		tcp.setSourcePort(sourcePort);
-		
-		ip.setIdentification(PacketUtil.getPacketId());
-		
-		tcp.setIsRST(false);
-		tcp.setIsACK(true);
-		tcp.setIsSYN(false);
-		tcp.setIsPSH(false);
-		tcp.setIsCWR(false);
-		tcp.setIsECE(false);
-		tcp.setIsFIN(true);
-		tcp.setIsNS(false);
-		tcp.setIsURG(false);
-		
-		//remove any option field
-		tcp.setOptions(null);
-
-		//window size should be zero
-		tcp.setWindowSize(0);
-		
-		//recalculate IP length
-		int totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength();
-		
-		ip.setTotalLength(totalLength);
-		
-		return createPacketData(ip, tcp, null);
+		final int flags = (isFin ? FLAG_FIN : 0) | (isAck ? FLAG_ACK : 0);
+		return createReplyData(ipHeader, tcpHeader, seqToClient, ackToClient, flags);
 	}
 
 	/**
 	 * create packet with RST flag for sending to client when reset is required.
-	 * @param ipheader IP Header
-	 * @param tcpheader TCP Header
+	 * @param ipheader IP Header of the client's packet
+	 * @param tcpheader TCP Header of the client's packet
 	 * @param datalength Data Length
 	 * @return byte[]
 	 */
 	public static byte[] createRstData(IPv4Header ipheader, TCPHeader tcpheader, int datalength){
-		IPv4Header ip = IPPacketFactory.copyIPv4Header(ipheader);
-		TCPHeader tcp = copyTCPHeader(tcpheader);
-		
-		//flip IP from source to dest and vice-versa
-		int sourceIp = ip.getDestinationIP();
-		int destIp = ip.getSourceIP();
-		int sourcePort = tcp.getDestinationPort();
-		int destPort = tcp.getSourcePort();
-		
-		long ackNumber = 0;
-		long seqNumber = 0;
-		
-		if(tcp.getAckNumber() > 0){
-			seqNumber = tcp.getAckNumber();
-		}else{
-			ackNumber = tcp.getSequenceNumber() + datalength;
+		// As in RFC 793: if the incoming segment had an ACK, the RST takes its sequence number
+		// from that ACK. Otherwise it has sequence 0, and acks everything in the segment.
+		if (tcpheader.isACK()) {
+			return createReplyData(ipheader, tcpheader, tcpheader.getAckNumber(), 0, FLAG_RST);
+		} else {
+			long ackNumber = tcpheader.getSequenceNumber() + datalength;
+			if (tcpheader.isSYN() || tcpheader.isFIN()) ackNumber += 1;
+			return createReplyData(ipheader, tcpheader, 0, ackNumber, FLAG_RST | FLAG_ACK);
 		}
-		tcp.setAckNumber(ackNumber);
-		tcp.setSequenceNumber(seqNumber);
-		
-		ip.setDestinationIP(destIp);
-		ip.setSourceIP(sourceIp);
-		tcp.setDestinationPort(destPort);
-		tcp.setSourcePort(sourcePort);
-		
-		ip.setIdentification(0);
-		
-		tcp.setIsRST(true);
-		tcp.setIsACK(false);
-		tcp.setIsSYN(false);
-		tcp.setIsPSH(false);
-		tcp.setIsCWR(false);
-		tcp.setIsECE(false);
-		tcp.setIsFIN(false);
-		tcp.setIsNS(false);
-		tcp.setIsURG(false);
-		
-		//remove any option field
-		tcp.setOptions(null);
-
-		//window size should be zero
-		tcp.setWindowSize(0);
-		
-		//recalculate IP length
-		int totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength();
-		
-		ip.setTotalLength(totalLength);
-		
-		return createPacketData(ip, tcp, null);
 	}
 
 	/**
 	 * Acknowledgment to client that server has received request.
-	 * @param ipHeader IP Header
-	 * @param tcpheader TCP Header
+	 * @param ipHeader IP Header of the client's packet
+	 * @param tcpheader TCP Header of the client's packet
 	 * @param ackToClient Acknowledge
 	 * @return byte[]
 	 */
 	public static byte[] createResponseAckData(IPv4Header ipHeader, TCPHeader tcpheader, long ackToClient){
-		IPv4Header ip = IPPacketFactory.copyIPv4Header(ipHeader);
-		TCPHeader tcp = copyTCPHeader(tcpheader);
-		
-		//flip IP from source to dest and vice-versa
-		int sourceIp = ip.getDestinationIP();
-		int destIp = ip.getSourceIP();
-		int sourcePort = tcp.getDestinationPort();
-		int destPort = tcp.getSourcePort();
-		
-		long seqNumber = tcp.getAckNumber();
-		
-		ip.setDestinationIP(destIp);
-		ip.setSourceIP(sourceIp);
-		tcp.setDestinationPort(destPort);
-		tcp.setSourcePort(sourcePort);
-		
-		tcp.setAckNumber(ackToClient);
-		tcp.setSequenceNumber(seqNumber);
-		
-		ip.setIdentification(PacketUtil.getPacketId());
-		
-		//ACK
-		tcp.setIsACK(true);
-		tcp.setIsSYN(false);
-		tcp.setIsPSH(false);
-		tcp.setIsFIN(false);
-		
-		//set response timestamps in options fields
-		tcp.setTimeStampReplyTo(tcp.getTimeStampSender());
-		Date currentdate = new Date();
-		int sendertimestamp = (int)currentdate.getTime();
-		tcp.setTimeStampSender(sendertimestamp);
-		
-		//recalculate IP length
-		int totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength();
-		
-		ip.setTotalLength(totalLength);
-		
-		return createPacketData(ip, tcp, null);
+		return createReplyData(ipHeader, tcpheader, tcpheader.getAckNumber(), ackToClient, FLAG_ACK);
+	}
+
+	private static byte[] createReplyData(IPv4Header ip, TCPHeader tcp, long seq, long ack, int flags){
+		//flip IP & ports from source to dest and vice-versa
+		return createPacketData(ip.getDestinationIP(), ip.getSourceIP(),
+				tcp.getDestinationPort(), tcp.getSourcePort(),
+				seq, ack, flags, DEFAULT_WINDOW_SIZE, null, null, 0, 0);
 	}
 
 	/**
-	 * create packet data for sending back to client
-	 * @param ip IP Header
-	 * @param tcp TCP Header
-	 * @param packetData Packet Data
+	 * create SYN-ACK packet data for an new session, to write back to the client. The session's
+	 * sequence numbers & negotiated options must already be initialized. We offer our MSS,
+	 * and accept window scaling, SACK & timestamps if the client offered them.
+	 * @param session Session
 	 * @return byte[]
 	 */
-	public static byte[] createResponsePacketData(IPv4Header ip, TCPHeader tcp, byte[] packetData, boolean isPsh,
-			long ackNumber, long seqNumber, int timeSender, int timeReplyto){
-		IPv4Header ipHeader = IPPacketFactory.copyIPv4Header(ip);
-		TCPHeader tcpHeader = copyTCPHeader(tcp);
-		
-		//flip IP from source to dest and vice-versa
-		int sourceIp = ipHeader.getDestinationIP();
-		int sourcePort = tcpHeader.getDestinationPort();
-		ipHeader.setDestinationIP(ipHeader.getSourceIP());
-		ipHeader.setSourceIP(sourceIp);
-		tcpHeader.setDestinationPort(tcpHeader.getSourcePort());
-		tcpHeader.setSourcePort(sourcePort);
-		
-		tcpHeader.setAckNumber(ackNumber);
-		tcpHeader.setSequenceNumber(seqNumber);
-		
-		ipHeader.setIdentification(PacketUtil.getPacketId());
-		
-		//ACK is always sent
-		tcpHeader.setIsACK(true);
-		tcpHeader.setIsSYN(false);
-		tcpHeader.setIsPSH(isPsh);
-		tcpHeader.setIsFIN(false);
-		
-		tcpHeader.setTimeStampSender(timeSender);
-		tcpHeader.setTimeStampReplyTo(timeReplyto);
+	public static byte[] createSynAckData(Session session){
+		final boolean windowScaling = session.getReceiveWindowScale() > 0;
+		final boolean timestamps = session.isTimestampsEnabled();
+		final boolean selectiveAck = session.isSelectiveAckPermitted();
+
+		// Laid out as Linux does, so every option is aligned to 4 bytes with NOP padding
+		final byte[] options = new byte[4 + (windowScaling ? 4 : 0) +
+				(timestamps ? TIMESTAMP_OPTIONS_LENGTH : (selectiveAck ? 4 : 0))];
+		int offset = 0;
+
+		options[offset++] = MAX_SEGMENT_SIZE;
+		options[offset++] = 4;
+		options[offset++] = (byte) (session.getLocalMaxSegmentSize() >> 8);
+		options[offset++] = (byte) session.getLocalMaxSegmentSize();
+
+		if (selectiveAck && timestamps) {
+			// SACK-permitted takes the place of the timestamp option's usual NOP padding
+			options[offset++] = SELECTIVE_ACK_PERMITTED;
+			options[offset++] = 2;
+			offset = writeTimestampOption(options, offset, session);
+		} else if (timestamps) {
+			options[offset++] = NO_OPERATION;
+			options[offset++] = NO_OPERATION;
+			offset = writeTimestampOption(options, offset, session);
+		} else if (selectiveAck) {
+			options[offset++] = NO_OPERATION;
+			options[offset++] = NO_OPERATION;
+			options[offset++] = SELECTIVE_ACK_PERMITTED;
+			options[offset++] = 2;
+		}
 
-		//recalculate IP length
-		int totalLength = ipHeader.getIPHeaderLength() + tcpHeader.getTCPHeaderLength();
-		if(packetData != null){
-			totalLength += packetData.length;
+		if (windowScaling) {
+			options[offset++] = NO_OPERATION;
+			options[offset++] = WINDOW_SCALE;
+			options[offset++] = 3;
+			options[offset] = (byte) session.getReceiveWindowScale();
 		}
-		ipHeader.setTotalLength(totalLength);
-		
-		return createPacketData(ipHeader, tcpHeader, packetData);
+
+		return createPacketData(session.getDestIp(), session.getSourceIp(),
+				session.getDestPort(), session.getSourcePort(),
+				session.getSendUnack(), session.getRecSequence(), FLAG_SYN | FLAG_ACK,
+				session.advertiseSynReceiveWindow(), options, null, 0, 0);
 	}
 
 	/**
-	 * create SYN-ACK packet data from writing back to client stream
-	 * @param ip IP Header
-	 * @param tcp TCP Header
-	 * @return class Packet
+	 * create an ACK for everything received from the client so far in this session
+	 * @param session Session
+	 * @return byte[]
 	 */
-	public static Packet createSynAckPacketData(IPv4Header ip, TCPHeader tcp){
-		IPv4Header ipheader = IPPacketFactory.copyIPv4Header(ip);
-		TCPHeader tcpheader = copyTCPHeader(tcp);
-		
-		//flip IP from source to dest and vice-versa
-		int sourceIp = ipheader.getDestinationIP();
-		int destIp = ipheader.getSourceIP();
-		int sourcePort = tcpheader.getDestinationPort();
-		int destPort = tcpheader.getSourcePort();
-		long ackNumber = tcpheader.getSequenceNumber() + 1;
-		long seqNumber;
-		Random random = new Random();
-		seqNumber = random.nextInt();
-		if(seqNumber < 0){
-			seqNumber = seqNumber * -1;
-		}
-		ipheader.setDestinationIP(destIp);
-		ipheader.setSourceIP(sourceIp);
-		tcpheader.setDestinationPort(destPort);
-		tcpheader.setSourcePort(sourcePort);
-		
-		//ack = received sequence + 1
-		tcpheader.setAckNumber(ackNumber);
-		
-		//initial sequence number generated by server
-		tcpheader.setSequenceNumber(seqNumber);
-		Log.d(formatTag(TCPPacketFactory.class.getName()),"Set Initial Sequence number: "+seqNumber);
-		
-		//SYN-ACK
-		tcpheader.setIsACK(true);
-		tcpheader.setIsSYN(true);
-		
-		//timestamp in options fields
-		tcpheader.setTimeStampReplyTo(tcpheader.getTimeStampSender());
-		Date currentdate = new Date();
-		int sendertimestamp = (int)currentdate.getTime();
-		tcpheader.setTimeStampSender(sendertimestamp);
-		
-		return new Packet(ipheader, tcpheader, createPacketData(ipheader, tcpheader, null));
+	public static byte[] createResponseAckData(Session session){
+		return createSessionPacketData(session, session.getSendNext(), FLAG_ACK, 0);
 	}
 
 	/**
-	 * create packet data from IP Header, TCP header and data
-	 * @param ipHeader IPv4Header object
-	 * @param tcpheader TCPHeader object
-	 * @param data array of byte (packet body)
-	 * @return array of byte
+	 * create packet data for sending data back to client, copying the data straight from the
+	 * session's receive buffer into the packet
+	 * @param session Session
+	 * @param seqNumber sequence number of the first byte of the data, which must be buffered
+	 * @param dataLength amount of data, at most getMaxSegmentPayload(session)
+	 * @param isPsh whether to set PSH on this segment
+	 * @return byte[]
 	 */
-    private static byte[] createPacketData(IPv4Header ipHeader, TCPHeader tcpheader, @Nullable byte[] data){
-		int dataLength = 0;
-		if(data != null){
-			dataLength = data.length;
-		}
-		byte[] buffer = new byte[ipHeader.getIPHeaderLength() + tcpheader.getTCPHeaderLength() + dataLength];
-		byte[] ipBuffer = IPPacketFactory.createIPv4HeaderData(ipHeader);
-		byte[] tcpBuffer = createTCPHeaderData(tcpheader);
-		
-		System.arraycopy(ipBuffer, 0, buffer, 0, ipBuffer.length);
-		System.arraycopy(tcpBuffer, 0, buffer, ipBuffer.length, tcpBuffer.length);
-		if(dataLength > 0){
-			int offset = ipBuffer.length + tcpBuffer.length;
-			System.arraycopy(data, 0, buffer, offset, dataLength);
-		}
-		//calculate checksum for both IP and TCP header
-		byte[] zero = {0, 0};
-		//zero out checksum first before calculation
-		System.arraycopy(zero, 0, buffer, 10, 2);
-		byte[] ipChecksum = PacketUtil.calculateChecksum(buffer, 0, ipBuffer.length);
-		//write result of checksum back to buffer
-		System.arraycopy(ipChecksum, 0, buffer, 10, 2);
-		
-		//zero out TCP header checksum first
-		int tcpStart = ipBuffer.length;
-		System.arraycopy(zero, 0, buffer, tcpStart + 16, 2);
-		byte[] tcpChecksum = PacketUtil.calculateTCPHeaderChecksum(buffer, tcpStart, tcpBuffer.length + dataLength ,
-				ipHeader.getDestinationIP(), ipHeader.getSourceIP());
-		
-		//write new checksum back to array
-		System.arraycopy(tcpChecksum, 0, buffer,tcpStart + 16, 2);
+	public static byte[] createResponsePacketData(Session session, long seqNumber, int dataLength,
+			boolean isPsh){
+		//ACK is always sent
+		final int flags = FLAG_ACK | (isPsh ? FLAG_PSH : 0);
+		return createSessionPacketData(session, seqNumber, flags, dataLength);
+	}
 
-		return buffer;
+	/**
+	 * the most data we can put in one segment to the client. That's limited by the client's
+	 * MSS and by our own (from the MTU), less any options we include in every segment (RFC 6691).
+	 * SACK blocks are only ever sent on segments without data, so they never count against this.
+	 * @param session Session
+	 * @return int
+	 */
+	public static int getMaxSegmentPayload(Session session){
+		final int maxSegmentSize = Math.max(MIN_SEND_MAX_SEGMENT_SIZE,
+				Math.min(session.getSendMaxSegmentSize(), session.getLocalMaxSegmentSize()));
+		final int optionsLength = session.isTimestampsEnabled() ? TIMESTAMP_OPTIONS_LENGTH : 0;
+		return maxSegmentSize - optionsLength;
 	}
-	
+
 	/**
-	 * create array of byte from a given TCPHeader object
-	 * @param header instance of TCPHeader
-	 * @return array of byte
+	 * create a FIN for the client, closing our side of the session
+	 * @param session Session
+	 * @return byte[]
 	 */
-	private static byte[] createTCPHeaderData(TCPHeader header){
-		final byte[] buffer = new byte[header.getTCPHeaderLength()];
-		buffer[0] = (byte)(header.getSourcePort() >> 8);
-		buffer[1] = (byte)(header.getSourcePort());
-		buffer[2] = (byte)(header.getDestinationPort() >> 8);
-		buffer[3] = (byte)(header.getDestinationPort());
-
-		final ByteBuffer sequenceNumber = ByteBuffer.allocate(4);
-		sequenceNumber.order(ByteOrder.BIG_ENDIAN);
-		sequenceNumber.putInt((int)header.getSequenceNumber());
-		
-		//sequence number
-		System.arraycopy(sequenceNumber.array(), 0, buffer, 4, 4);
+	public static byte[] createFinData(Session session){
+		return createFinData(session, session.getSendNext());
+	}
 
-		final ByteBuffer ackNumber = ByteBuffer.allocate(4);
-		ackNumber.order(ByteOrder.BIG_ENDIAN);
-		ackNumber.putInt((int)header.getAckNumber());
-		System.arraycopy(ackNumber.array(), 0, buffer, 8, 4);
-		
-		buffer[12] = (byte) (header.isNS() ? (header.getDataOffset() << 4) | 0x1
-				: header.getDataOffset() << 4);
-		buffer[13] = (byte)header.getTcpFlags();
+	/**
+	 * create a FIN for the client with a specific sequence number, e.g. to retransmit it
+	 * @param session Session
+	 * @param seq sequence number of the FIN
+	 * @return byte[]
+	 */
+	public static byte[] createFinData(Session session, long seq){
+		return createSessionPacketData(session, seq, FLAG_FIN | FLAG_ACK, 0);
+	}
 
-		buffer[14] = (byte)(header.getWindowSize() >> 8);
-		buffer[15] = (byte)header.getWindowSize();
+	/**
+	 * create a window probe, for a client that's advertised a zero window: a bare ACK with an
+	 * old sequence number, which the client must answer with an ACK carrying its current window.
+	 * Only used when everything we've sent has been acked.
+	 * @param session Session
+	 * @return byte[]
+	 */
+	public static byte[] createWindowProbeData(Session session){
+		return createSessionPacketData(session, session.getSendUnack() - 1, FLAG_ACK, 0);
+	}
 
-		buffer[16] = (byte)(header.getChecksum() >> 8);
-		buffer[17] = (byte)header.getChecksum();
+	/**
+	 * create a RST for the client, aborting the session
+	 * @param session Session
+	 * @return byte[]
+	 */
+	public static byte[] createRstData(Session session){
+		return createSessionPacketData(session, session.getSendNext(), FLAG_RST | FLAG_ACK, 0);
+	}
 
-		buffer[18] = (byte)(header.getUrgentPointer() >> 8);
-		buffer[19] = (byte)header.getUrgentPointer();
+	private static byte[] createSessionPacketData(Session session, long seq, int flags,
+			int dataLength){
+		//once negotiated, timestamps are sent on every segment except resets (RFC 7323), and
+		//SACK blocks on segments without data whenever we're holding out-of-order data
+		//(RFC 2018). Data segments are already sized to fill the MSS, so have no room for them.
+		byte[] options = null;
+		if ((flags & FLAG_RST) == 0) {
+			options = createSessionOptions(session, dataLength == 0);
+		}
 
-		//set timestamp for both sender and reply to
-		final byte[] options = header.getOptions();
-		if (options != null) {
-			for (int i = 0; i < options.length; i++) {
-				final byte kind = options[i];
-				if (kind > 1) {
-					if (kind == 8) {//timestamp
-						i += 2;
-						if ((i + 7) < options.length) {
-							PacketUtil.writeIntToBytes(header.getTimeStampSender(), options, i);
-							i += 4;
-							PacketUtil.writeIntToBytes(header.getTimeStampReplyTo(), options, i);
-						}
-						break;
-					} else if ((i + 1) < options.length) {
-						final byte len = options[i + 1];
-						i = i + len - 1;
-					}
-				}
-			}
-			if (options.length > 0) {
-				System.arraycopy(options, 0, buffer, 20, options.length);
+		//packets to the client come from the session's destination, and advertise how much
+		//more data we can buffer for it, so uploads are paced by the client's own TCP stack.
+		//They all ack everything received, but only those the client will actually process
+		//that ack from (not resets, or window probes below its window) complete a delayed ack.
+		if ((flags & FLAG_ACK) != 0 && (flags & FLAG_RST) == 0 &&
+				(int) (seq - session.getSendUnack()) >= 0) {
+			session.onAckSent();
+		} else {
+			session.onPacketSent();
+		}
+		final byte[] buffer = createPacketBuffer(session.getDestIp(), session.getSourceIp(),
+				session.getDestPort(), session.getSourcePort(),
+				seq, session.getRecSequence(), flags, session.advertiseReceiveWindow(),
+				options, dataLength);
+		if (dataLength > 0) {
+			session.copyReceivedData((int) (seq - session.getSendUnack()),
+					buffer, buffer.length - dataLength, dataLength);
+		}
+		writeTcpChecksum(buffer, session.getDestIp(), session.getSourceIp());
+		return buffer;
+	}
+
+	@Nullable
+	private static byte[] createSessionOptions(Session session, boolean includeSack){
+		final boolean timestamps = session.isTimestampsEnabled();
+
+		long[] sackBlocks = null;
+		int sackBlockCount = 0;
+		if (includeSack && session.hasOutOfOrderData()) {
+			// Timestamps leave room for one fewer block
+			sackBlocks = new long[2 * (timestamps ? MAX_SACK_BLOCKS - 1 : MAX_SACK_BLOCKS)];
+			sackBlockCount = session.getSackBlocks(sackBlocks);
+		}
+
+		if (!timestamps && sackBlockCount == 0) return null;
+
+		final byte[] options = new byte[(timestamps ? TIMESTAMP_OPTIONS_LENGTH : 0) +
+				(sackBlockCount > 0 ? 4 + 8 * sackBlockCount : 0)];
+		int offset = 0;
+
+		if (timestamps) {
+			options[offset++] = NO_OPERATION;
+			options[offset++] = NO_OPERATION;
+			offset = writeTimestampOption(options, offset, session);
+		}
+
+		if (sackBlockCount > 0) {
+			options[offset++] = NO_OPERATION;
+			options[offset++] = NO_OPERATION;
+			options[offset++] = SELECTIVE_ACK;
+			options[offset++] = (byte) (2 + 8 * sackBlockCount);
+			for (int i = 0; i < sackBlockCount * 2; i++) {
+				PacketUtil.writeIntToBytes((int) sackBlocks[i], options, offset);
+				offset += 4;
 			}
 		}
 
+		return options;
+	}
+
+	/**
+	 * write a timestamp option, with our clock as the value and the client's most recent
+	 * timestamp as the echo. Our clock ticks in ms, so echoed values give RTTs directly.
+	 * @return the offset after the option
+	 */
+	private static int writeTimestampOption(byte[] options, int offset, Session session){
+		options[offset] = TIME_STAMP;
+		options[offset + 1] = 10;
+		PacketUtil.writeIntToBytes((int) SystemClock.elapsedRealtime(), options, offset + 2);
+		PacketUtil.writeIntToBytes(session.getRecentTimestamp(), options, offset + 6);
+		return offset + 10;
+	}
+
+	/**
+	 * create complete packet data (IPv4 header, TCP header & options, data) in a single pass, writing
+	 * straight into the resulting array, with checksums calculated in place.
+	 * @return array of byte
+	 */
+	private static byte[] createPacketData(int sourceIp, int destIp, int sourcePort, int destPort,
+			long seq, long ack, int flags, int window, @Nullable byte[] options,
+			@Nullable byte[] data, int dataOffset, int dataLength){
+		final byte[] buffer = createPacketBuffer(sourceIp, destIp, sourcePort, destPort,
+				seq, ack, flags, window, options, dataLength);
+		if (dataLength > 0) {
+			System.arraycopy(data, dataOffset, buffer, buffer.length - dataLength, dataLength);
+		}
+		writeTcpChecksum(buffer, sourceIp, destIp);
+		return buffer;
+	}
+
+	/**
+	 * allocate a packet, and write its IPv4 & TCP headers. The data (the last dataLength bytes)
+	 * must then be filled in, before calculating the checksum with writeTcpChecksum.
+	 */
+	private static byte[] createPacketBuffer(int sourceIp, int destIp, int sourcePort, int destPort,
+			long seq, long ack, int flags, int window, @Nullable byte[] options, int dataLength){
+		final int ipLength = IPPacketFactory.IP_HEADER_LENGTH;
+		final int tcpHeaderLength = TCP_HEADER_LENGTH + (options != null ? options.length : 0);
+		final int tcpLength = tcpHeaderLength + dataLength;
+		final byte[] buffer = new byte[ipLength + tcpLength];
+
+		IPPacketFactory.writeIPv4Header(buffer, 0, buffer.length, TCP_PROTOCOL, sourceIp, destIp);
+
+		final int tcpStart = ipLength;
+		buffer[tcpStart] = (byte)(sourcePort >> 8);
+		buffer[tcpStart + 1] = (byte)(sourcePort);
+		buffer[tcpStart + 2] = (byte)(destPort >> 8);
+		buffer[tcpStart + 3] = (byte)(destPort);
+		PacketUtil.writeIntToBytes((int) seq, buffer, tcpStart + 4);
+		PacketUtil.writeIntToBytes((int) ack, buffer, tcpStart + 8);
+		buffer[tcpStart + 12] = (byte) ((tcpHeaderLength / 4) << 4);
+		buffer[tcpStart + 13] = (byte) flags;
+		buffer[tcpStart + 14] = (byte) (window >> 8);
+		buffer[tcpStart + 15] = (byte) window;
+		// Checksum (16-17) is calculated below, urgent pointer (18-19) is always 0
+
+		if (options != null) {
+			System.arraycopy(options, 0, buffer, tcpStart + TCP_HEADER_LENGTH, options.length);
+		}
+
 		return buffer;
 	}
+
+	private static void writeTcpChecksum(byte[] buffer, int sourceIp, int destIp){
+		final int tcpStart = IPPacketFactory.IP_HEADER_LENGTH;
+		final int tcpLength = buffer.length - tcpStart;
+		final int checksum = PacketUtil.internetChecksum(buffer, tcpStart, tcpLength,
+				PacketUtil.pseudoHeaderSum(sourceIp, destIp, TCP_PROTOCOL, tcpLength));
+		buffer[tcpStart + 16] = (byte) (checksum >> 8);
+		buffer[tcpStart + 17] = (byte) checksum;
+	}
+
 	/**
 	 * create a TCP Header from a given byte array
 	 * @param stream array of byte
@@ -481,7 +422,7 @@ public class TCPPacketFactory {
 		
 		final boolean isNs = (dataOffsetAndNs & 0x1) > 0x0;
 		final int tcpFlag = stream.get();
-		final int windowSize = stream.getShort();
+		final int windowSize = stream.getShort() & 0xFFFF;
 		final int checksum = stream.getShort();
 		final int urgentPointer = stream.getShort();
 
@@ -498,7 +439,10 @@ public class TCPPacketFactory {
 	private static final int MAX_SEGMENT_SIZE = 2;
 	private static final int WINDOW_SCALE = 3;
 	private static final int SELECTIVE_ACK_PERMITTED = 4;
-//	private static final int SELECTIVE_ACK = 5;
+	private static final int SELECTIVE_ACK = 5;
+
+	// The most SACK blocks that fit in the TCP options space, without timestamps
+	private static final int MAX_SACK_BLOCKS = 4;
 	private static final int TIME_STAMP = 8;
 
 	private static void handleTcpOptions(@NonNull TCPHeader header, @NonNull ByteBuffer packet, int optionsSize) {
@@ -517,11 +461,12 @@ public class TCPPacketFactory {
 
 			switch (optionKind) {
 				case MAX_SEGMENT_SIZE:
-					header.setMaxSegmentSize(packet.getShort());
+					header.setMaxSegmentSize(packet.getShort() & 0xFFFF);
 					index += 2;
 					break;
 				case WINDOW_SCALE:
-					header.setWindowScale(packet.get());
+					// RFC 7323: shifts above 14 must be treated as 14
+					header.setWindowScale(Math.min(packet.get() & 0xFF, 14));
 					index++;
 					break;
 				case SELECTIVE_ACK_PERMITTED:
@@ -3,14 +3,15 @@ package tech.httptoolkit.android.vpn.transport.udp;
 import androidx.annotation.NonNull;
 
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
-import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
-import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.nio.ByteBuffer;
 
 public class UDPPacketFactory {
 
+	private static final int UDP_PROTOCOL = 17;
+	private static final int UDP_HEADER_LENGTH = 8;
+
 	public static UDPHeader createUDPHeader(@NonNull ByteBuffer stream) throws PacketHeaderException{
 		if ((stream.remaining()) < 8){
 			throw new PacketHeaderException("Minimum UDP header is 8 bytes.");
@@ -29,69 +30,38 @@ public class UDPPacketFactory {
 	}
 	/**
 	 * create packet data for responding to vpn client
-	 * @param ip IPv4Header sent from VPN client, will be used as the template for response
-	 * @param udp UDPHeader sent from VPN client
+	 * @param sourceIp address the response comes from (the remote server)
+	 * @param sourcePort port the response comes from
+	 * @param destIp address of the vpn client
+	 * @param destPort port of the vpn client
 	 * @param packetData packet data to be sent to client
 	 * @return array of byte
 	 */
-	public static byte[] createResponsePacket(IPv4Header ip, UDPHeader udp, byte[] packetData){
-		byte[] buffer;
-		int udpLen = 8;
+	public static byte[] createResponsePacket(int sourceIp, int sourcePort, int destIp, int destPort,
+											  byte[] packetData){
+		final int ipLength = IPPacketFactory.IP_HEADER_LENGTH;
+		int udpLen = UDP_HEADER_LENGTH;
 		if(packetData != null){
 			udpLen += packetData.length;
 		}
-		int srcPort = udp.getDestinationPort();
-		int destPort = udp.getSourcePort();
-		short checksum = 0;
-		
-		IPv4Header ipHeader = IPPacketFactory.copyIPv4Header(ip);
 
-		int srcIp = ip.getDestinationIP();
-		int destIp = ip.getSourceIP();
-		ipHeader.setMayFragment(false);
-		ipHeader.setSourceIP(srcIp);
-		ipHeader.setDestinationIP(destIp);
-		ipHeader.setIdentification(PacketUtil.getPacketId());
-		
 		//ip's length is the length of the entire packet => IP header length + UDP header length (8) + UDP body length
-		int totalLength = ipHeader.getIPHeaderLength() + udpLen;
-		
-		ipHeader.setTotalLength(totalLength);
-		buffer = new byte[totalLength];
-		byte[] ipData = IPPacketFactory.createIPv4HeaderData(ipHeader);
+		final int totalLength = ipLength + udpLen;
+		final byte[] buffer = new byte[totalLength];
+
+		IPPacketFactory.writeIPv4Header(buffer, 0, totalLength, UDP_PROTOCOL, sourceIp, destIp);
 
-		// clear IP checksum
-		ipData[10] = ipData[11] = 0;
+		buffer[ipLength] = (byte) (sourcePort >> 8);
+		buffer[ipLength + 1] = (byte) sourcePort;
+		buffer[ipLength + 2] = (byte) (destPort >> 8);
+		buffer[ipLength + 3] = (byte) destPort;
+		buffer[ipLength + 4] = (byte) (udpLen >> 8);
+		buffer[ipLength + 5] = (byte) udpLen;
+		// Checksum (6-7) is left as zero, which is allowed for UDP over IPv4
 
-		//calculate checksum for IP header
-		byte[] ipChecksum = PacketUtil.calculateChecksum(ipData, 0, ipData.length);
-		//write result of checksum back to buffer
-		System.arraycopy(ipChecksum, 0, ipData, 10, 2);
-		System.arraycopy(ipData, 0, buffer, 0, ipData.length);
-		
-		//copy UDP header to buffer
-		int start = ipData.length;
-		byte[] intContainer = new byte[4];
-		PacketUtil.writeIntToBytes(srcPort, intContainer, 0);
-		//extract the last two bytes of int value
-		System.arraycopy(intContainer,2,buffer,start,2);
-		start += 2;
-		
-		PacketUtil.writeIntToBytes(destPort, intContainer, 0);
-		System.arraycopy(intContainer, 2, buffer, start, 2);
-		start += 2;
-		
-		PacketUtil.writeIntToBytes(udpLen, intContainer, 0);
-		System.arraycopy(intContainer, 2, buffer, start, 2);
-		start += 2;
-		
-		PacketUtil.writeIntToBytes(checksum, intContainer, 0);
-		System.arraycopy(intContainer, 2, buffer, start, 2);
-		start += 2;
-		
 		//now copy udp data
 		if (packetData != null)
-			System.arraycopy(packetData, 0, buffer, start, packetData.length);
+			System.arraycopy(packetData, 0, buffer, ipLength + UDP_HEADER_LENGTH, packetData.length);
 
 		return buffer;
 	}
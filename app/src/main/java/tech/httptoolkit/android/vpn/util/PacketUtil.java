@@ -244,6 +244,62 @@ public class PacketUtil {
 		return calculateChecksum(tcparray, 0, buffersize);
 	}
 
+	/**
+	 * Calculate the internet checksum (RFC 1071) of a region of an array, without allocating.
+	 * @param data array of bytes
+	 * @param offset start of the region to checksum
+	 * @param length length of the region to checksum
+	 * @param initialSum running (unfolded) sum to include, e.g. from a pseudo-header
+	 * @return the 16 bit checksum, ready to be written into a header
+	 */
+	public static int internetChecksum(byte[] data, int offset, int length, int initialSum){
+		long sum = initialSum & 0xFFFFFFFFL;
+		int end = offset + length;
+		int i = offset;
+
+		for (; i < end - 1; i += 2) {
+			sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+		}
+		if (i < end) {
+			//odd length, pad the last byte with zero
+			sum += (data[i] & 0xFF) << 8;
+		}
+
+		while ((sum >> 16) > 0) {
+			sum = (sum & 0xFFFF) + (sum >> 16);
+		}
+
+		return (int) (~sum & 0xFFFF);
+	}
+
+	/**
+	 * Sum of the TCP/UDP pseudo-header fields, to be passed as the initialSum to internetChecksum.
+	 */
+	public static int pseudoHeaderSum(int sourceIp, int destIp, int protocol, int length){
+		return ((sourceIp >>> 16) & 0xFFFF) + (sourceIp & 0xFFFF) +
+			((destIp >>> 16) & 0xFFFF) + (destIp & 0xFFFF) +
+			protocol + length;
+	}
+
+	/**
+	 * Compare TCP sequence numbers, which wrap around at 2^32. Our parsed sequence numbers are
+	 * longs that may be sign-extended or may have overflowed 32 bits, so only the low 32 bits
+	 * are meaningful, and must be compared modulo 2^32 (as in RFC 793).
+	 * @return true if seq is the same as, or later than, reference
+	 */
+	public static boolean isSequenceAtOrAfter(long seq, long reference){
+		return (int) (seq - reference) >= 0;
+	}
+
+	/**
+	 * Pack a TCP flow from our VPN client into one long, for compact map keys. The source IP is
+	 * always the client's own address in practice, so it's left out of the key: callers that
+	 * care must check it on lookup instead.
+	 */
+	public static long getFlowKey(int destIp, int destPort, int sourcePort){
+		return ((long) destIp << 32) | ((long) (destPort & 0xFFFF) << 16) | (sourcePort & 0xFFFF);
+	}
+
 	public static String intToIPAddress(int addressInt)
 	{
 		return ((addressInt >>> 24) & 0x000000FF) + "." +
@@ -0,0 +1,66 @@
+package tech.httptoolkit.android.vpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectFailuresTest {
+
+	private static final int IP = 0x5DB8D822;
+
+	@Test
+	public void remembersFailuresUntilTheyExpire() {
+		ConnectFailures failures = new ConnectFailures();
+		failures.add(IP, 443, 1000);
+
+		assertTrue(failures.contains(IP, 443, 1000));
+		assertTrue(failures.contains(IP, 443, 1000 + ConnectFailures.FAILURE_TTL_MS - 1));
+		assertFalse(failures.contains(IP, 443, 1000 + ConnectFailures.FAILURE_TTL_MS));
+		assertEquals(0, failures.size());
+	}
+
+	@Test
+	public void matchesOnlyTheSameDestination() {
+		ConnectFailures failures = new ConnectFailures();
+		failures.add(IP, 443, 1000);
+
+		assertFalse(failures.contains(IP, 80, 1000));
+		assertFalse(failures.contains(IP + 1, 443, 1000));
+	}
+
+	@Test
+	public void repeatFailuresExtendTheExpiry() {
+		ConnectFailures failures = new ConnectFailures();
+		failures.add(IP, 443, 1000);
+		failures.add(IP + 1, 443, 2000);
+		failures.add(IP, 443, 2500);
+
+		long firstExpiry = 1000 + ConnectFailures.FAILURE_TTL_MS;
+		assertTrue(failures.contains(IP, 443, firstExpiry));
+		assertFalse(failures.contains(IP + 1, 443, 2000 + ConnectFailures.FAILURE_TTL_MS));
+		assertTrue(failures.contains(IP, 443, 2000 + ConnectFailures.FAILURE_TTL_MS));
+	}
+
+	@Test
+	public void evictsTheOldestEntriesWhenFull() {
+		ConnectFailures failures = new ConnectFailures();
+		for (int i = 0; i <= ConnectFailures.MAX_ENTRIES; i++) {
+			failures.add(IP + i, 443, 1000);
+		}
+
+		assertEquals(ConnectFailures.MAX_ENTRIES, failures.size());
+		assertFalse(failures.contains(IP, 443, 1000));
+		assertTrue(failures.contains(IP + ConnectFailures.MAX_ENTRIES, 443, 1000));
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		ConnectFailures failures = new ConnectFailures();
+		failures.add(IP, 443, 1000);
+		failures.clear();
+
+		assertFalse(failures.contains(IP, 443, 1000));
+	}
+}
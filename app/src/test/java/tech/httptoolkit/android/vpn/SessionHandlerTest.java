@@ -0,0 +1,459 @@
+package tech.httptoolkit.android.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import tech.httptoolkit.android.vpn.buffer.BufferBudget;
+import tech.httptoolkit.android.vpn.socket.IErrorHandler;
+import tech.httptoolkit.android.vpn.socket.IProtectSocket;
+import tech.httptoolkit.android.vpn.socket.SocketNIODataService;
+import tech.httptoolkit.android.vpn.socket.SocketProtector;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the handler with raw packets from a fake client, over real loopback connections
+ * upstream, and checks the packets it sends back.
+ */
+public class SessionHandlerTest {
+
+	private static final int MTU = 1500;
+	private static final int MSS = MTU - 40;
+
+	private static final int CLIENT_IP = 0x0A000002; // 10.0.0.2
+	private static final int LOOPBACK_IP = 0x7F000001;
+	private static final int CLIENT_PORT = 40000;
+	private static final long CLIENT_SEQUENCE = 1000;
+	private static final int CLIENT_TIMESTAMP = 777;
+
+	private final List<byte[]> sentToClient = new CopyOnWriteArrayList<>();
+	private final List<Exception> errors = new CopyOnWriteArrayList<>();
+
+	// Whether the current session negotiated timestamps, so the client must send them
+	private boolean clientTimestamps = false;
+	private long serverSequence;
+
+	private ServerSocket upstream;
+	private SessionManager manager;
+	private SocketNIODataService nioService;
+	private SessionHandler handler;
+	private Thread nioThread;
+
+	@Before
+	public void setUp() throws IOException {
+		SocketProtector.getInstance().setProtector(new IProtectSocket() {
+			@Override
+			public boolean protect(Socket socket) {
+				return true;
+			}
+
+			@Override
+			public boolean protect(DatagramSocket socket) {
+				return true;
+			}
+		});
+
+		upstream = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+		upstream.setSoTimeout(5000);
+
+		EngineConfig config = new EngineConfig(MTU);
+		BufferBudget budget = new BufferBudget();
+		ClientPacketWriter writer = new ClientPacketWriter(null, budget, config) {
+			@Override
+			public void write(byte[] data) {
+				sentToClient.add(data);
+				super.write(data);
+			}
+		};
+
+		manager = new SessionManager(config);
+		nioService = new SocketNIODataService(writer, manager, budget, config, new IErrorHandler() {
+			@Override
+			public void handleError(Exception e) {
+				errors.add(e);
+			}
+		});
+		handler = new SessionHandler(manager, nioService, writer, budget, config);
+
+		nioThread = new Thread(nioService);
+		nioThread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		nioService.shutdown();
+		nioThread.join(5000);
+		upstream.close();
+	}
+
+	/**
+	 * Run the given code on the NIO thread, once every packet handled so far has been processed
+	 */
+	private <T> T onNioThread(Callable<T> callable) throws Exception {
+		final FutureTask<T> future = new FutureTask<>(callable);
+		nioService.post(new SocketNIODataService.Task() {
+			@Override
+			public void run() {
+				future.run();
+			}
+		});
+		return future.get(5, TimeUnit.SECONDS);
+	}
+
+	private byte[] createClientPacket(long sequence, long ack, int flags, byte[] options, byte[] payload) {
+		int tcpHeaderLength = 20 + options.length;
+		ByteBuffer packet = ByteBuffer.allocate(20 + tcpHeaderLength + payload.length);
+
+		packet.put((byte) 0x45).put((byte) 0).putShort((short) packet.capacity());
+		packet.putShort((short) 0).putShort((short) 0x4000); // Don't fragment
+		packet.put((byte) 64).put((byte) 6).putShort((short) 0);
+		packet.putInt(CLIENT_IP).putInt(LOOPBACK_IP);
+
+		packet.putShort((short) CLIENT_PORT).putShort((short) upstream.getLocalPort());
+		packet.putInt((int) sequence).putInt((int) ack);
+		packet.put((byte) ((tcpHeaderLength / 4) << 4)).put((byte) flags);
+		packet.putShort((short) 0xFFFF).putShort((short) 0).putShort((short) 0);
+		packet.put(options).put(payload);
+
+		return packet.array();
+	}
+
+	// Laid out as Linux does, so each option is 4 byte aligned
+	private static byte[] createSynOptions(boolean timestamps, boolean selectiveAck) {
+		ByteBuffer options = ByteBuffer.allocate(4 + (timestamps ? 12 : (selectiveAck ? 4 : 0)));
+		options.put((byte) 2).put((byte) 4).putShort((short) MSS);
+
+		if (timestamps) {
+			if (selectiveAck) {
+				options.put((byte) 4).put((byte) 2);
+			} else {
+				options.put((byte) 1).put((byte) 1);
+			}
+			options.put((byte) 8).put((byte) 10).putInt(CLIENT_TIMESTAMP).putInt(0);
+		} else if (selectiveAck) {
+			options.put((byte) 1).put((byte) 1).put((byte) 4).put((byte) 2);
+		}
+
+		return options.array();
+	}
+
+	private byte[] createClientSegment(long sequence, int flags, byte[] payload) {
+		byte[] options = new byte[0];
+		if (clientTimestamps) {
+			options = ByteBuffer.allocate(12)
+				.put((byte) 1).put((byte) 1).put((byte) 8).put((byte) 10)
+				.putInt(CLIENT_TIMESTAMP).putInt(0)
+				.array();
+		}
+		return createClientPacket(sequence, serverSequence, flags, options, payload);
+	}
+
+	private void receive(byte[] packet) throws Exception {
+		handler.handlePacket(ByteBuffer.wrap(packet));
+	}
+
+	/**
+	 * Complete a handshake with the given options, once the upstream connection is open
+	 * @return the upstream end of the connection
+	 */
+	private Socket connect(boolean timestamps, boolean selectiveAck) throws Exception {
+		receive(createClientPacket(CLIENT_SEQUENCE, 0, TCPPacketFactory.FLAG_SYN,
+			createSynOptions(timestamps, selectiveAck), new byte[0]));
+		Socket socket = upstream.accept();
+		socket.setSoTimeout(5000);
+
+		getSession(); // Wait for the SYN-ACK, sent after the connection is started
+		TCPHeader synAck = parseTcpHeader(sentToClient.get(0));
+		serverSequence = (synAck.getSequenceNumber() + 1) & 0xFFFFFFFFL;
+		clientTimestamps = timestamps;
+		receive(createClientSegment(CLIENT_SEQUENCE + 1, TCPPacketFactory.FLAG_ACK, new byte[0]));
+
+		getSession();
+		sentToClient.clear();
+		return socket;
+	}
+
+	/**
+	 * Wait until the client has been sent the given amount of data
+	 * @return every data segment sent, including any retransmissions
+	 */
+	private List<byte[]> awaitDownload(int length) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			List<byte[]> segments = new ArrayList<>();
+			Map<Long, Integer> received = new HashMap<>();
+			int receivedLength = 0;
+
+			for (byte[] packet : sentToClient) {
+				int payloadLength = getPayloadLength(packet);
+				if (payloadLength == 0) continue;
+
+				segments.add(packet);
+				long sequence = parseTcpHeader(packet).getSequenceNumber() & 0xFFFFFFFFL;
+				if (received.put(sequence, payloadLength) == null) receivedLength += payloadLength;
+			}
+
+			if (receivedLength >= length) return segments;
+			assertTrue("Failed with " + errors, errors.isEmpty());
+			assertTrue("Only " + receivedLength + " bytes sent to the client",
+				System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Wait until the client has been sent an ACK for everything up to the given sequence number
+	 */
+	private TCPHeader awaitAck(long ack) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			for (byte[] packet : sentToClient) {
+				TCPHeader header = parseTcpHeader(packet);
+				if (header.isACK() && (header.getAckNumber() & 0xFFFFFFFFL) == ack) return header;
+			}
+
+			assertTrue("No ACK for " + ack + " sent to the client", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static TCPHeader parseTcpHeader(byte[] packet) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(packet);
+		IPPacketFactory.createIPv4Header(buffer);
+		return TCPPacketFactory.createTCPHeader(buffer);
+	}
+
+	private static int getTcpHeaderLength(byte[] packet) {
+		return ((packet[20 + 12] & 0xF0) >> 4) * 4;
+	}
+
+	/**
+	 * @return the offset of the SACK option in the packet, or -1 if there's none
+	 */
+	private static int findSackOption(byte[] packet) {
+		int end = 20 + getTcpHeaderLength(packet);
+		int offset = 40;
+		while (offset < end) {
+			int kind = packet[offset] & 0xFF;
+			if (kind == 0) break;
+			if (kind == 1) {
+				offset++;
+			} else if (kind == 5) {
+				return offset;
+			} else {
+				offset += packet[offset + 1] & 0xFF;
+			}
+		}
+		return -1;
+	}
+
+	private static int getPayloadLength(byte[] packet) {
+		return packet.length - 20 - getTcpHeaderLength(packet);
+	}
+
+	private Session getSession() throws Exception {
+		return onNioThread(new Callable<Session>() {
+			@Override
+			public Session call() {
+				return manager.getSession(
+					SessionProtocol.TCP, LOOPBACK_IP, upstream.getLocalPort(), CLIENT_IP, CLIENT_PORT
+				);
+			}
+		});
+	}
+
+	@Test
+	public void synAckAcceptsTheClientsOptions() throws Exception {
+		receive(createClientPacket(CLIENT_SEQUENCE, 0, TCPPacketFactory.FLAG_SYN,
+			createSynOptions(true, true), new byte[0]));
+		getSession();
+
+		byte[] synAck = sentToClient.get(0);
+		TCPHeader header = parseTcpHeader(synAck);
+		assertTrue(header.isSYN());
+		assertTrue(header.isACK());
+		assertEquals(CLIENT_SEQUENCE + 1, header.getAckNumber() & 0xFFFFFFFFL);
+
+		assertEquals(MSS, header.getMaxSegmentSize());
+		assertTrue(header.isSelectiveAckPermitted());
+		assertTrue(header.hasTimeStamp());
+		assertEquals(CLIENT_TIMESTAMP, header.getTimeStampReplyTo());
+		assertEquals(0, getTcpHeaderLength(synAck) % 4);
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void synAckOnlyIncludesOptionsTheClientOffered() throws Exception {
+		receive(createClientPacket(CLIENT_SEQUENCE, 0, TCPPacketFactory.FLAG_SYN,
+			createSynOptions(false, false), new byte[0]));
+		getSession();
+
+		byte[] synAck = sentToClient.get(0);
+		TCPHeader header = parseTcpHeader(synAck);
+		assertEquals(MSS, header.getMaxSegmentSize());
+		assertFalse(header.isSelectiveAckPermitted());
+		assertFalse(header.hasTimeStamp());
+		assertEquals(24, getTcpHeaderLength(synAck));
+	}
+
+	private void assertDownloadSegmentation(boolean timestamps) throws Exception {
+		Socket socket = connect(timestamps, false);
+		int maxPayload = timestamps ? MSS - 12 : MSS;
+		int length = maxPayload * 3 + 100;
+
+		socket.getOutputStream().write(new byte[length]);
+
+		int fullSegments = 0;
+		for (byte[] segment : awaitDownload(length)) {
+			assertTrue(segment.length <= MTU);
+			int payloadLength = getPayloadLength(segment);
+			assertTrue(payloadLength <= maxPayload);
+			if (payloadLength == maxPayload) fullSegments++;
+		}
+		assertTrue(fullSegments > 0);
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void downloadsAreSegmentedByTheMss() throws Exception {
+		assertDownloadSegmentation(false);
+	}
+
+	@Test
+	public void downloadSegmentsLeaveRoomForTimestamps() throws Exception {
+		assertDownloadSegmentation(true);
+	}
+
+	@Test
+	public void everySecondSegmentIsAckedImmediately() throws Exception {
+		connect(false, false);
+
+		receive(createClientSegment(CLIENT_SEQUENCE + 1, TCPPacketFactory.FLAG_ACK, new byte[100]));
+		receive(createClientSegment(CLIENT_SEQUENCE + 101, TCPPacketFactory.FLAG_ACK, new byte[100]));
+
+		awaitAck(CLIENT_SEQUENCE + 201);
+	}
+
+	@Test
+	public void onlyAcksTheClientWillProcessCompleteADelayedAck() throws Exception {
+		connect(false, false);
+		final Session session = getSession();
+
+		onNioThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				session.onDataReceived(1000);
+				long ackDeadline = session.getDelayedAckDeadline();
+				assertTrue(ackDeadline != 0);
+
+				// Neither is processed as an ack by the client, so ours is still owed
+				TCPPacketFactory.createWindowProbeData(session);
+				assertEquals(ackDeadline, session.getDelayedAckDeadline());
+				TCPPacketFactory.createRstData(session);
+				assertEquals(ackDeadline, session.getDelayedAckDeadline());
+
+				TCPPacketFactory.createResponseAckData(session);
+				assertEquals(0, session.getDelayedAckDeadline());
+				return null;
+			}
+		});
+	}
+
+	private static byte[] fill(int length, int value) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) value);
+		return data;
+	}
+
+	@Test
+	public void outOfOrderDataIsReportedWithSack() throws Exception {
+		connect(false, true);
+
+		receive(createClientSegment(CLIENT_SEQUENCE + 101, TCPPacketFactory.FLAG_ACK, new byte[100]));
+		getSession();
+
+		// A duplicate ack, sent straight away, reporting the data beyond the gap
+		byte[] ack = sentToClient.get(sentToClient.size() - 1);
+		assertEquals(CLIENT_SEQUENCE + 1, parseTcpHeader(ack).getAckNumber() & 0xFFFFFFFFL);
+		int sack = findSackOption(ack);
+		assertTrue(sack >= 0);
+		assertEquals(10, ack[sack + 1]);
+		ByteBuffer block = ByteBuffer.wrap(ack, sack + 2, 8);
+		assertEquals(CLIENT_SEQUENCE + 101, block.getInt() & 0xFFFFFFFFL);
+		assertEquals(CLIENT_SEQUENCE + 201, block.getInt() & 0xFFFFFFFFL);
+	}
+
+	@Test
+	public void pureAcksPastAHoleDontSkipIt() throws Exception {
+		Socket socket = connect(false, true);
+
+		receive(createClientSegment(CLIENT_SEQUENCE + 101, TCPPacketFactory.FLAG_ACK, fill(100, 'b')));
+		// A pure ACK carries the client's next sequence number, which is past the hole
+		receive(createClientSegment(CLIENT_SEQUENCE + 201, TCPPacketFactory.FLAG_ACK, new byte[0]));
+		// Then the missing data arrives
+		receive(createClientSegment(CLIENT_SEQUENCE + 1,
+			TCPPacketFactory.FLAG_ACK | TCPPacketFactory.FLAG_PSH, fill(100, 'a')));
+
+		byte[] upload = new byte[200];
+		new DataInputStream(socket.getInputStream()).readFully(upload);
+		byte[] expected = new byte[200];
+		System.arraycopy(fill(100, 'a'), 0, expected, 0, 100);
+		System.arraycopy(fill(100, 'b'), 0, expected, 100, 100);
+		assertArrayEquals(expected, upload);
+
+		awaitAck(CLIENT_SEQUENCE + 201);
+	}
+
+	private void assertDownloadsFitTheMtuWhileHoldingOutOfOrderData(boolean timestamps) throws Exception {
+		Socket socket = connect(timestamps, true);
+
+		// Several separate ranges beyond a gap, so we'd send as many SACK blocks as fit
+		for (int i = 0; i < 4; i++) {
+			long sequence = CLIENT_SEQUENCE + 101 + i * 200;
+			receive(createClientSegment(sequence, TCPPacketFactory.FLAG_ACK, new byte[100]));
+		}
+
+		int length = MSS * 3;
+		socket.getOutputStream().write(new byte[length]);
+
+		for (byte[] segment : awaitDownload(length)) {
+			assertTrue("Sent a " + segment.length + " byte packet", segment.length <= MTU);
+			assertEquals(-1, findSackOption(segment));
+		}
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void downloadsFitTheMtuWhileHoldingOutOfOrderData() throws Exception {
+		assertDownloadsFitTheMtuWhileHoldingOutOfOrderData(false);
+	}
+
+	@Test
+	public void downloadsWithTimestampsFitTheMtuWhileHoldingOutOfOrderData() throws Exception {
+		assertDownloadsFitTheMtuWhileHoldingOutOfOrderData(true);
+	}
+}
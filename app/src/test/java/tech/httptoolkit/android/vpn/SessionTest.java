@@ -0,0 +1,107 @@
+package tech.httptoolkit.android.vpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import tech.httptoolkit.android.vpn.socket.ICloseSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTest {
+
+	private static Session createUdpSession() {
+		return new Session(SessionProtocol.UDP, 0x0A000002, 40000, 0x08080808, 53, new ICloseSession() {
+			@Override
+			public void closeSession(Session session) {}
+		});
+	}
+
+	private static ByteBuffer datagram(int length, int marker) {
+		byte[] bytes = new byte[length];
+		bytes[0] = (byte) marker;
+		return ByteBuffer.wrap(bytes);
+	}
+
+	@Test
+	public void keepsDatagramBoundaries() {
+		Session session = createUdpSession();
+		assertTrue(session.queueDatagram(datagram(100, 1), 64));
+		assertTrue(session.queueDatagram(datagram(50, 2), 64));
+
+		assertTrue(session.hasDataToSend());
+		assertEquals(150, session.getQueuedDatagramBytes());
+
+		ByteBuffer first = session.peekDatagram();
+		assertEquals(100, first.remaining());
+		assertEquals(1, first.get(0));
+		session.removeDatagram();
+
+		ByteBuffer second = session.peekDatagram();
+		assertEquals(50, second.remaining());
+		assertEquals(2, second.get(0));
+		session.removeDatagram();
+
+		assertNull(session.peekDatagram());
+		assertEquals(0, session.getQueuedDatagramBytes());
+		assertFalse(session.hasDataToSend());
+	}
+
+	@Test
+	public void queuesOnlyTheDatagramsRemainingBytes() {
+		Session session = createUdpSession();
+
+		// As when the buffer still holds the IP & UDP headers before the payload
+		ByteBuffer packet = datagram(128, 0);
+		packet.position(28);
+		packet.put(28, (byte) 7);
+		session.queueDatagram(packet, 64);
+
+		ByteBuffer queued = session.peekDatagram();
+		assertEquals(100, queued.remaining());
+		assertEquals(7, queued.get(0));
+		assertEquals(100, session.getQueuedDatagramBytes());
+	}
+
+	@Test
+	public void dropsDatagramsBeyondTheQueueDepth() {
+		Session session = createUdpSession();
+		for (int i = 0; i < 4; i++) {
+			assertTrue(session.queueDatagram(datagram(10, i), 4));
+		}
+
+		assertFalse(session.queueDatagram(datagram(10, 4), 4));
+		assertEquals(40, session.getQueuedDatagramBytes());
+	}
+
+	@Test
+	public void dropsDatagramsBeyondTheByteLimit() {
+		Session session = createUdpSession();
+		int size = 60000;
+		int fitting = Session.MAX_QUEUED_DATAGRAM_BYTES / size;
+		for (int i = 0; i < fitting; i++) {
+			assertTrue(session.queueDatagram(datagram(size, i), 64));
+		}
+
+		assertFalse(session.queueDatagram(datagram(size, fitting), 64));
+		assertEquals(fitting * size, session.getQueuedDatagramBytes());
+
+		// Smaller datagrams can still fit in the remaining space
+		assertTrue(session.queueDatagram(datagram(100, 0), 64));
+	}
+
+	@Test
+	public void releasingBuffersDropsQueuedDatagrams() {
+		Session session = createUdpSession();
+		session.queueDatagram(datagram(100, 1), 64);
+
+		session.releaseBuffers();
+
+		assertNull(session.peekDatagram());
+		assertEquals(0, session.getQueuedDatagramBytes());
+		assertEquals(0, session.getBufferedBytes());
+	}
+}
@@ -0,0 +1,126 @@
+package tech.httptoolkit.android.vpn.buffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedBufferTest {
+
+	private static final int CHUNK = BufferArena.CHUNK_SIZE;
+
+	private BufferArena arena;
+	private ChunkedBuffer buffer;
+
+	@Before
+	public void setUp() {
+		arena = new BufferArena();
+		buffer = new ChunkedBuffer(arena);
+	}
+
+	private static byte[] data(int start, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) bytes[i] = (byte) ((start + i) * 31);
+		return bytes;
+	}
+
+	@Test
+	public void readsBackWritesAcrossChunks() {
+		int length = CHUNK * 2 + 100;
+		buffer.write(data(0, length), 0, length);
+		assertEquals(length, buffer.size());
+		assertEquals(3 * CHUNK, buffer.getCapacity());
+
+		byte[] read = new byte[length];
+		assertEquals(length, buffer.read(read, 0, length));
+		assertArrayEquals(data(0, length), read);
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void advancesTheSourceBuffer() {
+		ByteBuffer source = ByteBuffer.wrap(data(0, 100));
+		buffer.write(source);
+		assertEquals(0, source.remaining());
+		assertEquals(100, buffer.size());
+	}
+
+	@Test
+	public void peeksWithoutConsuming() {
+		buffer.write(data(0, CHUNK + 50), 0, CHUNK + 50);
+
+		// Spanning the boundary between the first & second chunks
+		byte[] peeked = new byte[100];
+		assertEquals(100, buffer.peek(CHUNK - 50, peeked, 0, 100));
+		assertArrayEquals(data(CHUNK - 50, 100), peeked);
+		assertEquals(CHUNK + 50, buffer.size());
+	}
+
+	@Test
+	public void peeksNoMoreThanIsBuffered() {
+		buffer.write(data(0, 10), 0, 10);
+
+		byte[] peeked = new byte[20];
+		assertEquals(5, buffer.peek(5, peeked, 0, 20));
+	}
+
+	@Test
+	public void returnsConsumedChunksToTheArena() {
+		buffer.write(data(0, CHUNK * 2), 0, CHUNK * 2);
+		assertEquals(2 * CHUNK, arena.getBytesInUse());
+
+		buffer.consume(CHUNK + 10);
+		assertEquals(CHUNK - 10, buffer.size());
+		assertEquals(CHUNK, arena.getBytesInUse());
+
+		byte[] rest = new byte[CHUNK - 10];
+		buffer.read(rest, 0, rest.length);
+		assertArrayEquals(data(CHUNK + 10, CHUNK - 10), rest);
+		assertEquals(0, arena.getBytesInUse());
+	}
+
+	@Test
+	public void slicesCoverTheDataWithoutConsumingIt() {
+		buffer.write(data(0, CHUNK + 100), 0, CHUNK + 100);
+		buffer.consume(20);
+
+		ByteBuffer[] slices = buffer.slices(CHUNK);
+		assertEquals(2, slices.length);
+		assertEquals(CHUNK - 20, slices[0].remaining());
+		assertEquals(20, slices[1].remaining());
+		assertEquals(CHUNK + 80, buffer.size());
+
+		byte[] gathered = new byte[CHUNK];
+		slices[0].get(gathered, 0, CHUNK - 20);
+		slices[1].get(gathered, CHUNK - 20, 20);
+		assertArrayEquals(data(20, CHUNK), gathered);
+
+		// Advancing the slices doesn't affect the buffer's own state
+		byte[] read = new byte[CHUNK + 80];
+		buffer.read(read, 0, read.length);
+		assertArrayEquals(data(20, CHUNK + 80), read);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesToConsumeMoreThanIsBuffered() {
+		buffer.write(data(0, 10), 0, 10);
+		buffer.consume(11);
+	}
+
+	@Test
+	public void releaseReturnsEveryChunk() {
+		buffer.write(data(0, CHUNK * 3), 0, CHUNK * 3);
+		buffer.release();
+
+		assertEquals(0, buffer.size());
+		assertEquals(0, arena.getBytesInUse());
+
+		// And the buffer is still usable afterwards
+		buffer.write(data(0, 10), 0, 10);
+		assertEquals(10, buffer.size());
+	}
+}
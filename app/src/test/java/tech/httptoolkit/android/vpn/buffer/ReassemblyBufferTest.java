@@ -0,0 +1,168 @@
+package tech.httptoolkit.android.vpn.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReassemblyBufferTest {
+
+	// Data whose bytes identify their own sequence numbers, so overlaps are easy to check
+	private static ByteBuffer data(long sequence, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) bytes[i] = (byte) (sequence + i);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static void assertData(long sequence, int length, ByteBuffer actual) {
+		assertNotNull(actual);
+		byte[] bytes = new byte[actual.remaining()];
+		actual.get(bytes);
+		assertArrayEquals(data(sequence, length).array(), bytes);
+	}
+
+	@Test
+	public void holdsDataUntilTheGapIsFilled() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		assertTrue(buffer.add(1100, data(1100, 100)));
+
+		assertNull(buffer.pollContiguous(1000));
+		assertEquals(100, buffer.size());
+
+		assertData(1100, 100, buffer.pollContiguous(1100));
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void trimsDataAlreadyStored() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1100, data(1100, 100));
+		buffer.add(1300, data(1300, 100));
+
+		// Overlaps the end of the first segment, the whole gap, and the start of the second
+		buffer.add(1150, data(1150, 200));
+		assertEquals(300, buffer.size());
+
+		long[] blocks = new long[8];
+		assertEquals(1, buffer.getSackBlocks(blocks));
+		assertEquals(1100, blocks[0]);
+		assertEquals(1400, blocks[1]);
+
+		ByteBuffer first = buffer.pollContiguous(1100);
+		assertData(1100, 100, first);
+		assertData(1200, 100, buffer.pollContiguous(1200));
+		assertData(1300, 100, buffer.pollContiguous(1300));
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void replacesSegmentsThatNewDataCovers() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1100, data(1100, 10));
+		buffer.add(1120, data(1120, 10));
+
+		buffer.add(1050, data(1050, 200));
+		assertEquals(200, buffer.size());
+
+		assertData(1050, 200, buffer.pollContiguous(1050));
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void ignoresDuplicates() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1100, data(1100, 100));
+		assertTrue(buffer.add(1120, data(1120, 50)));
+		assertEquals(100, buffer.size());
+	}
+
+	@Test
+	public void trimsDataBeforeTheNextSequenceNumber() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1000, data(1000, 100));
+		buffer.add(1200, data(1200, 100));
+
+		// The first segment was partly received in order already, the second not at all
+		assertData(1050, 50, buffer.pollContiguous(1050));
+		assertNull(buffer.pollContiguous(1100));
+		assertEquals(100, buffer.size());
+	}
+
+	@Test
+	public void discardsDataEntirelyBeforeTheNextSequenceNumber() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1000, data(1000, 100));
+		buffer.add(1200, data(1200, 100));
+
+		assertData(1250, 50, buffer.pollContiguous(1250));
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void reportsTheLatestRangeFirstInSackBlocks() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1100, data(1100, 100));
+		buffer.add(1500, data(1500, 100));
+		buffer.add(1300, data(1300, 100));
+		buffer.add(1400, data(1400, 50)); // Extends the latest range to 1300-1450
+
+		long[] blocks = new long[8];
+		assertEquals(3, buffer.getSackBlocks(blocks));
+		assertArrayEquals(new long[] { 1300, 1450, 1100, 1200, 1500, 1600, 0, 0 }, blocks);
+	}
+
+	@Test
+	public void limitsSackBlocksToTheSpaceGiven() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		for (int i = 0; i < 5; i++) {
+			buffer.add(1100 + i * 200, data(1100 + i * 200, 100));
+		}
+
+		long[] blocks = new long[6];
+		assertEquals(3, buffer.getSackBlocks(blocks));
+		// The latest (the last added), then the rest in sequence order
+		assertArrayEquals(new long[] { 1900, 2000, 1100, 1200, 1300, 1400 }, blocks);
+	}
+
+	@Test
+	public void handlesSequenceNumbersWrapping() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		long nearWrap = 0xFFFFFFF0L;
+		// Starts 16 bytes before the wrap, and ends 16 bytes after it
+		buffer.add(nearWrap + 8, data(nearWrap + 8, 24));
+
+		assertNull(buffer.pollContiguous(nearWrap));
+		ByteBuffer polled = buffer.pollContiguous(nearWrap + 8);
+		assertNotNull(polled);
+		assertEquals(24, polled.remaining());
+	}
+
+	@Test
+	public void dropsSegmentsBeyondTheLimit() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		for (int i = 0; i < 64; i++) {
+			assertTrue(buffer.add(1100 + i * 20, data(1100 + i * 20, 10)));
+		}
+
+		assertFalse(buffer.add(5000, data(5000, 10)));
+		assertEquals(640, buffer.size());
+	}
+
+	@Test
+	public void clearDropsEverything() {
+		ReassemblyBuffer buffer = new ReassemblyBuffer();
+		buffer.add(1100, data(1100, 100));
+		buffer.clear();
+
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.size());
+		assertEquals(0, buffer.getSackBlocks(new long[8]));
+	}
+}
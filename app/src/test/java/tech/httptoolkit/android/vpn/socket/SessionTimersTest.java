@@ -0,0 +1,159 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import tech.httptoolkit.android.vpn.EngineConfig;
+import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.SessionManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTimersTest {
+
+	private static final int CLIENT_IP = 0x0A000002; // 10.0.0.2
+	private static final int LOOPBACK_IP = 0x7F000001;
+
+	private SessionManager manager;
+	private SessionTimers timers;
+	private final List<Session> sessions = new ArrayList<>();
+	private final List<Session> fired = new ArrayList<>();
+
+	private final SessionTimers.Handler handler = new SessionTimers.Handler() {
+		@Override
+		public void onTimer(Session session, long now) {
+			fired.add(session);
+			// As the real handler does, clear whichever deadlines have passed
+			if (session.getRetransmitDeadline() <= now) session.setRetransmitDeadline(0);
+			if (session.getConnectDeadline() <= now) session.setConnectDeadline(0);
+		}
+	};
+
+	@Before
+	public void setUp() {
+		SocketProtector.getInstance().setProtector(new IProtectSocket() {
+			@Override
+			public boolean protect(Socket socket) {
+				return true;
+			}
+
+			@Override
+			public boolean protect(DatagramSocket socket) {
+				return true;
+			}
+		});
+
+		manager = new SessionManager(new EngineConfig(1500));
+		timers = new SessionTimers();
+	}
+
+	@After
+	public void tearDown() {
+		for (Session session : sessions) {
+			manager.closeSession(session);
+		}
+	}
+
+	// Timers don't care about the protocol, so UDP sessions (which need no handshake) will do
+	private Session createSession() throws IOException {
+		Session session = manager.createNewUDPSession(
+			LOOPBACK_IP, 53, CLIENT_IP, 40000 + sessions.size()
+		);
+		sessions.add(session);
+		return session;
+	}
+
+	@Test
+	public void firesSessionsInDeadlineOrder() throws IOException {
+		Session later = createSession();
+		Session sooner = createSession();
+		later.setRetransmitDeadline(2000);
+		sooner.setRetransmitDeadline(1000);
+		timers.schedule(later);
+		timers.schedule(sooner);
+
+		assertEquals(1000, timers.runExpired(0, handler));
+		assertTrue(fired.isEmpty());
+
+		assertEquals(1000, timers.runExpired(1000, handler));
+		assertEquals(1, fired.size());
+		assertTrue(fired.get(0) == sooner);
+
+		assertEquals(0, timers.runExpired(2000, handler));
+		assertEquals(2, fired.size());
+		assertTrue(fired.get(1) == later);
+	}
+
+	@Test
+	public void requeuesSessionsWhoseDeadlineMovedLater() throws IOException {
+		Session session = createSession();
+		session.setRetransmitDeadline(1000);
+		timers.schedule(session);
+
+		// Re-arming later leaves the queued entry alone...
+		session.setRetransmitDeadline(3000);
+		timers.schedule(session);
+		assertEquals(1, timers.size());
+
+		// ...which then fires early without running the handler, and is queued again
+		assertEquals(2000, timers.runExpired(1000, handler));
+		assertTrue(fired.isEmpty());
+
+		timers.runExpired(3000, handler);
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void firesEarlierDeadlinesImmediately() throws IOException {
+		Session session = createSession();
+		session.setRetransmitDeadline(5000);
+		timers.schedule(session);
+
+		session.setRetransmitDeadline(1000);
+		timers.schedule(session);
+
+		timers.runExpired(1000, handler);
+		assertEquals(1, fired.size());
+
+		// The stale entry for 5000 is dropped without firing again
+		assertEquals(0, timers.runExpired(5000, handler));
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void usesEachSessionsEarliestDeadline() throws IOException {
+		Session session = createSession();
+		session.setRetransmitDeadline(5000);
+		session.setConnectDeadline(2000);
+		timers.schedule(session);
+
+		timers.runExpired(2000, handler);
+		assertEquals(1, fired.size());
+		assertEquals(0, session.getConnectDeadline());
+
+		// Still queued for its retransmit deadline
+		assertEquals(3000, timers.runExpired(2000, handler));
+	}
+
+	@Test
+	public void skipsSessionsWithNoDeadlines() throws IOException {
+		Session session = createSession();
+		timers.schedule(session);
+		assertEquals(0, timers.size());
+
+		session.setRetransmitDeadline(1000);
+		timers.schedule(session);
+		session.setRetransmitDeadline(0); // Cancelled, e.g. everything was acked
+
+		assertEquals(0, timers.runExpired(1000, handler));
+		assertTrue(fired.isEmpty());
+	}
+}
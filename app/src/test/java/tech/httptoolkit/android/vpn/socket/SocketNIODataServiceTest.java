@@ -0,0 +1,178 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.EngineConfig;
+import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.SessionManager;
+import tech.httptoolkit.android.vpn.buffer.BufferBudget;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the NIO thread against real loopback sockets upstream
+ */
+public class SocketNIODataServiceTest {
+
+	private static final int CLIENT_IP = 0x0A000002; // 10.0.0.2
+	private static final int LOOPBACK_IP = 0x7F000001;
+	private static final int CLIENT_PORT = 40000;
+
+	private final List<byte[]> sentToClient = new CopyOnWriteArrayList<>();
+	private final List<Exception> errors = new CopyOnWriteArrayList<>();
+
+	private DatagramSocket upstream;
+	private BufferBudget budget;
+	private SessionManager manager;
+	private SocketNIODataService nioService;
+	private Thread nioThread;
+
+	@Before
+	public void setUp() throws IOException {
+		SocketProtector.getInstance().setProtector(new IProtectSocket() {
+			@Override
+			public boolean protect(Socket socket) {
+				return true;
+			}
+
+			@Override
+			public boolean protect(DatagramSocket socket) {
+				return true;
+			}
+		});
+
+		upstream = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+		EngineConfig config = new EngineConfig(1500);
+		budget = new BufferBudget();
+		ClientPacketWriter writer = new ClientPacketWriter(null, budget, config) {
+			@Override
+			public void write(byte[] data) {
+				sentToClient.add(data);
+				super.write(data);
+			}
+		};
+
+		manager = new SessionManager(config);
+		nioService = new SocketNIODataService(writer, manager, budget, config, new IErrorHandler() {
+			@Override
+			public void handleError(Exception e) {
+				errors.add(e);
+			}
+		});
+
+		nioThread = new Thread(nioService);
+		nioThread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		nioService.shutdown();
+		nioThread.join(5000);
+		upstream.close();
+	}
+
+	private <T> T onNioThread(Callable<T> callable) throws Exception {
+		final FutureTask<T> future = new FutureTask<>(callable);
+		nioService.post(new SocketNIODataService.Task() {
+			@Override
+			public void run() {
+				future.run();
+			}
+		});
+		return future.get(5, TimeUnit.SECONDS);
+	}
+
+	private Session createUdpSession() throws Exception {
+		return onNioThread(new Callable<Session>() {
+			@Override
+			public Session call() throws IOException {
+				Session session = manager.createNewUDPSession(
+					LOOPBACK_IP, upstream.getLocalPort(), CLIENT_IP, CLIENT_PORT
+				);
+				nioService.registerSession(session);
+				return session;
+			}
+		});
+	}
+
+	private void sendReply(Session session) throws IOException {
+		SocketAddress address = ((DatagramChannel) session.getChannel()).getLocalAddress();
+		upstream.send(new DatagramPacket(new byte[100], 100, address));
+	}
+
+	private boolean isReading(final Session session) throws Exception {
+		return onNioThread(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return (session.getSelectionKey().interestOps() & SelectionKey.OP_READ) != 0;
+			}
+		});
+	}
+
+	private void awaitPacketsSent(int count) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sentToClient.size() < count) {
+			assertTrue("Only " + sentToClient.size() + " packets sent to the client",
+				System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void udpSessionsKeepReadingAfterEachReply() throws Exception {
+		Session session = createUdpSession();
+
+		sendReply(session);
+		awaitPacketsSent(1);
+		assertTrue(isReading(session));
+
+		sendReply(session);
+		awaitPacketsSent(2);
+		assertTrue(isReading(session));
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void udpSessionsResumeReadingAfterThrottling() throws Exception {
+		Session session = createUdpSession();
+
+		// Over budget, so the next reply is left upstream and reads are paused
+		int overBudget = (int) budget.getSoftLimit() + 1;
+		budget.onPacketQueued(overBudget);
+		sendReply(session);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (isReading(session)) {
+			assertTrue("Reads were never throttled", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertTrue(sentToClient.isEmpty());
+
+		// Back under budget, reads resume, and the waiting reply is delivered
+		budget.onPacketDequeued(overBudget);
+		awaitPacketsSent(1);
+		assertTrue(isReading(session));
+
+		sendReply(session);
+		awaitPacketsSent(2);
+		assertTrue(errors.isEmpty());
+	}
+}